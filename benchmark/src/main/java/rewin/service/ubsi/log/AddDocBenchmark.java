@@ -0,0 +1,55 @@
+package rewin.service.ubsi.log;
+
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BatchDeal.addDoc在多个生产者线程下的性能
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AddDocBenchmark {
+
+    RawBsonDocument doc;
+
+    @Setup
+    public void setup() {
+        Bench.start(0, Bench.DISCARD);
+        doc = LogCodec.encode(Bench.record(0));
+    }
+
+    @TearDown
+    public void tearDown() {
+        Bench.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean threads_01() {
+        return Service.BatchDealer.addDoc(null, doc);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean threads_04() {
+        return Service.BatchDealer.addDoc(null, doc);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean threads_16() {
+        return Service.BatchDealer.addDoc(null, doc);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean threads_64() {
+        return Service.BatchDealer.addDoc(null, doc);
+    }
+}
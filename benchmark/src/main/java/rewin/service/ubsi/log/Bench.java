@@ -0,0 +1,100 @@
+package rewin.service.ubsi.log;
+
+import org.bson.RawBsonDocument;
+import rewin.ubsi.common.LogUtil;
+import rewin.ubsi.common.Util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 性能测试的公共环境：不连接MongoDB，由Sink替代写入目标
+ */
+public class Bench {
+
+    /** 丢弃所有日志的写入目标 */
+    public final static BatchDeal.Sink DISCARD = (cname, docs) -> {};
+
+    /** 进程内的MongoDB替身：复制并解析BSON（模拟网络发送及服务端解析），不保留数据 */
+    public static class MemorySink implements BatchDeal.Sink {
+        public final AtomicLong Count = new AtomicLong(0);     // 写入的日志数量
+        public final AtomicLong Bytes = new AtomicLong(0);     // 写入的字节数
+
+        @Override
+        public void insert(String cname, List<RawBsonDocument> docs) {
+            long bytes = 0;
+            for ( RawBsonDocument doc : docs ) {
+                byte[] data = LogCodec.toBytes(doc);
+                bytes += data.length;
+                new RawBsonDocument(data).size();       // 遍历所有字段
+            }
+            Bytes.addAndGet(bytes);
+            Count.addAndGet(docs.size());
+        }
+    }
+
+    /** 生成第i条测试日志 */
+    public static Object[] record(int i) {
+        return new Object[] {
+                System.currentTimeMillis(),
+                i % 4 == 0 ? LogUtil.ACCESS : i % 8,
+                "192.168.1." + (i % 16),
+                "tag" + (i % 4),
+                "app" + (i % 50),
+                "rewin.service.Bench#record#" + i,
+                "benchmark log " + i,
+                Util.toMap(new Object[] {
+                        "reqId", "req-" + (i / 10),
+                        "seqId", "0." + (i % 10),
+                        "service", "rewin.bench",
+                        "entry", "entry" + (i % 5),
+                        "args", Arrays.asList(i, "arg", i * 0.5)
+                })
+        };
+    }
+
+    /** 生成n个过滤器 */
+    public static List<Database.Filter> filters(int n) {
+        List<Database.Filter> list = new ArrayList<>();
+        for ( int i = 0; i < n; i ++ ) {
+            Database.Filter filter = new Database.Filter();
+            filter._id = "bench" + i;
+            filter.type = Arrays.asList(i == 0 ? LogUtil.ACCESS : i % 8);
+            filter.tag = i % 2 == 0 ? null : Arrays.asList("tag" + (i % 4));
+            filter.app = i % 3 == 0 ? null : Arrays.asList("app" + (i % 50), "app" + ((i + 1) % 50));
+            list.add(filter);
+        }
+        return list;
+    }
+
+    /** 启动批量写入，加载n个过滤器 */
+    public static BatchDeal start(int filters, BatchDeal.Sink sink) {
+        Config.Option option = new Config.Option();
+        option.journal_path = "";           // 不使用本地溢出日志
+        option.buffer_count = 8192;         // 500个过滤器时限制缓冲队列的内存
+        Service.LoggerOption = option;
+        BatchDeal dealer = new BatchDeal(option);
+        dealer.Target = sink;
+        for ( Database.Filter filter : filters(filters) ) {
+            Service.Filters.put(filter._id, filter);
+            dealer.addFilter(filter._id, filter.partition);
+        }
+        Service.compileFilters();
+        Service.BatchDealer = dealer;
+        dealer.start();
+        return dealer;
+    }
+
+    /** 结束批量写入 */
+    public static void stop() {
+        if ( Service.BatchDealer != null ) {
+            Service.BatchDealer.close();
+            Service.BatchDealer = null;
+        }
+        Service.Filters.clear();
+        Service.compileFilters();
+        Service.LoggerOption = null;
+    }
+}
@@ -0,0 +1,53 @@
+package rewin.service.ubsi.log;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 端到端的性能：记录日志直至全部写入进程内的MongoDB替身
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlushBenchmark {
+
+    final static int BATCH = 4096;      // 每次调用记录的日志数量
+
+    @Param({ "1", "10", "500" })
+    int filters;            // 过滤器数量
+
+    Object[][] records = new Object[BATCH][];
+    long expected = 0;      // 每次调用应写入的日志数量（主表 + 过滤表）
+    ServiceEntry entry = new ServiceEntry();
+    Bench.MemorySink sink = new Bench.MemorySink();
+
+    @Setup
+    public void setup() {
+        Bench.start(filters, sink);
+        for ( int i = 0; i < BATCH; i ++ ) {
+            records[i] = Bench.record(i);
+            expected += 1 + Service.Matcher.match((Integer) records[i][1], (String) records[i][3], (String) records[i][4]).size();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Bench.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long flush() {
+        long target = sink.Count.get() + expected;
+        for ( Object[] data : records )
+            entry.log(null, data);
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( sink.Count.get() < target && System.currentTimeMillis() < deadline )
+            Thread.yield();
+        return sink.Count.get();
+    }
+}
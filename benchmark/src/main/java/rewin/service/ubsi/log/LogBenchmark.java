@@ -0,0 +1,58 @@
+package rewin.service.ubsi.log;
+
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ServiceEntry.log的性能：文档编码、过滤器匹配及完整的记录过程
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogBenchmark {
+
+    @Param({ "1", "10", "500" })
+    int filters;            // 过滤器数量
+
+    Object[][] records = new Object[64][];
+    ServiceEntry entry = new ServiceEntry();
+    int index = 0;
+
+    @Setup
+    public void setup() {
+        Bench.start(filters, Bench.DISCARD);
+        for ( int i = 0; i < records.length; i ++ )
+            records[i] = Bench.record(i);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Bench.stop();
+    }
+
+    Object[] next() {
+        return records[(index ++) & (records.length - 1)];
+    }
+
+    @Benchmark
+    public RawBsonDocument encode() {
+        return LogCodec.encode(next());
+    }
+
+    @Benchmark
+    public List<String> route() {
+        Object[] data = next();
+        return Service.Matcher.match((Integer) data[1], (String) data[3], (String) data[4]);
+    }
+
+    @Benchmark
+    public void log() {
+        entry.log(null, next());
+    }
+}
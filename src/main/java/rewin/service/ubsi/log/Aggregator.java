@@ -0,0 +1,280 @@
+package rewin.service.ubsi.log;
+
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 可分解聚合的并行执行：[$match] + $group($sum/$min/$max/$count) [+ $sort/$skip/$limit]，或[$match] + $count，
+ * 各数据表（分区）按_id范围拆分后通过ForkJoinPool并行执行部分聚合，在服务中合并各部分的分组
+ */
+public class Aggregator {
+
+    static ForkJoinPool Pool = null;
+
+    /** 启动线程池 */
+    static void start(int threads) {
+        Pool = new ForkJoinPool(Math.max(1, threads));
+    }
+
+    /** 停止线程池 */
+    static void stop() {
+        if ( Pool != null ) {
+            Pool.shutdownNow();
+            Pool = null;
+        }
+    }
+
+    /** 分解后的聚合 */
+    static class Plan {
+        Document    Match;                                  // $match的条件，可以为null
+        Document    Group = new Document();                 // 部分聚合的$group
+        Map<String, String> Ops = new LinkedHashMap<>();    // 累加字段 -> $sum/$min/$max（合并方式）
+        String      Count;                                  // $count阶段的字段名
+        List<Document> Tail = new ArrayList<>();            // $group之后的$sort/$skip/$limit
+    }
+
+    /** 分解聚合，不能分解时返回null */
+    @SuppressWarnings("unchecked")
+    static Plan plan(List<Document> pipeline) {
+        Plan plan = new Plan();
+        int i = 0;
+        if ( i < pipeline.size() && pipeline.get(i).containsKey("$match") ) {
+            if ( pipeline.get(i).size() != 1 || !(pipeline.get(i).get("$match") instanceof Map) )
+                return null;
+            plan.Match = new Document((Map<String, Object>) pipeline.get(i ++).get("$match"));
+            if ( plan.Match.containsKey("$text") )
+                return null;
+        }
+        if ( i >= pipeline.size() || pipeline.get(i).size() != 1 )
+            return null;
+        Document stage = pipeline.get(i ++);
+        if ( stage.get("$count") instanceof String ) {
+            plan.Count = stage.getString("$count");
+            plan.Group.append("_id", null).append(plan.Count, new Document("$sum", 1));
+            plan.Ops.put(plan.Count, "$sum");
+            return i == pipeline.size() ? plan : null;
+        }
+        if ( !(stage.get("$group") instanceof Map) )
+            return null;
+        Map<String, Object> group = (Map<String, Object>) stage.get("$group");
+        if ( !group.containsKey("_id") )
+            return null;
+        for ( Map.Entry<String, Object> e : group.entrySet() ) {
+            if ( "_id".equals(e.getKey()) ) {
+                plan.Group.append("_id", e.getValue());
+                continue;
+            }
+            if ( !(e.getValue() instanceof Map) || ((Map) e.getValue()).size() != 1 )
+                return null;
+            Map.Entry<String, Object> acc = ((Map<String, Object>) e.getValue()).entrySet().iterator().next();
+            switch ( acc.getKey() ) {
+                case "$sum":
+                case "$min":
+                case "$max":
+                    plan.Group.append(e.getKey(), new Document(acc.getKey(), acc.getValue()));
+                    plan.Ops.put(e.getKey(), acc.getKey());
+                    break;
+                case "$count":
+                    plan.Group.append(e.getKey(), new Document("$sum", 1));
+                    plan.Ops.put(e.getKey(), "$sum");
+                    break;
+                default:
+                    return null;
+            }
+        }
+        for ( ; i < pipeline.size(); i ++ ) {
+            stage = pipeline.get(i);
+            if ( stage.size() != 1 )
+                return null;
+            if ( stage.get("$sort") instanceof Map || stage.get("$skip") instanceof Number || stage.get("$limit") instanceof Number )
+                plan.Tail.add(stage);
+            else
+                return null;
+        }
+        return plan;
+    }
+
+    final static Pattern MAP_EMIT = Pattern.compile(
+            "^function\\s*\\(\\s*\\)\\s*\\{\\s*emit\\s*\\(\\s*this\\.([\\w.]+)\\s*,\\s*(?:this\\.([\\w.]+)|(-?\\d+(?:\\.\\d+)?))\\s*\\)\\s*;?\\s*}$");
+    final static Pattern REDUCE = Pattern.compile(
+            "^function\\s*\\(\\s*\\w+\\s*,\\s*(\\w+)\\s*\\)\\s*\\{\\s*return\\s+(Array\\.sum|Math\\.max\\.apply|Math\\.min\\.apply)\\s*\\(\\s*(?:(?:null|Math)\\s*,\\s*)?(\\w+)\\s*\\)\\s*;?\\s*}$");
+
+    /**
+     * 将简单的mapReduce转换为聚合：map为function() { emit(this.字段, this.字段或数值); }，
+     * reduce为function(key, values) { return Array.sum(values)或Math.max/min.apply(null, values); }，不能转换时返回null
+     */
+    static Plan translate(String map, String reduce) {
+        if ( map == null || reduce == null )
+            return null;
+        Matcher m = MAP_EMIT.matcher(map.trim());
+        Matcher r = REDUCE.matcher(reduce.trim());
+        if ( !m.matches() || !r.matches() || !r.group(1).equals(r.group(3)) )
+            return null;
+        String op = "Array.sum".equals(r.group(2)) ? "$sum" : "Math.max.apply".equals(r.group(2)) ? "$max" : "$min";
+        Object value = m.group(2) != null ? "$" + m.group(2) :
+                m.group(3).contains(".") ? (Object) Double.parseDouble(m.group(3)) : (Object) Long.parseLong(m.group(3));
+        return plan(Arrays.asList(new Document("$group", new Document("_id", "$" + m.group(1)).append("value", new Document(op, value)))));
+    }
+
+    /** 将数据表按照_id（ObjectId的时间戳）拆分为多个范围[from, to)，null表示不限，空表返回空列表 */
+    static List<ObjectId[]> split(String cname, int parts) {
+        MongoCollection<Document> col = Service.MongoDBLogs.getCollection(cname);
+        Document first = col.find().sort(new Document("_id", 1)).projection(new Document("_id", 1)).first();
+        Document last = col.find().sort(new Document("_id", -1)).projection(new Document("_id", 1)).first();
+        List<ObjectId[]> res = new ArrayList<>();
+        if ( first == null || last == null )
+            return res;
+        int n = 1;
+        long t0 = 0, t1 = 0;
+        if ( first.get("_id") instanceof ObjectId && last.get("_id") instanceof ObjectId ) {
+            t0 = first.getObjectId("_id").getTimestamp() & 0xFFFFFFFFL;
+            t1 = (last.getObjectId("_id").getTimestamp() & 0xFFFFFFFFL) + 1;
+            n = (int) Math.max(1, Math.min(parts, t1 - t0));
+        }
+        for ( int i = 0; i < n; i ++ )
+            res.add(new ObjectId[] {
+                    i == 0 ? null : Expire.minId((t0 + (t1 - t0) * i / n) * 1000),
+                    i == n - 1 ? null : Expire.minId((t0 + (t1 - t0) * (i + 1) / n) * 1000)
+            });
+        return res;
+    }
+
+    // 一个范围的部分聚合，二分后并行执行并合并结果
+    static class Part extends RecursiveTask<Map<String, Document>> {
+        private static final long serialVersionUID = 1L;
+
+        final Plan Plan;
+        final List<Object[]> Ranges;    // [数据表, from, to]
+
+        Part(Plan plan, List<Object[]> ranges) {
+            Plan = plan;
+            Ranges = ranges;
+        }
+
+        @Override
+        protected Map<String, Document> compute() {
+            if ( Ranges.size() > 1 ) {
+                int mid = Ranges.size() / 2;
+                Part left = new Part(Plan, Ranges.subList(0, mid));
+                left.fork();
+                Map<String, Document> res = new Part(Plan, Ranges.subList(mid, Ranges.size())).compute();
+                return merge(Plan, res, left.join());
+            }
+            Object[] range = Ranges.get(0);
+            Document id = new Document();
+            if ( range[1] != null )
+                id.append("$gte", range[1]);
+            if ( range[2] != null )
+                id.append("$lt", range[2]);
+            Document match = Plan.Match;
+            if ( !id.isEmpty() )
+                match = match == null || match.isEmpty() ? new Document("_id", id) : new Document("$and", Arrays.asList(Plan.Match, new Document("_id", id)));
+            List<Document> pipeline = new ArrayList<>();
+            if ( match != null && !match.isEmpty() )
+                pipeline.add(new Document("$match", match));
+            pipeline.add(new Document("$group", Plan.Group));
+            Map<String, Document> res = new HashMap<>();
+            for ( Document doc : Service.MongoDBLogs.getCollection((String) range[0]).aggregate(pipeline).allowDiskUse(true) )
+                res.put(key(doc.get("_id")), doc);
+            return res;
+        }
+    }
+
+    // 分组的key（数值类型不同但值相等的视为同一个分组）
+    static String key(Object id) {
+        StringBuilder sb = new StringBuilder();
+        QueryCache.canon(sb, id);
+        return sb.toString();
+    }
+
+    // 合并两组部分聚合的结果
+    static Map<String, Document> merge(Plan plan, Map<String, Document> a, Map<String, Document> b) {
+        if ( a.size() < b.size() ) {
+            Map<String, Document> t = a;
+            a = b;
+            b = t;
+        }
+        for ( Map.Entry<String, Document> e : b.entrySet() ) {
+            Document doc = a.get(e.getKey());
+            if ( doc == null ) {
+                a.put(e.getKey(), e.getValue());
+                continue;
+            }
+            for ( Map.Entry<String, String> op : plan.Ops.entrySet() )
+                doc.put(op.getKey(), combine(op.getValue(), doc.get(op.getKey()), e.getValue().get(op.getKey())));
+        }
+        return a;
+    }
+
+    // 合并累加值（$min/$max忽略null，同MongoDB）
+    static Object combine(String op, Object a, Object b) {
+        if ( "$sum".equals(op) )
+            return sum(a, b);
+        if ( a == null || b == null )
+            return a == null ? b : a;
+        int c = Partition.compare(a, b);
+        return "$min".equals(op) ? (c <= 0 ? a : b) : (c >= 0 ? a : b);
+    }
+
+    // 数值相加：整数相加溢出时转为double，int相加超出范围时转为long（同MongoDB）
+    static Object sum(Object a, Object b) {
+        if ( !(a instanceof Number) )
+            return b instanceof Number ? b : a;
+        if ( !(b instanceof Number) )
+            return a;
+        if ( (a instanceof Integer || a instanceof Long) && (b instanceof Integer || b instanceof Long) ) {
+            long x = ((Number) a).longValue(), y = ((Number) b).longValue(), s = x + y;
+            if ( ((x ^ s) & (y ^ s)) < 0 )
+                return (double) x + y;
+            if ( a instanceof Integer && b instanceof Integer && s == (int) s )
+                return (int) s;
+            return s;
+        }
+        return ((Number) a).doubleValue() + ((Number) b).doubleValue();
+    }
+
+    /** 在数据表（分区）上并行执行分解后的聚合 */
+    static List<Document> run(List<String> cnames, Plan plan) {
+        Config.Option option = Service.LoggerOption;
+        List<Object[]> ranges = new ArrayList<>();
+        for ( String cname : cnames ) {
+            int parts = Service.MongoDBLogs.getCollection(cname).estimatedDocumentCount() < option.aggregate_split_min ? 1 : Math.max(1, option.aggregate_split);
+            for ( ObjectId[] r : split(cname, parts) )
+                ranges.add(new Object[] { cname, r[0], r[1] });
+        }
+        List<Document> res = new ArrayList<>();
+        if ( ranges.isEmpty() )
+            return res;
+        ForkJoinPool pool = Pool == null ? ForkJoinPool.commonPool() : Pool;
+        res.addAll(pool.invoke(new Part(plan, ranges)).values());
+        if ( plan.Count != null ) {
+            for ( Document doc : res )
+                doc.remove("_id");
+            return res;
+        }
+        for ( Document stage : plan.Tail ) {
+            if ( stage.containsKey("$sort") )
+                res.sort(Partition.comparator((Map) stage.get("$sort")));
+            else if ( stage.containsKey("$skip") ) {
+                int n = Math.min(res.size(), ((Number) stage.get("$skip")).intValue());
+                res = new ArrayList<>(res.subList(n, res.size()));
+            } else {
+                int n = Math.min(res.size(), ((Number) stage.get("$limit")).intValue());
+                res = new ArrayList<>(res.subList(0, n));
+            }
+        }
+        return res;
+    }
+}
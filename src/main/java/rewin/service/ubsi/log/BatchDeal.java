@@ -1,55 +1,430 @@
 package rewin.service.ubsi.log;
 
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
 import org.bson.Document;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import rewin.ubsi.common.Util;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * 日志数据的批量写入
+ * 日志数据的批量写入：每个数据表一个写入通道，由写入线程池并行写入
  */
 public class BatchDeal extends Thread {
 
-    ConcurrentLinkedQueue<Document> Buffer = new ConcurrentLinkedQueue<>();                     // 主表
-    ConcurrentMap<String, ConcurrentLinkedQueue<Document>> FBuffer = new ConcurrentHashMap<>(); // 过滤表
+    /** 数据表的写入通道 */
+    public static class Lane {
+        final String                Collection;     // 表名
+        final RingBuffer<RawBsonDocument> Buffer;   // 缓冲队列
+        final AtomicInteger         InFlight = new AtomicInteger(0);    // 正在写入的批次数
+        final LongAdder             Accepted = new LongAdder();         // 接收的日志数量
+        final LongAdder             Written = new LongAdder();          // 写入的日志数量
+        final LongAdder             Failed = new LongAdder();           // 写入失败而丢失的日志数量
+        final LongAdder             Spilled = new LongAdder();          // 写入失败后溢出到本地的日志数量（回放后计入replayed）
+        final LongAdder             Batches = new LongAdder();          // 写入的批次数
+        final LongAdder             Late = new LongAdder();             // 写入的迟到日志数量（time早于当前时间cache_settle以上）
+        final Histogram             Sizes = new Histogram();            // 每批写入的条数
+        volatile long               LastDrain = System.currentTimeMillis();     // 最近一次取出日志的时间
+        volatile long               WriteTime = 0;  // 最近一次写入的耗时（毫秒）
+        volatile int                BatchSize;      // 当前每批写入的条数（自适应调整）
+        volatile Partition.Unit     Unit = Partition.Unit.NONE;     // 时间分区方式
+        volatile double             Rate = 0;       // 写入速度（条/秒）
+        long                        RateCount = 0;  // 上次计算速度时的写入数量
 
-    boolean         Shutdown = false;
-    List<Document>  WBuffer = new ArrayList<>();    // 写入缓冲区
-    AtomicLong      Count = new AtomicLong(0);      // 日志计数
+        Lane(String cname, RingBuffer<RawBsonDocument> buffer, int batchSize) {
+            Collection = cname;
+            Buffer = buffer;
+            BatchSize = batchSize;
+        }
+
+        /** 等待写入的时间（毫秒） */
+        public long lag() {
+            return Buffer.isEmpty() ? 0 : System.currentTimeMillis() - LastDrain;
+        }
+
+        /** 运行信息 */
+        public Map info() {
+            return Util.toMap(new Object[] {
+                    "buffered", Buffer.size(),
+                    "buffered_bytes", Buffer.bytes(),
+                    "in_flight", InFlight.get(),
+                    "accepted", Accepted.sum(),
+                    "written", Written.sum(),
+                    "failed", Failed.sum(),
+                    "spilled", Spilled.sum(),
+                    "dropped", Buffer.shed(),
+                    "batches", Batches.sum(),
+                    "batch_sizes", Sizes.snapshot(),
+                    "write_ms", WriteTime,
+                    "batch_size", BatchSize,
+                    "rate", Math.round(Rate),
+                    "lag_ms", lag()
+            });
+        }
+    }
+
+    /** 日志的写入目标 */
+    public interface Sink {
+        void insert(String cname, List<RawBsonDocument> docs) throws Exception;
+    }
+
+    /** 缺省的写入目标：MongoDB（等待确认，单条日志的错误抛出MongoBulkWriteException，其他日志仍然写入） */
+    public final static Sink MONGODB = (cname, docs) -> {
+        Service.prepare(cname);     // 分区表在首次写入时创建
+        Service.MongoDBLogs.getCollection(cname, RawBsonDocument.class)
+                .withWriteConcern(WriteConcern.ACKNOWLEDGED)
+                .insertMany(docs, new InsertManyOptions().ordered(false));
+    };
+
+    Sink            Target = MONGODB;                                       // 写入目标
+    Lane            Buffer;                                                 // 主表
+    ConcurrentMap<String, Lane> FBuffer = new ConcurrentHashMap<>();        // 过滤表
+
+    Config.Option   Option;                         // 配置项
+    RingBuffer.Overflow Policy;                     // 溢出策略
+    ExecutorService Writers;                        // 写入线程池
+    volatile boolean Shutdown = false;
+    final AtomicInteger Adding = new AtomicInteger(0);  // 正在写入缓冲的调用数（结束时等待完成）
+    final static int MIN_BATCH = 16;                // 自适应调整的最小批量
+    LongAdder       SpillDropped = new LongAdder(); // 无法溢出而丢弃的日志数量
+    LongAdder       Spilled = new LongAdder();      // 溢出到本地的日志数量
+    LongAdder       Replayed = new LongAdder();     // 回放的日志数量
+    LongAdder       ReplaySkipped = new LongAdder();    // 回放时写入错误（重复记录除外）而跳过的日志数量
+    AtomicBoolean   Replaying = new AtomicBoolean(false);   // 是否有正在执行的回放任务
+
+    Journal         Spill = null;                   // 本地溢出日志
+    volatile long   FailTime = 0;                   // 最近一次写入MongoDB失败的时间
+    double          ReplayTokens = 0;               // 回放的令牌
+    long            ReplayTime = 0;                 // 上次计算回放令牌的时间
+    long            RateTime = System.currentTimeMillis();  // 上次计算写入速度的时间
+    long            MetricsTime = System.currentTimeMillis();   // 上次保存运行指标的时间
+
+    public BatchDeal(Config.Option option) {
+        Option = option;
+        Policy = RingBuffer.Overflow.parse(option.buffer_overflow);
+        Buffer = newLane(Database.COL_LOGS);
+        Buffer.Unit = Partition.Unit.parse(option.logs_partition);
+        FBuffer.put(Offload.LANE, newLane(Database.COL_BODIES));    // 分离存储的body
+        if ( option.journal_path != null && !option.journal_path.trim().isEmpty() ) {
+            try {
+                Spill = new Journal(option.journal_path.trim(), option.journal_segment, option.journal_bytes);
+            } catch (Exception e) {
+                System.out.println("[ERROR] rewin.service.log journal " + e.toString());
+            }
+        }
+        AtomicInteger index = new AtomicInteger(0);
+        Writers = Executors.newFixedThreadPool(Math.max(1, option.writer_threads), r -> {
+            Thread t = new Thread(r, "rewin.service.log.writer-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // 新建写入通道
+    Lane newLane(String cname) {
+        return new Lane(cname, new RingBuffer<>(Option.buffer_count, Option.buffer_bytes, Policy, Option.buffer_timeout),
+                Math.max(MIN_BATCH, Math.min(100, Option.flush_count)));
+    }
+
+    // MongoDB最近写入失败，暂停写入
+    boolean isDegraded() {
+        return System.currentTimeMillis() - FailTime < Option.journal_retry;
+    }
+
+    // 溢出到本地，返回false表示日志被丢弃
+    boolean spill(String cname, RawBsonDocument doc) {
+        if ( Spill != null ) {
+            try {
+                if ( Spill.append(cname, LogCodec.toBytes(doc)) ) {
+                    Spilled.increment();
+                    return true;
+                }
+            } catch (Exception e) {
+                System.out.println("[ERROR] rewin.service.log journal " + e.toString());
+            }
+        }
+        SpillDropped.increment();
+        return false;
+    }
+
+    // 日志的时间，缺少时使用当前时间
+    static long timeOf(RawBsonDocument doc) {
+        BsonValue v = doc.get(Database.LOGS_TIME);
+        return v != null && v.isNumber() ? v.asNumber().longValue() : System.currentTimeMillis();
+    }
+
+    // 写入一批日志，分区表按照日志时间拆分到各分区
+    void write(Lane lane, List<RawBsonDocument> docs) {
+        Partition.Unit unit = lane.Unit;
+        if ( unit == Partition.Unit.NONE ) {
+            write(lane, lane.Collection, docs);
+            return;
+        }
+        Map<String, List<RawBsonDocument>> parts = new LinkedHashMap<>();
+        for ( RawBsonDocument doc : docs )
+            parts.computeIfAbsent(Partition.name(lane.Collection, unit, timeOf(doc)), k -> new ArrayList<>()).add(doc);
+        for ( Map.Entry<String, List<RawBsonDocument>> part : parts.entrySet() )
+            write(lane, part.getKey(), part.getValue());
+    }
+
+    // 写入一批日志，失败时溢出到本地
+    void write(Lane lane, String cname, List<RawBsonDocument> docs) {
+        long t = System.currentTimeMillis();
+        if ( Spill != null && isDegraded() ) {
+            spill(lane, cname, docs);
+            return;
+        }
+        long start = System.nanoTime();
+        int rejected = 0;
+        try {
+            Target.insert(cname, docs);
+            Metrics.elapsed(Metrics.Insert, start);
+        } catch (MongoBulkWriteException e) {
+            // 单条日志的错误（重试也不能成功），其他日志已经写入
+            for ( BulkWriteError err : e.getWriteErrors() )
+                if ( err.getCode() != 11000 ) {
+                    System.out.println("[ERROR] rewin.service.log " + cname + ": " + err.getMessage());
+                    rejected ++;
+                }
+        } catch (Exception e) {
+            // 记录日志发生错误，只在console输出异常信息
+            System.out.println("[ERROR] rewin.service.log " + e.toString());
+            FailTime = System.currentTimeMillis();
+            spill(lane, cname, docs);
+            return;
+        }
+        lane.Failed.add(rejected);
+        lane.Written.add(docs.size() - rejected);
+        late(lane, docs);
+        lane.Batches.increment();
+        lane.Sizes.record(docs.size());
+        lane.WriteTime = System.currentTimeMillis() - t;
+        tune(lane, docs.size(), lane.WriteTime);
+    }
+
+    // 写入失败的一批日志溢出到本地，无法溢出的日志计为失败
+    void spill(Lane lane, String cname, List<RawBsonDocument> docs) {
+        int n = 0;
+        if ( Spill != null )
+            for ( RawBsonDocument doc : docs )
+                if ( spill(cname, doc) )
+                    n ++;
+        lane.Spilled.add(n);
+        lane.Failed.add(docs.size() - n);
+    }
+
+    // 统计迟到的日志（补写或回放的旧日志），已过去的时间范围的查询缓存据此失效
+    void late(Lane lane, List<RawBsonDocument> docs) {
+        long settle = System.currentTimeMillis() - Option.cache_settle;
+        int n = 0;
+        for ( RawBsonDocument doc : docs )
+            if ( timeOf(doc) < settle )
+                n ++;
+        if ( lane != null && n > 0 )
+            lane.Late.add(n);
+    }
+
+    // 根据写入耗时调整通道的批量：超过目标耗时则减小，批量已满且耗时较短则增大
+    void tune(Lane lane, int count, long millis) {
+        if ( !Option.flush_adaptive )
+            return;
+        int size = lane.BatchSize;
+        if ( millis > Option.flush_latency )
+            size = Math.max(MIN_BATCH, size * 3 / 4);
+        else if ( count >= size && millis < Option.flush_latency / 2 )
+            size = Math.min(Math.max(MIN_BATCH, Option.flush_count), size + Math.max(1, size / 4));
+        lane.BatchSize = size;
+    }
+
+    // 是否需要写入：达到批量条数、批量字节数或等待时间
+    boolean isReady(Lane lane, long now) {
+        return lane.Buffer.size() >= lane.BatchSize
+                || lane.Buffer.bytes() >= Option.flush_bytes
+                || now - lane.LastDrain >= Option.flush_linger;
+    }
 
-    void batch(ConcurrentLinkedQueue<Document> buf, String cname) {
-        while ( !buf.isEmpty() )
-            WBuffer.add(buf.poll());
-        if ( !WBuffer.isEmpty() ) {
+    // 从通道中取出日志交给写入线程池，每个通道同时写入的批次不超过writer_inflight（force时不限，用于结束时写入剩余的日志）
+    void dispatch(Lane lane, boolean force) {
+        long now = System.currentTimeMillis();
+        while ( !lane.Buffer.isEmpty() && (force || lane.InFlight.get() < Option.writer_inflight) ) {
+            if ( !force && !isReady(lane, now) )
+                break;
+            int size = lane.BatchSize;
+            List<RawBsonDocument> docs = new ArrayList<>(Math.min(lane.Buffer.size(), size));
+            if ( lane.Buffer.drain(docs, size, Option.flush_bytes) == 0 )
+                break;
+            lane.LastDrain = now;
+            lane.InFlight.incrementAndGet();
             try {
-                Service.MongoDBLogs.getCollection(cname)
-                        .withWriteConcern(WriteConcern.UNACKNOWLEDGED).insertMany(WBuffer);
+                Writers.execute(() -> {
+                    try {
+                        write(lane, docs);
+                    } finally {
+                        lane.InFlight.decrementAndGet();
+                        wakeup();
+                    }
+                });
             } catch (Exception e) {
-                // 记录日志发生错误，只在console输出异常信息
-                System.out.println("[ERROR] rewin.service.log " + e.toString());
+                lane.InFlight.decrementAndGet();
+                write(lane, docs);      // 线程池已关闭
             }
-            WBuffer.clear();
         }
     }
 
+    // 将所有通道中的日志交给写入线程池，force表示不等待批量条件
+    void flush(boolean force) {
+        dispatch(Buffer, force);
+        for ( Lane lane : FBuffer.values() )
+            dispatch(lane, force);
+    }
+
+    // 计算各通道的写入速度
+    void rate() {
+        long now = System.currentTimeMillis();
+        if ( now - RateTime < 1000 )
+            return;
+        List<Lane> lanes = new ArrayList<>(FBuffer.values());
+        lanes.add(Buffer);
+        for ( Lane lane : lanes ) {
+            long count = lane.Written.sum();
+            lane.Rate = (count - lane.RateCount) * 1000.0 / (now - RateTime);
+            lane.RateCount = count;
+        }
+        RateTime = now;
+    }
+
+    // 定期保存运行指标
+    void snapshot() {
+        long now = System.currentTimeMillis();
+        if ( Option.metrics_interval <= 0 || now - MetricsTime < Option.metrics_interval * 1000L )
+            return;
+        MetricsTime = now;
+        try {
+            Writers.execute(() -> {
+                try {
+                    Document doc = new Document("time", now).append("instance", Service.ListenerID);
+                    doc.putAll(Service.metrics());
+                    Service.MongoDBLogs.getCollection(Database.COL_METRICS).insertOne(doc);
+                } catch (Exception e) {
+                    System.out.println("[ERROR] rewin.service.log metrics " + e.toString());
+                }
+            });
+        } catch (Exception e) {
+            // 线程池已关闭
+        }
+    }
+
+    // 在写入线程池中回放本地溢出的日志，同时只有一个回放任务（不阻塞各通道的分发）
+    void startReplay() {
+        if ( Spill.pending() == 0 || isDegraded() || !Replaying.compareAndSet(false, true) )
+            return;
+        try {
+            Writers.execute(() -> {
+                try {
+                    replay();
+                } finally {
+                    Replaying.set(false);
+                }
+            });
+        } catch (Exception e) {
+            Replaying.set(false);   // 线程池已关闭
+        }
+    }
+
+    // 按限定的速度回放本地溢出的日志
+    void replay() {
+        long now = System.currentTimeMillis();
+        ReplayTokens = Math.min(Option.journal_rate, ReplayTokens + Option.journal_rate * (now - ReplayTime) / 1000.0);
+        ReplayTime = now;
+        if ( ReplayTokens < 1 || Spill.pending() == 0 || isDegraded() )
+            return;
+
+        List<Journal.Entry> list = new ArrayList<>();
+        try {
+            int n = Spill.read(list, (int)ReplayTokens);
+            List<RawBsonDocument> docs = new ArrayList<>();
+            for ( int i = 0; i < n; ) {
+                String cname = list.get(i).cname;
+                for ( ; i < n && cname.equals(list.get(i).cname); i ++ )
+                    docs.add(new RawBsonDocument(list.get(i).bson));
+                if ( isAlive(cname) ) {
+                    ReplaySkipped.add(insert(cname, docs));     // 忽略已删除的过滤表
+                    late(laneOf(cname), docs);
+                }
+                docs.clear();
+            }
+            Spill.commit();
+            ReplayTokens -= n;
+            Replayed.add(n);
+        } catch (Exception e) {
+            System.out.println("[ERROR] rewin.service.log replay " + e.toString());
+            FailTime = now;
+        }
+    }
+
+    // 日志表是否仍然有效（主表或未删除的过滤表，包括分区表）
+    boolean isAlive(String cname) {
+        return laneOf(cname) != null;
+    }
+
+    // 日志表（包括分区表）的写入通道，已删除的过滤表返回null
+    Lane laneOf(String cname) {
+        String base = Partition.base(cname);
+        if ( Database.COL_LOGS.equals(cname) || Database.COL_LOGS.equals(base) )
+            return Buffer;
+        int len = Database.COL_LOGS.length() + 1;
+        Lane lane = FBuffer.get(cname.substring(len));
+        return lane != null || base.length() <= len ? lane : FBuffer.get(base.substring(len));
+    }
+
+    /**
+     * 确认写入回放的日志，忽略重复的记录（之前部分回放过），返回其他写入错误而跳过的日志数量
+     * （单条日志的错误不能重试成功，跳过以免回放停滞；连接等错误抛出异常，稍后从回放进度处重试）
+     */
+    static int insert(String cname, List<RawBsonDocument> docs) {
+        Service.prepare(cname);
+        try {
+            Service.MongoDBLogs.getCollection(cname, RawBsonDocument.class)
+                    .withWriteConcern(WriteConcern.ACKNOWLEDGED)
+                    .insertMany(docs, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            int skipped = 0;
+            for ( BulkWriteError err : e.getWriteErrors() )
+                if ( err.getCode() != 11000 ) {
+                    System.out.println("[ERROR] rewin.service.log replay skip " + cname + ": " + err.getMessage());
+                    skipped ++;
+                }
+            return skipped;
+        }
+        return 0;
+    }
+
     /** 线程开始 */
     public void run() {
         while ( !Shutdown ) {
             synchronized (this) {
-                try { this.wait(100); } catch (Exception e) { }   // 等待100毫秒
-            }
-            Count.addAndGet((long)Buffer.size());
-            batch(Buffer, Database.COL_LOGS);
-            for ( String key : FBuffer.keySet() ) {
-                ConcurrentLinkedQueue<Document> buffer = FBuffer.get(key);
-                if ( buffer != null )
-                    batch(buffer, Database.COL_LOGS + "_" + key);
+                try { this.wait(Math.max(1, Option.flush_linger)); } catch (Exception e) { }   // 最多等待flush_linger毫秒
             }
+            flush(false);
+            rate();
+            snapshot();
+            if ( Spill != null )
+                startReplay();
         }
     }
 
@@ -57,9 +432,14 @@ public class BatchDeal extends Thread {
     public void close() {
         Shutdown = true;
         wakeup();
+        while ( Adding.get() > 0 )
+            Thread.yield();                         // 等待正在进行的addDoc/addDocs完成，之后的调用不再接收
         try { join(); } catch (Exception e) {}      // 等待线程结束
-        Buffer.clear();
-        FBuffer.clear();
+        Writers.shutdown();
+        try { Writers.awaitTermination(10, TimeUnit.SECONDS); } catch (Exception e) {}
+        flush(true);    // 写入剩余的日志（线程池已关闭，直接写入），失败时溢出到本地
+        if ( Spill != null )
+            Spill.close();
     }
 
     /** 唤醒线程 */
@@ -67,25 +447,113 @@ public class BatchDeal extends Thread {
         synchronized (this) { notifyAll(); }
     }
 
-    /** 新增记录 */
-    public void addDoc(String filter, Document doc) {
-        ConcurrentLinkedQueue<Document> buf = filter == null ? Buffer : FBuffer.get(filter);
-        if ( buf != null ) {
-            buf.offer(doc);
-            if ( buf.size() >= 100 )
+    /** 新增记录，返回false表示记录被丢弃 */
+    public boolean addDoc(String filter, RawBsonDocument doc) {
+        Adding.incrementAndGet();
+        try {
+            Lane lane = filter == null ? Buffer : FBuffer.get(filter);
+            if ( lane == null || Shutdown )
+                return false;       // 已结束时不再接收
+            if ( !lane.Buffer.offer(doc, LogCodec.sizeOf(doc)) ) {
+                if ( Policy == RingBuffer.Overflow.SPILL && spill(lane.Collection, doc) ) {
+                    lane.Accepted.increment();
+                    return true;
+                }
+                return false;
+            }
+            lane.Accepted.increment();
+            if ( lane.Buffer.size() >= lane.BatchSize || lane.Buffer.bytes() >= Option.flush_bytes )
+                wakeup();
+            return true;
+        } finally {
+            Adding.decrementAndGet();
+        }
+    }
+    /** 批量新增记录，返回接收的记录数 */
+    public int addDocs(String filter, List<RawBsonDocument> docs) {
+        Adding.incrementAndGet();
+        try {
+            Lane lane = filter == null ? Buffer : FBuffer.get(filter);
+            if ( lane == null || Shutdown )
+                return 0;           // 已结束时不再接收
+            int n = 0;
+            for ( RawBsonDocument doc : docs ) {
+                if ( lane.Buffer.offer(doc, LogCodec.sizeOf(doc)) )
+                    n ++;
+                else if ( Policy == RingBuffer.Overflow.SPILL && spill(lane.Collection, doc) )
+                    n ++;
+            }
+            lane.Accepted.add(n);
+            if ( lane.Buffer.size() >= lane.BatchSize || lane.Buffer.bytes() >= Option.flush_bytes )
                 wakeup();
+            return n;
+        } finally {
+            Adding.decrementAndGet();
         }
     }
-    /** 新增Filter */
-    public void addFilter(String filter) {
-        FBuffer.put(filter, new ConcurrentLinkedQueue<>());
+    /** 新增Filter，已存在时更新分区方式 */
+    public void addFilter(String filter, String partition) {
+        if ( Service.single() )
+            return;     // 单写模式没有过滤表
+        Lane lane = FBuffer.computeIfAbsent(filter, k -> newLane(Database.COL_LOGS + "_" + k));
+        lane.Unit = Partition.Unit.parse(partition);
     }
     /** 删除Filter */
     public void delFilter(String filter) {
         FBuffer.remove(filter);
     }
-    /** 清除所有Filter */
-    public void clearFilter() {
-        FBuffer.clear();
+
+    /** 写入水位：主表/过滤表写入MongoDB的日志数量（包括回放），只增不减 */
+    public long watermark(String filter) {
+        Lane lane = filter == null || Service.single() ? Buffer : FBuffer.get(filter);
+        return (lane == null ? 0 : lane.Written.sum()) + Replayed.sum();
+    }
+
+    /** 迟到水位：主表/过滤表写入的迟到日志数量（包括回放），只增不减 */
+    public long late(String filter) {
+        Lane lane = filter == null || Service.single() ? Buffer : FBuffer.get(filter);
+        return lane == null ? 0 : lane.Late.sum();
+    }
+
+    /** 缓冲中的日志数量 */
+    public long pending() {
+        long n = Buffer.Buffer.size();
+        for ( Lane lane : FBuffer.values() )
+            n += lane.Buffer.size();
+        return n;
+    }
+    /** 缓冲中的日志字节数 */
+    public long pendingBytes() {
+        long n = Buffer.Buffer.bytes();
+        for ( Lane lane : FBuffer.values() )
+            n += lane.Buffer.bytes();
+        return n;
+    }
+    /** 被丢弃的日志数量：[丢弃的新日志, 丢弃的旧日志, 等待超时, 无法溢出] */
+    public long[] shed() {
+        long[] n = new long[] { 0, 0, 0, SpillDropped.sum() };
+        List<Lane> list = new ArrayList<>(FBuffer.values());
+        list.add(Buffer);
+        for ( Lane lane : list ) {
+            n[0] += lane.Buffer.Dropped.sum();
+            n[1] += lane.Buffer.Evicted.sum();
+            n[2] += lane.Buffer.TimedOut.sum();
+        }
+        return n;
+    }
+    /** 缓冲的负载：所有写入通道中最高的使用率 */
+    public double load() {
+        double load = Buffer.Buffer.load();
+        for ( Lane lane : FBuffer.values() )
+            load = Math.max(load, lane.Buffer.load());
+        return load;
+    }
+    /** 各写入通道的运行信息 */
+    public Map<String, Object> lanes() {
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put(Buffer.Collection, Buffer.info());
+        for ( Lane lane : FBuffer.values() )
+            res.put(lane.Collection, lane.info());
+        return res;
     }
 }
@@ -0,0 +1,180 @@
+package rewin.service.ubsi.log;
+
+import org.bson.RawBsonDocument;
+import rewin.ubsi.common.Util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 重复日志的合并：按(app, addr, type, code, tips)的指纹，窗口中的第一条日志正常写入，
+ * 之后的重复日志合并为一条汇总日志（记录重复次数及首次/最后时间），窗口结束时由后台任务写入
+ */
+public class Collapse {
+
+    // 一个指纹的窗口
+    static class Entry {
+        final Object[]  Key;            // app, addr, type, code, tips
+        long            Start;          // 窗口的开始时间
+        int             Repeat = 0;     // 合并的日志数量
+        long            First = 0;      // 第一条合并的日志的时间
+        long            Last = 0;       // 最后一条合并的日志的时间
+        Object[]        Data = null;    // 最后一条合并的日志
+        boolean         Removed = false;
+
+        Entry(Object[] key, long start) {
+            Key = key;
+            Start = start;
+        }
+
+        // 取出汇总日志并开始新的窗口
+        Summary reset(long start) {
+            Summary s = Repeat == 0 ? null : new Summary(Data, Repeat, First, Last);
+            Start = start;
+            Repeat = 0;
+            Data = null;
+            return s;
+        }
+    }
+
+    // 汇总日志
+    static class Summary {
+        final Object[]  Data;
+        final int       Repeat;
+        final long      First;
+        final long      Last;
+
+        Summary(Object[] data, int repeat, long first, long last) {
+            Data = data;
+            Repeat = repeat;
+            First = first;
+            Last = last;
+        }
+    }
+
+    static ConcurrentHashMap<Long, Entry> Table = new ConcurrentHashMap<>();
+    static ConcurrentLinkedQueue<Summary> Ready = new ConcurrentLinkedQueue<>();    // 等待写入的汇总日志
+    final static LongAdder Folded = new LongAdder();        // 合并的日志数量
+    final static LongAdder Summaries = new LongAdder();     // 写入的汇总日志数量
+    final static LongAdder Overflow = new LongAdder();      // 指纹表满而未合并的日志数量
+
+    // 日志的指纹
+    static long fingerprint(Object[] key) {
+        long h = 0;
+        for ( Object o : key )
+            h = h * 0x9E3779B97F4A7C15L + (o == null ? 0x5555 : Sketches.hash(o.toString()));
+        return h;
+    }
+
+    /** 合并重复的日志（由写日志接口调用），返回true表示已合并（不需要写入） */
+    static boolean fold(Object[] data) {
+        Config.Option option = Service.LoggerOption;
+        if ( option.collapse_window <= 0 || (option.collapse_exclude != null && option.collapse_exclude.contains(data[1])) )
+            return false;
+        Object[] key = { data[4], data[2], data[1], data[5], data[6] };
+        long hash = fingerprint(key);
+        long now = System.currentTimeMillis();
+        Entry e = Table.get(hash);
+        if ( e == null ) {
+            if ( Table.size() >= option.collapse_slots ) {
+                Overflow.increment();
+                return false;
+            }
+            e = Table.putIfAbsent(hash, new Entry(key, now));
+            if ( e == null )
+                return false;   // 窗口中的第一条日志正常写入
+        }
+        synchronized (e) {
+            if ( e.Removed || !Arrays.equals(e.Key, key) )
+                return false;   // 已被清除或指纹冲突
+            if ( now - e.Start >= option.collapse_window ) {
+                // 窗口已结束但尚未清除，汇总之前的日志并开始新的窗口
+                Summary s = e.reset(now);
+                if ( s != null )
+                    Ready.add(s);
+                return false;
+            }
+            long time = data[0] == null ? now : (Long) data[0];
+            if ( e.Repeat == 0 )
+                e.First = time;
+            e.Last = time;
+            e.Repeat ++;
+            e.Data = data;
+        }
+        Folded.increment();
+        return true;
+    }
+
+    /** 清除已结束的窗口并写入汇总日志（后台定时执行） */
+    static void sweep() {
+        sweep(false);
+    }
+
+    /** 清除窗口并写入汇总日志，all表示清除全部窗口 */
+    static void sweep(boolean all) {
+        long now = System.currentTimeMillis();
+        long window = Service.LoggerOption.collapse_window;
+        for ( Iterator<Entry> it = Table.values().iterator(); it.hasNext(); ) {
+            Entry e = it.next();
+            Summary s;
+            synchronized (e) {
+                if ( !all && now - e.Start < window )
+                    continue;
+                e.Removed = true;
+                s = e.reset(now);
+            }
+            it.remove();
+            if ( s != null )
+                Ready.add(s);
+        }
+        for ( Summary s = Ready.poll(); s != null; s = Ready.poll() )
+            emit(s);
+    }
+
+    // 写入汇总日志（主表及匹配的过滤表），时间为第一条合并的日志的时间，内容为最后一条合并的日志的内容
+    static void emit(Summary s) {
+        try {
+            Object[] data = s.Data.clone();
+            data[0] = s.First;
+            List<String> filters = Service.Matcher.match((Integer) data[1], (String) data[3], (String) data[4]);
+            Offload.Encoded enc = Offload.encode(data, 1, Util.toMap(new Object[] {
+                    Database.LOGS_REPEAT, s.Repeat,
+                    Database.LOGS_FIRST, s.First,
+                    Database.LOGS_LAST, s.Last,
+                    Database.LOGS_FILTERS, Service.single() && !filters.isEmpty() ? filters : null
+            }), filters);
+            RawBsonDocument doc = enc.Full;
+            Service.BatchDealer.addDoc(null, enc.doc(null));
+            if ( !Service.single() )
+                for ( String filterId : filters )
+                    Service.BatchDealer.addDoc(filterId, enc.doc(filterId));
+            Sketches.add(data, filters);
+            Tail.add(data, doc, filters);
+            Search.add(data, doc, filters);
+            Summaries.increment();
+        } catch (Exception e) {
+            System.out.println("[ERROR] rewin.service.log collapse " + e.toString());
+        }
+    }
+
+    /** 清除全部窗口（不写入汇总日志） */
+    static void clear() {
+        Table.clear();
+        Ready.clear();
+    }
+
+    /** 运行信息 */
+    static Map info() {
+        return Util.toMap(new Object[] {
+                "fingerprints", Table.size(),
+                "folded", Folded.sum(),
+                "summaries", Summaries.sum(),
+                "overflow", Overflow.sum()
+        });
+    }
+}
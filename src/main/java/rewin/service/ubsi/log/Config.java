@@ -1,5 +1,6 @@
 package rewin.service.ubsi.log;
 
+import rewin.ubsi.common.LogUtil;
 import rewin.ubsi.common.MongoUtil;
 
 import java.util.List;
@@ -9,6 +10,8 @@ import java.util.List;
  */
 public class Config {
 
+    public final static String OPTION_FILE = "rewin.ubsi.logger.json";   // 日志服务配置项的文件名
+
     public List<MongoUtil.Server>   mongo_servers;              // 服务器列表
     public List<MongoUtil.Server>   mongo_servers_restart;      // 服务器列表（重启后生效）
     public String                   mongo_servers_comment = MongoUtil.ServerComment;        // 服务器列表说明
@@ -21,4 +24,170 @@ public class Config {
     public MongoUtil.Option         mongo_option_restart;       // 配置项（重启后生效）
     public MongoUtil.OptionComment  mongo_option_comment = new MongoUtil.OptionComment();   // 配置项说明
 
+    public Option                   logger_option;              // 日志服务配置项
+    public Option                   logger_option_restart;      // 日志服务配置项（重启后生效）
+    public OptionComment            logger_option_comment = new OptionComment();            // 日志服务配置项说明
+
+    /** 限速规则 */
+    public static class Limit {
+        public String   by;             // 维度：app, tag, type
+        public String   value;          // 维度的值（type为数字的字符串）
+        public double   rate;           // 速度（条/秒），<=0表示不限
+    }
+
+    /** 日志服务的配置项 */
+    public static class Option {
+        public String   storage_mode = "copy";              // 过滤表的存储方式
+        public int      buffer_count = 65536;               // 每个缓冲队列的最大日志条数
+        public long     buffer_bytes = 64 * 1024 * 1024;    // 每个缓冲队列的最大字节数
+        public String   buffer_overflow = "drop_newest";    // 缓冲队列满时的处理策略
+        public int      buffer_timeout = 100;               // block策略的等待时间（毫秒）
+        public String   journal_path = "rewin.ubsi.modules/rewin.ubsi.logger/journal";   // 本地溢出日志的目录
+        public int      journal_segment = 64 * 1024 * 1024; // 溢出日志段文件的大小
+        public long     journal_bytes = 4L * 1024 * 1024 * 1024;    // 溢出日志的最大字节数
+        public int      journal_rate = 5000;                // 回放速度（条/秒）
+        public int      journal_retry = 5000;               // MongoDB写入失败后暂停写入的时间（毫秒）
+        public int      writer_threads = 4;                 // 写入线程的数量
+        public int      writer_inflight = 2;                // 每个数据表同时写入的最大批次数
+        public int      flush_count = 1000;                 // 每批写入的最大日志条数
+        public long     flush_bytes = 4 * 1024 * 1024;      // 每批写入的最大字节数
+        public int      flush_linger = 50;                  // 日志在缓冲中的最长等待时间（毫秒）
+        public boolean  flush_adaptive = true;              // 是否根据写入耗时自动调整批量
+        public int      flush_latency = 100;                // 自动调整批量的目标写入耗时（毫秒）
+        public int      metrics_interval = 0;               // 保存运行指标的间隔（秒）
+        public String   logs_partition = "none";            // 主表的时间分区方式
+        public Database.Retention logs_retention = null;    // 主表的保留策略
+        public Database.Storage logs_storage = null;        // 主表的存储选项
+        public int      expire_batch = 1000;                // 后台删除每批的日志条数
+        public int      expire_rate = 5000;                 // 后台删除的速度（条/秒）
+        public int      job_threads = 2;                    // 后台任务的线程数量
+        public int      cursor_limit = 1000;                // 游标查询每次返回的最大日志条数
+        public long     cursor_bytes = 4 * 1024 * 1024;     // 游标查询每次返回的最大字节数
+        public String   export_path = "rewin.ubsi.modules/rewin.ubsi.logger/export";     // 导出文件的目录
+        public int      export_threads = 4;                 // 每个导出任务的并行扫描线程数
+        public int      export_rate = 0;                    // 导出的速度（条/秒）
+        public int      export_file_count = 100000;         // 每个导出文件的最大日志条数
+        public long     cache_bytes = 32 * 1024 * 1024;     // 查询缓存的最大字节数
+        public int      cache_count = 10000;                // 查询缓存的最大条数
+        public int      cache_settle = 60000;               // 时间范围结束多久之后视为已过去（毫秒）
+        public int      cache_fresh = 1000;                 // 包含当前时间的缓存结果的最短有效时间（毫秒）
+        public int      cache_past = 60000;                 // 多实例部署时已过去的缓存结果的有效时间（毫秒）
+        public int      stats_interval = 10;                // 预聚合计数写入logs_stats表的间隔（秒）
+        public long     stats_max_age = 30 * 24;            // logs_stats表的保存时间（小时）
+        public int      sketch_interval = 0;                // 近似统计写入sketches表的间隔（秒）
+        public List<String> sketch_fields = java.util.Arrays.asList("addr", "app", "body.reqId");    // 统计不同值数量的字段
+        public int      sketch_topk = 10;                   // top-k统计保留的数量
+        public int      sketch_hours = 24;                  // 内存中保留的近似统计（小时）
+        public long     sketch_max_age = 7 * 24;            // sketches表的保存时间（小时）
+        public String   sketch_instance = "";               // 保存近似统计时本实例的名称
+        public int      trace_minutes = 0;                  // 内存中保留最近多少分钟的请求链路
+        public int      trace_count = 100000;               // 内存中保留的最大请求数量
+        public long     trace_bytes = 64 * 1024 * 1024;     // 内存中保留的请求链路的最大字节数
+        public int      trace_max_logs = 1000;              // 每个请求链路的最大日志条数
+        public int      tail_max = 100;                     // 实时订阅的最大数量
+        public int      tail_buffer = 10000;                // 每个订阅者缓冲的最大日志条数
+        public int      tail_lease = 60;                    // 订阅的租约时间（秒）
+        public int      tail_interval = 200;                // 发布到Redis频道的间隔（毫秒）
+        public int      tail_batch = 1000;                  // 每次发布的最大日志条数
+        public double   limit_app = 0;                      // 每个应用的缺省限速（条/秒）
+        public double   limit_tag = 0;                      // 每个应用分类的缺省限速（条/秒）
+        public double   limit_type = 0;                     // 每个日志分类的缺省限速（条/秒）
+        public List<Limit> limit_rules = null;              // 指定应用/应用分类/日志分类的限速
+        public double   limit_burst = 2;                    // 令牌桶的容量（秒）
+        public int      limit_slots = 65536;                // 令牌桶表的大小
+        public List<Integer> sample_types = java.util.Arrays.asList(LogUtil.ACCESS);   // 高负载时采样的日志分类
+        public double   sample_start = 0.5;                 // 开始采样的缓冲负载
+        public double   sample_min = 0.01;                  // 最低的采样比例
+        public int      collapse_window = 0;                // 合并重复日志的窗口（毫秒）
+        public int      collapse_slots = 10000;             // 指纹表的最大数量
+        public List<Integer> collapse_exclude = java.util.Arrays.asList(LogUtil.ACCESS);   // 不合并的日志分类
+        public int      search_hours = 0;                   // 全文检索索引保留的时间（小时）
+        public int      search_segment = 10;                // 索引分段的时间（分钟）
+        public long     search_bytes = 128 * 1024 * 1024;   // 索引的最大内存字节数
+        public int      search_queue = 100000;              // 等待建立索引的最大日志条数
+        public List<String> search_fields = java.util.Arrays.asList(Database.LOGS_TIPS, Database.LOGS_CODE);  // 索引的字段
+        public int      search_text = 1024;                 // 每个字段索引的最大字符数
+        public int      search_limit = 1000;                // 检索返回的最大数量
+        public int      aggregate_threads = 8;              // 并行聚合的线程数
+        public int      aggregate_split = 8;                // 并行聚合时每个数据表拆分的范围数
+        public long     aggregate_split_min = 100000;       // 拆分数据表的最小日志条数
+    }
+
+    /** 日志服务配置项的说明 */
+    public static class OptionComment {
+        public String   storage_mode = "过滤器日志的存储方式（重启后生效），copy:匹配的日志复制写入各过滤表（logs_过滤器ID），single:只写入主表一次，匹配的过滤器ID记录在filters字段中，过滤器通过部分索引及视图（logs_过滤器ID）提供；切换方式时不迁移已有的数据";
+        public String   buffer_count = "每个缓冲队列（主表/过滤表）的最大日志条数，向上取整为2的幂（如100000按131072）；每个队列创建时按容量预先分配约24字节/条的槽位（65536时约1.5MB），与是否有日志无关，过滤器较多时应适当减小";
+        public String   buffer_bytes = "每个缓冲队列的最大字节数，<=0表示不限";
+        public String   buffer_overflow = "缓冲队列满时的处理策略，drop_newest:丢弃新日志，drop_oldest:丢弃最早的日志，block:等待buffer_timeout毫秒后丢弃，spill:溢出到本地磁盘";
+        public String   buffer_timeout = "block策略的等待时间（毫秒）";
+        public String   journal_path = "本地溢出日志的目录（MongoDB不可用或缓冲队列满时写入），空表示不启用";
+        public String   journal_segment = "溢出日志段文件（内存映射）的字节数";
+        public String   journal_bytes = "溢出日志未回放数据的最大字节数，<=0表示不限";
+        public String   journal_rate = "MongoDB恢复后回放溢出日志的速度（条/秒）";
+        public String   journal_retry = "MongoDB写入失败后暂停写入（直接溢出到本地）的时间（毫秒）";
+        public String   writer_threads = "写入线程池的线程数量，各数据表（主表/过滤表）并行写入";
+        public String   writer_inflight = "每个数据表同时写入的最大批次数";
+        public String   flush_count = "每批写入的最大日志条数，缓冲中的日志达到批量条数时立即写入";
+        public String   flush_bytes = "每批写入的最大字节数，缓冲中的日志达到此字节数时立即写入";
+        public String   flush_linger = "日志在缓冲中的最长等待时间（毫秒），条数/字节数/等待时间先满足任一条件即写入";
+        public String   flush_adaptive = "是否根据写入耗时自动调整每批的条数（不超过flush_count）";
+        public String   flush_latency = "自动调整批量的目标写入耗时（毫秒），超过时减小批量，批量已满且低于一半时增大批量";
+        public String   metrics_interval = "定期将运行指标保存到metrics表的间隔（秒），0表示不保存";
+        public String   logs_partition = "主表（logs）的时间分区方式，none:不分区，day:按天（logs_yyyyMMdd），hour:按小时（logs_yyyyMMddHH），分区表会提前创建";
+        public String   logs_retention = "主表的保留策略，结构：{ max_age: 最长保存时间（小时）, max_bytes: 最大数据字节数 }，null表示永久保留；过滤表的保留策略在过滤器的retention字段中设置";
+        public String   logs_storage = "主表的存储选项，结构：{ compressor: 块压缩方式（snappy, zlib, zstd, none，只对新建的表/分区有效）, body_offload: body（BSON编码）超过此字节数时压缩后分离存储到logs_bodies表（<=0表示不分离） }，null表示缺省；过滤表的存储选项在过滤器的storage字段中设置。分离的body中只保留较短的标量字段用于查询，find/findCursor需要返回body时自动加载完整的body；logs_bodies表按所有日志表中最长的max_age清理";
+        public String   expire_batch = "后台删除（过期清理/clear）每批删除的日志条数，按_id顺序分批删除";
+        public String   expire_rate = "后台删除的速度（条/秒），<=0表示不限";
+        public String   job_threads = "后台任务（删除/导出等）的线程数量";
+        public String   cursor_limit = "游标查询（findCursor/findNext）每次返回的最大日志条数";
+        public String   cursor_bytes = "游标查询每次返回的最大字节数（BSON编码），<=0表示不限";
+        public String   export_path = "导出文件的目录，每个导出任务一个子目录（以导出ID命名），包含压缩的数据文件及检查点";
+        public String   export_threads = "每个导出任务的并行扫描线程数，数据表按_id范围拆分后并行导出";
+        public String   export_rate = "每个导出任务的速度（条/秒），<=0表示不限";
+        public String   export_file_count = "每个导出文件的最大日志条数，每写完一个文件更新一次检查点";
+        public String   cache_bytes = "count/aggregate查询结果缓存的最大字节数（估计值），<=0表示不缓存";
+        public String   cache_count = "查询结果缓存的最大条数，超过时按LRU淘汰";
+        public String   cache_settle = "查询条件中time的上限早于当前时间多久（毫秒）视为已过去，单实例部署时此类结果一直有效（直到写入time早于此界限的迟到日志、删除数据或修改过滤器）";
+        public String   cache_fresh = "包含当前时间的结果的最短有效时间（毫秒），超过后写入水位变化即失效；多实例部署时只按此时间判断";
+        public String   cache_past = "多实例部署时时间范围已过去的结果的有效时间（毫秒），本实例看不到其他实例的迟到写入及数据删除，超过此时间后失效";
+        public String   stats_interval = "按(分钟, type, app, service, entry)预聚合的日志数量写入logs_stats表的间隔（秒），0表示不统计（重启后生效）";
+        public String   stats_max_age = "logs_stats表的保存时间（小时），<=0表示永久保存";
+        public String   sketch_interval = "按(过滤器, 小时)维护的近似统计（HyperLogLog/top-k）写入sketches表的间隔（秒），0表示不统计（缺省，distinct/topApps没有数据），建议60（重启后生效）";
+        public String   sketch_fields = "统计不同值数量（HyperLogLog）的字段，可以是addr, tag, app, code, tips或body.xxx";
+        public String   sketch_topk = "按日志分类统计日志最多的应用时保留的数量（实际跟踪的候选数量为4倍）";
+        public String   sketch_hours = "内存中保留最近多少小时的近似统计，更早的只从sketches表中查询";
+        public String   sketch_max_age = "sketches表的保存时间（小时），<=0表示永久保存";
+        public String   sketch_instance = "保存近似统计时本实例的名称（进程重启后据此加载本实例之前的统计，多实例部署时各实例必须不同），为空时使用主机名，同一主机上运行多个实例时必须配置";
+        public String   trace_minutes = "内存中保留最近多少分钟的请求链路（访问日志按body.reqId索引），getTrace优先从内存中查询，0表示不保留（缺省），建议10；多实例部署时只查询MongoDB";
+        public String   trace_count = "内存中保留的最大请求（reqId）数量，超过时淘汰最早的请求";
+        public String   trace_bytes = "内存中保留的请求链路的最大字节数（BSON编码），超过时淘汰最早的请求";
+        public String   trace_max_logs = "每个请求链路的最大日志条数，超过时不再保存到内存（从MongoDB查询）";
+        public String   tail_max = "实时订阅（tail）的最大数量，包括其他实例同步的订阅";
+        public String   tail_buffer = "每个订阅者缓冲的最大日志条数，缓冲满时丢弃新日志并计数（不影响日志写入）";
+        public String   tail_lease = "订阅的租约时间（秒），超时未通过tailPoll续约时自动取消";
+        public String   tail_interval = "将缓冲中的日志发布到订阅者的Redis频道的间隔（毫秒）";
+        public String   tail_batch = "每次发布到Redis频道的最大日志条数";
+        public String   limit_app = "每个应用（app）的缺省限速（条/秒），<=0表示不限，超过的日志被丢弃（计入logs_stats的limited）";
+        public String   limit_tag = "每个应用分类（tag）的缺省限速（条/秒），<=0表示不限";
+        public String   limit_type = "每个日志分类（type）的缺省限速（条/秒），<=0表示不限";
+        public String   limit_rules = "指定值的限速，优先于缺省限速，结构：[{ by: app|tag|type, value: 值（type为数字的字符串）, rate: 条/秒（<=0表示不限） }]";
+        public String   limit_burst = "令牌桶的容量（秒），即允许的突发日志数量为限速的多少倍";
+        public String   limit_slots = "令牌桶表的大小（向上取整为2的幂），表满（探测超过3/4的槽位）时新的app/tag/type不再限速";
+        public String   sample_types = "缓冲持续高负载时自动采样的日志分类，保留的日志中sample字段为采样权重（代表的日志数量），其他分类（如错误日志）不采样";
+        public String   sample_start = "开始采样的缓冲负载（写入通道的最高使用率的移动平均，0~1），超过后采样比例线性降低";
+        public String   sample_min = "最低的采样比例（0~1）";
+        public String   collapse_window = "合并重复日志（app, addr, type, code, tips都相同）的窗口（毫秒），窗口中的第一条日志正常写入，之后的合并为一条汇总日志（repeat: 重复次数, first/last: 首次/最后时间），0表示不合并";
+        public String   collapse_slots = "指纹表的最大数量，表满时新的日志不合并，窗口结束后清除";
+        public String   collapse_exclude = "不合并的日志分类（如访问日志，body中的reqId各不相同）";
+        public String   search_hours = "全文检索（search）的内存索引保留最近多少小时收到的日志，0表示不建立索引（缺省，search不可用），建议2（重启后生效）；多实例部署时只检索本实例收到的日志";
+        public String   search_segment = "索引分段的时间（分钟），按段淘汰过期的索引";
+        public String   search_bytes = "索引的最大内存字节数（估计值），超过时淘汰最早的段";
+        public String   search_queue = "等待建立索引的最大日志条数（重启后生效），字节数不超过search_bytes的1/8，队列满时不索引新日志并计数（不影响日志写入）";
+        public String   search_fields = "建立索引的字段，可以是\"body.xxx\"格式，非字符串的值按toString()索引";
+        public String   search_text = "每个字段建立索引的最大字符数，超过的部分不能检索";
+        public String   search_limit = "search返回的最大日志数量";
+        public String   aggregate_threads = "可分解的聚合（$match + $group($sum/$min/$max/$count)或$count）并行执行的线程数（ForkJoinPool），<=0表示aggregate不并行执行（重启后生效）";
+        public String   aggregate_split = "并行聚合时每个数据表（分区）按_id范围拆分的数量";
+        public String   aggregate_split_min = "日志条数（估计值）少于此数量的数据表不拆分";
+    }
 }
@@ -0,0 +1,209 @@
+package rewin.service.ubsi.log;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import rewin.ubsi.common.Util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * 游标查询：按照(time, _id)分页（keyset），游标为不透明的base64字符串，保存查询条件及上一页的最后位置，
+ * 服务端不保存状态，多实例部署时可以在任一实例上继续查询
+ */
+public class Cursor {
+
+    final static DocumentCodec Codec = new DocumentCodec();
+
+    // 游标中的字段
+    final static String FILTER = "f";       // 过滤器ID
+    final static String QUERY = "q";        // 查询条件
+    final static String ORDER = "o";        // 1:升序，-1:降序
+    final static String FIELDS = "p";       // 返回的字段
+    final static String TIME = "t";         // 上一页最后一条记录的time
+    final static String ID = "i";           // 上一页最后一条记录的_id
+
+    /** 游标编码 */
+    static String encode(Document state) {
+        RawBsonDocument raw = new RawBsonDocument(state, Codec);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(LogCodec.toBytes(raw));
+    }
+
+    /** 游标解码 */
+    static Document decode(String token) throws Exception {
+        try {
+            RawBsonDocument raw = new RawBsonDocument(Base64.getUrlDecoder().decode(token));
+            return Codec.decode(raw.asBsonReader(), DecoderContext.builder().build());
+        } catch (Exception e) {
+            throw new Exception("invalid cursor");
+        }
+    }
+
+    /** 新建游标 */
+    static Document create(String filterId, Map query, int order, Map fields) {
+        Document state = new Document(ORDER, order < 0 ? -1 : 1);
+        if ( filterId != null && !filterId.trim().isEmpty() )
+            state.append(FILTER, filterId.trim());
+        if ( query != null )
+            state.append(QUERY, new Document(query));
+        if ( fields != null )
+            state.append(FIELDS, new Document(fields));
+        return state;
+    }
+
+    // 返回的字段必须包含time及_id
+    static Document projection(Document fields) {
+        if ( fields == null || fields.isEmpty() )
+            return null;
+        Document res = new Document(fields);
+        for ( String key : Arrays.asList(Database.LOGS_TIME, "_id") ) {
+            Object v = res.get(key);
+            if ( v != null && (Boolean.FALSE.equals(v) || (v instanceof Number && ((Number) v).intValue() == 0)) )
+                res.remove(key);
+        }
+        boolean include = false;
+        for ( Object v : res.values() )
+            include = include || Boolean.TRUE.equals(v) || (v instanceof Number && ((Number) v).intValue() != 0);
+        if ( include )
+            res.putIfAbsent(Database.LOGS_TIME, 1);
+        return res.isEmpty() ? null : res;
+    }
+
+    // 在查询条件中加入上一页最后位置之后的条件
+    static Document where(Document state) {
+        List<Document> and = new ArrayList<>();
+        Document query = (Document) state.get(QUERY);
+        if ( query != null && !query.isEmpty() )
+            and.add(query);
+        if ( state.containsKey(TIME) ) {
+            boolean desc = state.getInteger(ORDER) < 0;
+            Object time = state.get(TIME);
+            and.add(new Document(Database.LOGS_TIME, new Document(desc ? "$lte" : "$gte", time)));   // 用于选取分区及使用索引
+            and.add(new Document("$or", Arrays.asList(
+                    new Document(Database.LOGS_TIME, new Document(desc ? "$lt" : "$gt", time)),
+                    new Document(Database.LOGS_TIME, time).append("_id", new Document(desc ? "$lt" : "$gt", state.get(ID)))
+            )));
+        }
+        return and.isEmpty() ? new Document() : and.size() == 1 ? and.get(0) : new Document("$and", and);
+    }
+
+    /**
+     * 查询下一页，最多返回limit条（不超过cursor_limit）及cursor_bytes字节
+     * @return { docs: 日志数据列表, next: 下一页的游标，null表示没有更多数据 }
+     */
+    static Map next(Document state, int limit) {
+        Config.Option option = Service.LoggerOption;
+        int max = Math.max(1, limit <= 0 ? option.cursor_limit : Math.min(limit, option.cursor_limit));
+        long maxBytes = option.cursor_bytes <= 0 ? Long.MAX_VALUE : option.cursor_bytes;
+
+        int order = state.getInteger(ORDER) < 0 ? -1 : 1;
+        Document query = where(state);
+        Document sort = new Document(Database.LOGS_TIME, order).append("_id", order);
+        Document fields = Offload.project(projection((Document) state.get(FIELDS)));
+        List<String> cnames = Service.route(state.getString(FILTER), query);
+        query = Service.scope(state.getString(FILTER), query);
+
+        List<Document> docs = new ArrayList<>();
+        boolean full;
+        if ( Partition.isDisjoint(Service.table(state.getString(FILTER)), cnames) ) {
+            // 分区之间时间不重叠，依次查询
+            if ( order < 0 )
+                Collections.reverse(cnames);
+            long bytes = 0;
+            full = false;
+            for ( int i = 0; i < cnames.size() && !full; i ++ ) {
+                try (MongoCursor<RawBsonDocument> it = find(cnames.get(i), query, sort, fields, max - docs.size())) {
+                    while ( it.hasNext() ) {
+                        RawBsonDocument raw = it.next();
+                        docs.add(Codec.decode(raw.asBsonReader(), DecoderContext.builder().build()));
+                        bytes += LogCodec.sizeOf(raw);
+                        if ( docs.size() >= max || bytes >= maxBytes ) {
+                            full = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        } else {
+            // 各表同时打开游标，每次取出排序最前的一条（k路归并），条数及字节数的限制对所有表共同生效
+            Comparator<Map> cmp = Partition.comparator(sort);
+            PriorityQueue<Head> heads = new PriorityQueue<>((x, y) -> cmp.compare(x.Doc, y.Doc));
+            List<MongoCursor<RawBsonDocument>> its = new ArrayList<>();
+            int batch = Math.max(16, Math.min(1000, max / cnames.size()));     // 各表预读的记录数
+            try {
+                for ( String cname : cnames ) {
+                    MongoCursor<RawBsonDocument> it = find(cname, query, sort, fields, max, batch);
+                    its.add(it);
+                    if ( it.hasNext() )
+                        heads.add(new Head(it));
+                }
+                long bytes = 0;
+                full = false;
+                Head head;
+                while ( (head = heads.poll()) != null ) {
+                    docs.add(head.Doc);
+                    bytes += head.Bytes;
+                    if ( docs.size() >= max || bytes >= maxBytes ) {
+                        full = true;
+                        break;
+                    }
+                    if ( head.Cursor.hasNext() )
+                        heads.add(new Head(head.Cursor));
+                }
+            } finally {
+                for ( MongoCursor<RawBsonDocument> it : its )
+                    it.close();
+            }
+        }
+
+        Offload.load(docs, fields);    // 需要返回body时加载分离存储的body
+
+        String next = null;
+        if ( full && !docs.isEmpty() ) {
+            Document last = docs.get(docs.size() - 1);
+            Document state1 = new Document(state);
+            state1.put(TIME, last.get(Database.LOGS_TIME));
+            state1.put(ID, last.get("_id"));
+            next = encode(state1);
+        }
+        return Util.toMap(new Object[] {
+                "docs", docs,
+                "next", next
+        });
+    }
+
+    // 查询一个数据表，逐批读取
+    static MongoCursor<RawBsonDocument> find(String cname, Document query, Document sort, Document fields, int limit) {
+        return find(cname, query, sort, fields, limit, Math.min(limit, 1000));
+    }
+
+    // 查询一个数据表，每批读取batch条
+    static MongoCursor<RawBsonDocument> find(String cname, Document query, Document sort, Document fields, int limit, int batch) {
+        MongoCollection<RawBsonDocument> col = Service.MongoDBLogs.getCollection(cname, RawBsonDocument.class);
+        return col.find(query).sort(sort).projection(fields).limit(limit).batchSize(Math.min(limit, batch)).iterator();
+    }
+
+    // 归并时一个表的当前记录
+    static class Head {
+        final MongoCursor<RawBsonDocument> Cursor;
+        final Document  Doc;
+        final long      Bytes;
+
+        Head(MongoCursor<RawBsonDocument> cursor) {
+            RawBsonDocument raw = cursor.next();
+            Cursor = cursor;
+            Doc = Codec.decode(raw.asBsonReader(), DecoderContext.builder().build());
+            Bytes = LogCodec.sizeOf(raw);
+        }
+    }
+}
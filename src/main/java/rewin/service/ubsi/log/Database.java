@@ -10,6 +10,11 @@ public class Database {
     public final static String DB = "ubsi_logs";            // Database的名字
     public final static String COL_LOGS = "logs";           // Collection的名字（body字段为可变类型，所以不能使用PojoCodec）
     public final static String COL_FILTERS = "filters";     // Collection的名字
+    public final static String COL_METRICS = "metrics";     // Collection的名字（运行指标的快照）
+    public final static String COL_STATS = "logs_stats";    // Collection的名字（按分钟预聚合的日志数量）
+    public final static String COL_SKETCHES = "sketches";   // Collection的名字（按小时的近似统计）
+    public final static String COL_BODIES = "logs_bodies";  // Collection的名字（分离存储的压缩body，_id同日志）
+    public final static String COL_MAPREDUCE = "mapreduce"; // Collection名字的前缀（跨分区mapReduce的临时结果）
 
     /** COL_LOGS表的字段名字 */
     public static String LOGS_TIME = "time";                // long, 时间戳
@@ -33,6 +38,32 @@ public class Database {
         }
     }
 
+    /** 日志的保留策略 */
+    public static class Retention {
+        public long     max_age;        // 最长保存时间（小时），<=0表示不限
+        public long     max_bytes;      // 最大数据字节数（所有分区合计），<=0表示不限
+    }
+
+    /** COL_LOGS表中采样保留的日志的权重字段（代表的日志数量），未采样的日志没有此字段 */
+    public static String LOGS_SAMPLE = "sample";
+
+    /** COL_LOGS表中重复日志的汇总字段，窗口中第一条日志单独写入，汇总日志的time为first */
+    public static String LOGS_REPEAT = "repeat";            // int, 合并的重复日志数量（不含单独写入的第一条）
+    public static String LOGS_FIRST = "first";              // long, 第一条合并的日志的时间
+    public static String LOGS_LAST = "last";                // long, 最后一条合并的日志的时间
+
+    /** COL_LOGS表中匹配的过滤器ID（单写模式），没有匹配的过滤器时没有此字段 */
+    public static String LOGS_FILTERS = "filters";          // [String], 过滤器ID
+
+    /** COL_LOGS表中分离存储的body的原始字节数，body中只保留较短的标量字段，完整的body在COL_BODIES表中 */
+    public static String LOGS_OFFLOAD = "body_offload";
+
+    /** 数据表的存储选项 */
+    public static class Storage {
+        public String   compressor;     // 块压缩方式（建表时设置）：snappy, zlib, zstd, none，null表示MongoDB的缺省值
+        public long     body_offload;   // body超过此字节数时分离存储，<=0表示不分离
+    }
+
     /** COL_FILTERS表的结构 */
     public static class Filter {
         public String               _id;            // 名字，不能重复，作为表名字的后缀
@@ -40,5 +71,9 @@ public class Database {
         public List<String>         tag;            // 应用分类
         public List<String>         app;            // 应用ID
         public List<List<Index>>    index;          // 索引
+        public String               partition;      // 时间分区方式，null/"none":不分区，"day":按天，"hour":按小时
+        public Retention            retention;      // 保留策略，null表示永久保留
+        public Storage              storage;        // 存储选项，null表示缺省
+        public long                 version;        // 版本，每次修改加1，用于多实例之间的增量同步
     }
 }
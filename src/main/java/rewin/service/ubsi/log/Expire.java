@@ -0,0 +1,220 @@
+package rewin.service.ubsi.log;
+
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 日志的后台删除：按照保留策略过期清理，以及异步执行的clear；
+ * 整个分区过期时直接删除分区表，否则按_id顺序分批、限速删除，避免长时间占用MongoDB及产生大量oplog
+ */
+public class Expire {
+
+    final static String JOB_EXPIRE = "expire";
+    final static String JOB_CLEAR = "clear";
+
+    // 时间戳对应的最小ObjectId（_id的前4个字节是秒级时间戳）
+    static ObjectId minId(long time) {
+        return new ObjectId(ByteBuffer.allocate(12).putInt((int)(time / 1000)).array());
+    }
+
+    // 删除分区表，返回删除的日志数量（估计值）
+    static long drop(String cname) {
+        MongoCollection<Document> col = Service.MongoDBLogs.getCollection(cname);
+        long n = col.estimatedDocumentCount();
+        col.drop();
+        Service.Collections.remove(cname);
+        if ( Service.single() && Database.COL_LOGS.equals(Partition.base(cname)) )
+            for ( Database.Filter filter : Service.Filters.values() ) {
+                // 单写模式：同时删除主表分区对应的过滤器视图
+                String view = Service.view(filter._id, cname);
+                Service.MongoDBLogs.getCollection(view).drop();
+                Service.Collections.remove(view);
+            }
+        return n;
+    }
+
+    // 数据表的数据字节数
+    static long sizeOf(String cname) {
+        Document res = Service.MongoDBLogs.runCommand(new Document("collStats", cname));
+        Object size = res.get("size");
+        return size instanceof Number ? ((Number) size).longValue() : 0;
+    }
+
+    /**
+     * 按_id顺序分批删除满足条件的日志，最多删除max条，返回删除的数量
+     */
+    static long delete(Jobs.Job job, String cname, Document query, long max) throws Exception {
+        MongoCollection<Document> col = Service.MongoDBLogs.getCollection(cname);
+        return batch(job, col, query, max, ids -> col.deleteMany(ids).getDeletedCount());
+    }
+
+    /**
+     * 单写模式：按_id顺序分批从满足条件的日志的filters字段中去掉过滤器ID（$pull），返回处理的数量
+     */
+    static long pull(Jobs.Job job, String cname, String filterId, Document query) throws Exception {
+        MongoCollection<Document> col = Service.MongoDBLogs.getCollection(cname);
+        Document update = new Document("$pull", new Document(Database.LOGS_FILTERS, filterId));
+        return batch(job, col, Service.scope(filterId, query), Long.MAX_VALUE, ids -> col.updateMany(ids, update).getModifiedCount());
+    }
+
+    /**
+     * 单写模式：从主表（各分区）中满足条件的日志中去掉过滤器ID（clear接口及删除过滤器的后台任务）
+     */
+    static void pull(Jobs.Job job, List<String> cnames, String filterId, Map query) throws Exception {
+        for ( String cname : cnames ) {
+            job.check();
+            pull(job, cname, filterId, query == null ? new Document() : new Document(query));
+        }
+    }
+
+    // 按_id顺序分批处理满足条件的日志，每批由action处理（参数为_id的条件），最多max条，返回处理的数量
+    static long batch(Jobs.Job job, MongoCollection<Document> col, Document query, long max, Function<Bson, Long> action) throws Exception {
+        int batch = Math.max(1, Service.LoggerOption.expire_batch);
+        Object last = null;
+        long n = 0;
+        while ( n < max ) {
+            job.check();
+            Document q = query;
+            if ( last != null ) {
+                Document next = new Document("_id", new Document("$gt", last));
+                q = query.isEmpty() ? next : new Document("$and", Arrays.asList(query, next));
+            }
+            List<Object> ids = new ArrayList<>();
+            for ( Document doc : col.find(q).sort(new Document("_id", 1)).projection(new Document("_id", 1)).limit((int)Math.min(batch, max - n)) )
+                ids.add(doc.get("_id"));
+            if ( ids.isEmpty() )
+                break;
+            last = ids.get(ids.size() - 1);
+            long done = action.apply(new Document("_id", new Document("$in", ids)));
+            n += done;
+            job.Done.add(done);
+            job.pace(ids.size(), Service.LoggerOption.expire_rate);
+        }
+        return n;
+    }
+
+    /**
+     * 删除日志（clear接口的后台任务），查询条件只有time且覆盖整个分区时直接删除分区表
+     */
+    static void clear(Jobs.Job job, String base, List<String> cnames, Map query) throws Exception {
+        long[] range = Partition.range(query);
+        boolean timeOnly = query == null || (query.size() == 1 && query.containsKey(Database.LOGS_TIME));
+        for ( String cname : cnames ) {
+            job.check();
+            long[] span = Partition.span(base, cname);
+            if ( timeOnly && span != null && span[0] >= range[0] && span[1] - 1 <= range[1] )
+                job.Done.add(drop(cname));
+            else
+                delete(job, cname, query == null ? new Document() : new Document(query), Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * 按照保留策略清理一个主表/过滤表（包括所有分区）
+     */
+    static void retain(Jobs.Job job, String base, Database.Retention retention) throws Exception {
+        if ( retention == null )
+            return;
+        List<String> cnames = Partition.all(base, Service.Collections);
+        if ( retention.max_age > 0 ) {
+            long cutoff = System.currentTimeMillis() - retention.max_age * 3600 * 1000;
+            for ( String cname : new ArrayList<>(cnames) ) {
+                job.check();
+                long[] span = Partition.span(base, cname);
+                if ( span != null && span[1] <= cutoff ) {
+                    job.Done.add(drop(cname));      // 整个分区已过期
+                    cnames.remove(cname);
+                } else if ( span == null || span[0] < cutoff )
+                    delete(job, cname, new Document("_id", new Document("$lt", minId(cutoff))), Long.MAX_VALUE);
+            }
+        }
+        if ( retention.max_bytes > 0 && !cnames.isEmpty() ) {
+            long[] sizes = new long[cnames.size()];
+            long total = 0;
+            for ( int i = 0; i < sizes.length; i ++ )
+                total += sizes[i] = sizeOf(cnames.get(i));
+            // 删除最早的分区（保留最新的分区）
+            int i = 0;
+            for ( ; total > retention.max_bytes && i < cnames.size() - 1; i ++ ) {
+                job.check();
+                if ( Partition.span(base, cnames.get(i)) == null )
+                    break;      // 未分区的基础表
+                job.Done.add(drop(cnames.get(i)));
+                total -= sizes[i];
+            }
+            // 按比例删除最早的日志
+            if ( total > retention.max_bytes && sizes[i] > 0 ) {
+                long count = Service.MongoDBLogs.getCollection(cnames.get(i)).estimatedDocumentCount();
+                long n = (long)Math.ceil((double)count * Math.min(sizes[i], total - retention.max_bytes) / sizes[i]);
+                delete(job, cnames.get(i), new Document(), n);
+            }
+        }
+    }
+
+    /**
+     * 单写模式：按照过滤器的保留策略（只支持max_age）从过期的日志中去掉过滤器ID，日志本身按主表的保留策略删除
+     */
+    static void retainFilter(Jobs.Job job, Database.Filter filter) throws Exception {
+        if ( filter.retention == null || filter.retention.max_age <= 0 )
+            return;
+        long cutoff = System.currentTimeMillis() - filter.retention.max_age * 3600 * 1000;
+        for ( String cname : Partition.all(Database.COL_LOGS, Service.Collections) ) {
+            job.check();
+            long[] span = Partition.span(Database.COL_LOGS, cname);
+            if ( span == null || span[0] < cutoff )
+                pull(job, cname, filter._id, new Document("_id", new Document("$lt", minId(cutoff))));
+        }
+    }
+
+    // 过期清理任务：主表、所有过滤表及logs_stats/sketches/logs_bodies表
+    static void retainAll(Jobs.Job job) throws Exception {
+        if ( Service.LoggerOption.stats_max_age > 0 ) {
+            long cutoff = System.currentTimeMillis() - Service.LoggerOption.stats_max_age * 3600 * 1000;
+            delete(job, Database.COL_STATS, new Document(Database.LOGS_TIME, new Document("$lt", cutoff)), Long.MAX_VALUE);
+        }
+        if ( Service.LoggerOption.sketch_max_age > 0 ) {
+            long cutoff = System.currentTimeMillis() - Service.LoggerOption.sketch_max_age * 3600 * 1000;
+            delete(job, Database.COL_SKETCHES, new Document(Database.LOGS_TIME, new Document("$lt", cutoff)), Long.MAX_VALUE);
+        }
+        long age = Offload.maxAge();
+        if ( age > 0 && Service.Collections.contains(Database.COL_BODIES) ) {
+            long cutoff = System.currentTimeMillis() - age * 3600 * 1000;
+            delete(job, Database.COL_BODIES, new Document("_id", new Document("$lt", minId(cutoff))), Long.MAX_VALUE);
+        }
+        long done = job.Done.sum();
+        retain(job, Database.COL_LOGS, Service.LoggerOption.logs_retention);
+        if ( job.Done.sum() != done ) {
+            if ( Service.single() )
+                QueryCache.clear();     // 单写模式时过滤器的日志也被删除
+            else
+                QueryCache.invalidate(null);
+        }
+        for ( Database.Filter filter : Service.Filters.values() ) {
+            done = job.Done.sum();
+            if ( Service.single() )
+                retainFilter(job, filter);
+            else
+                retain(job, Database.COL_LOGS + "_" + filter._id, filter.retention);
+            if ( job.Done.sum() != done )
+                QueryCache.invalidate(filter._id);
+        }
+    }
+
+    /** 启动过期清理任务（由后台维护定期调用，上一次的任务未结束时忽略） */
+    static void schedule() {
+        boolean need = Service.LoggerOption.logs_retention != null || Service.LoggerOption.stats_max_age > 0 || Service.LoggerOption.sketch_max_age > 0;
+        for ( Database.Filter filter : Service.Filters.values() )
+            need = need || filter.retention != null;
+        if ( need && !Jobs.isRunning(JOB_EXPIRE) )
+            Jobs.submit(JOB_EXPIRE, null, Expire::retainAll);
+    }
+}
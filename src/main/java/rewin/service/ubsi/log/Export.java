@@ -0,0 +1,260 @@
+package rewin.service.ubsi.log;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.ObjectId;
+import rewin.ubsi.common.Util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 日志导出：将数据表（包括分区）按_id范围拆分后并行扫描，写入本地的压缩文件（NDJSON或BSON），
+ * 每个文件写完后更新检查点，中断后可以从检查点继续导出
+ */
+public class Export {
+
+    final static String JOB_EXPORT = "export";
+    final static String CHECKPOINT = "checkpoint.json";
+    final static String NDJSON = "ndjson";
+    final static String BSON = "bson";
+
+    final static JsonWriterSettings JsonData = JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
+    final static JsonWriterSettings JsonState = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+
+    /** 新的导出任务 */
+    static Jobs.Job start(String filterId, Map query, String format) throws Exception {
+        String fmt = format == null ? NDJSON : format.trim().toLowerCase();
+        if ( !NDJSON.equals(fmt) && !BSON.equals(fmt) )
+            throw new Exception("invalid format");
+        Document state = new Document("filterId", filterId)
+                .append("query", query == null ? null : new Document(query))
+                .append("format", fmt)
+                .append("ranges", null);
+        return submit(null, state);
+    }
+
+    /** 从检查点继续导出 */
+    static Jobs.Job resume(String exportId) throws Exception {
+        if ( exportId == null || exportId.contains("/") || exportId.contains("\\") || exportId.contains("..") )
+            throw new Exception("invalid export id");
+        File file = new File(new File(Service.LoggerOption.export_path, exportId), CHECKPOINT);
+        if ( !file.exists() )
+            throw new Exception("export not found");
+        Document state = Document.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        return submit(exportId, state);
+    }
+
+    // 提交任务，导出ID缺省为任务ID
+    static Jobs.Job submit(String exportId, Document state) {
+        return Jobs.submit(JOB_EXPORT, Util.toMap(new Object[] {
+                "exportId", exportId,
+                "filterId", state.get("filterId"),
+                "query", state.get("query"),
+                "format", state.get("format")
+        }), job -> run(job, exportId == null ? job.Id : exportId, state));
+    }
+
+    // 保存检查点
+    static void save(File dir, Document state) throws Exception {
+        synchronized (state) {
+            File tmp = new File(dir, CHECKPOINT + ".tmp");
+            Files.write(tmp.toPath(), state.toJson(JsonState).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), new File(dir, CHECKPOINT).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    // 按照_id（ObjectId的时间戳）将各数据表拆分为多个范围
+    static List<Document> split(Document state, int parts) {
+        List<Document> ranges = new ArrayList<>();
+        for ( String cname : Service.route(state.getString("filterId"), (Map) state.get("query")) )
+            for ( ObjectId[] r : Aggregator.split(cname, parts) )
+                ranges.add(new Document("cname", cname)
+                        .append("index", ranges.size())
+                        .append("from", r[0])
+                        .append("to", r[1])
+                        .append("last", null)
+                        .append("files", 0)
+                        .append("count", 0L)
+                        .append("done", false));
+        return ranges;
+    }
+
+    // 执行导出
+    @SuppressWarnings("unchecked")
+    static void run(Jobs.Job job, String exportId, Document state) throws Exception {
+        Config.Option option = Service.LoggerOption;
+        File dir = new File(option.export_path, exportId);
+        if ( !dir.exists() && !dir.mkdirs() )
+            throw new Exception("can't create " + dir.getAbsolutePath());
+        int threads = Math.max(1, option.export_threads);
+        if ( state.get("ranges") == null ) {
+            state.put("ranges", split(state, threads * 2));
+            save(dir, state);
+        }
+        List<Document> ranges = (List<Document>) state.get("ranges");
+        job.Result = Util.toMap(new Object[] { "exportId", exportId, "path", dir.getAbsolutePath() });
+        if ( state.get("query") == null && !Service.single() ) {
+            long total = 0;
+            for ( String cname : collections(ranges) )
+                total += Service.MongoDBLogs.getCollection(cname).estimatedDocumentCount();
+            job.Total = total;
+        }
+        for ( Document range : ranges )
+            job.Done.add(((Number) range.get("count")).longValue());
+
+        AtomicInteger index = new AtomicInteger(0);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "rewin.service.log.export-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicBoolean abort = new AtomicBoolean(false);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for ( Document range : ranges )
+                if ( !range.getBoolean("done", false) )
+                    futures.add(pool.submit(() -> { scan(job, dir, state, range, abort); return null; }));
+            Exception error = null;
+            for ( Future<?> future : futures ) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    abort.set(true);
+                    if ( error == null )
+                        error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+            if ( error != null )
+                throw error;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // 各范围涉及的数据表
+    static Set<String> collections(List<Document> ranges) {
+        Set<String> res = new LinkedHashSet<>();
+        for ( Document range : ranges )
+            res.add(range.getString("cname"));
+        return res;
+    }
+
+    // 导出一个范围，每写完一个文件更新检查点
+    static void scan(Jobs.Job job, File dir, Document state, Document range, AtomicBoolean abort) throws Exception {
+        Config.Option option = Service.LoggerOption;
+        boolean json = NDJSON.equals(state.getString("format"));
+        Document id = new Document();
+        if ( range.get("last") != null )
+            id.append("$gt", range.get("last"));
+        else if ( range.get("from") != null )
+            id.append("$gte", range.get("from"));
+        if ( range.get("to") != null )
+            id.append("$lt", range.get("to"));
+        Document query = Service.scope(state.getString("filterId"), (Document) state.get("query"));
+        Document cond = id.isEmpty() ? new Document() : new Document("_id", id);
+        Document q = query == null || query.isEmpty() ? cond : cond.isEmpty() ? query : new Document("$and", Arrays.asList(query, cond));
+
+        MongoCollection<RawBsonDocument> col = Service.MongoDBLogs.getCollection(range.getString("cname"), RawBsonDocument.class);
+        String prefix = range.getString("cname") + "." + range.getInteger("index") + ".";
+        String suffix = json ? ".ndjson.gz" : ".bson.gz";
+        int maxCount = Math.max(1, option.export_file_count);
+        byte[] newline = "\n".getBytes(StandardCharsets.UTF_8);
+
+        try (MongoCursor<RawBsonDocument> it = col.find(q).sort(new Document("_id", 1)).batchSize(1000).iterator()) {
+            OutputStream out = null;
+            File part = null;
+            int n = 0;
+            int paced = 0;
+            Object last = null;
+            List<RawBsonDocument> batch = new ArrayList<>(Offload.LOAD_BATCH);
+            try {
+                while ( it.hasNext() ) {
+                    batch.clear();
+                    while ( it.hasNext() && batch.size() < Offload.LOAD_BATCH )
+                        batch.add(it.next());
+                    for ( RawBsonDocument doc : Offload.inline(batch) ) {     // 导出完整的日志（包括分离存储的body）
+                        job.check();
+                        if ( abort.get() )
+                            return;
+                        if ( out == null ) {
+                            part = new File(dir, prefix + range.getInteger("files") + suffix + ".part");
+                            out = new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(part), 64 * 1024), 64 * 1024);
+                        }
+                        if ( json ) {
+                            out.write(doc.toJson(JsonData).getBytes(StandardCharsets.UTF_8));
+                            out.write(newline);
+                        } else
+                            out.write(LogCodec.toBytes(doc));
+                        last = doc.get("_id");
+                        n ++;
+                        job.Done.increment();
+                        if ( ++ paced >= 100 ) {
+                            job.pace(paced, option.export_rate);
+                            paced = 0;
+                        }
+                        if ( n >= maxCount ) {
+                            finish(out, part);
+                            out = null;
+                            checkpoint(dir, state, range, last, n, false);
+                            n = 0;
+                        }
+                    }
+                }
+                if ( out != null ) {
+                    finish(out, part);
+                    out = null;
+                }
+                checkpoint(dir, state, range, last, n, true);
+            } finally {
+                if ( out != null ) {
+                    try { out.close(); } catch (Exception e) {}
+                    part.delete();
+                }
+            }
+        }
+    }
+
+    // 完成一个文件
+    static void finish(OutputStream out, File part) throws Exception {
+        out.close();
+        String name = part.getName();
+        Files.move(part.toPath(), new File(part.getParentFile(), name.substring(0, name.length() - ".part".length())).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // 更新检查点
+    static void checkpoint(File dir, Document state, Document range, Object last, int count, boolean done) throws Exception {
+        synchronized (state) {
+            if ( count > 0 ) {
+                range.put("last", last);
+                range.put("files", range.getInteger("files") + 1);
+                range.put("count", ((Number) range.get("count")).longValue() + count);
+            }
+            range.put("done", done);
+        }
+        save(dir, state);
+    }
+}
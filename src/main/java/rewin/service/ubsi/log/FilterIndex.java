@@ -0,0 +1,95 @@
+package rewin.service.ubsi.log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 预编译的过滤器匹配索引（不可变，重建后整体替换）
+ *
+ * 每个条件（type/tag/app）的取值对应一个过滤器位图（已合并未限制该条件的过滤器），匹配时取三个位图的交集
+ */
+public class FilterIndex {
+
+    public final static FilterIndex EMPTY = new FilterIndex(Collections.emptyList());
+
+    final String[]              Ids;        // 过滤器ID，下标即位图中的位置
+    final int                   Words;      // 位图的long数量
+    final long[]                AnyType;    // 未限制type的过滤器
+    final long[]                AnyTag;     // 未限制tag的过滤器
+    final long[]                AnyApp;     // 未限制app的过滤器
+    final Map<Integer, long[]>  Types = new HashMap<>();
+    final Map<String, long[]>   Tags = new HashMap<>();
+    final Map<String, long[]>   Apps = new HashMap<>();
+
+    public FilterIndex(Collection<Database.Filter> filters) {
+        List<Database.Filter> list = new ArrayList<>(filters);
+        Ids = new String[list.size()];
+        Words = (list.size() + 63) >>> 6;
+        AnyType = new long[Words];
+        AnyTag = new long[Words];
+        AnyApp = new long[Words];
+        for ( int i = 0; i < list.size(); i ++ ) {
+            Database.Filter f = list.get(i);
+            Ids[i] = f._id;
+            set(Types, f.type, AnyType, i);
+            set(Tags, f.tag, AnyTag, i);
+            set(Apps, f.app, AnyApp, i);
+        }
+        merge(Types, AnyType);
+        merge(Tags, AnyTag);
+        merge(Apps, AnyApp);
+    }
+
+    // 设置过滤器i在条件位图中的位
+    <T> void set(Map<T, long[]> map, List<T> values, long[] any, int i) {
+        if ( values == null ) {
+            any[i >>> 6] |= 1L << i;
+            return;
+        }
+        for ( T v : values ) {
+            long[] bits = map.get(v);
+            if ( bits == null )
+                map.put(v, bits = new long[Words]);
+            bits[i >>> 6] |= 1L << i;
+        }
+    }
+
+    // 合并未限制条件的过滤器
+    static <T> void merge(Map<T, long[]> map, long[] any) {
+        for ( long[] bits : map.values() )
+            for ( int w = 0; w < bits.length; w ++ )
+                bits[w] |= any[w];
+    }
+
+    /** 过滤器数量 */
+    public int size() {
+        return Ids.length;
+    }
+
+    /** 返回匹配的过滤器ID */
+    public List<String> match(Integer type, String tag, String app) {
+        if ( Words == 0 )
+            return Collections.emptyList();
+        long[] t = Types.get(type);
+        long[] g = Tags.get(tag);
+        long[] a = Apps.get(app);
+        if ( t == null ) t = AnyType;
+        if ( g == null ) g = AnyTag;
+        if ( a == null ) a = AnyApp;
+        List<String> res = null;
+        for ( int w = 0; w < Words; w ++ ) {
+            long bits = t[w] & g[w] & a[w];
+            while ( bits != 0 ) {
+                if ( res == null )
+                    res = new ArrayList<>(4);
+                res.add(Ids[(w << 6) + Long.numberOfTrailingZeros(bits)]);
+                bits &= bits - 1;
+            }
+        }
+        return res == null ? Collections.emptyList() : res;
+    }
+}
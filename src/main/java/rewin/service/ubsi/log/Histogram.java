@@ -0,0 +1,83 @@
+package rewin.service.ubsi.log;
+
+import rewin.ubsi.common.Util;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁的直方图（HDR风格的对数-线性分桶，相对误差约6%）
+ */
+public class Histogram {
+
+    final static int SUB_BITS = 4;                              // 每个2的幂区间分为16个子区间
+    final static int SUB_COUNT = 1 << SUB_BITS;
+    final static int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    final AtomicLongArray   Counts = new AtomicLongArray(BUCKETS);
+    final LongAdder         Total = new LongAdder();            // 记录数
+    final LongAdder         Sum = new LongAdder();              // 数值合计
+    final AtomicLong        Max = new AtomicLong(0);            // 最大值
+
+    // 数值所在的桶
+    static int index(long v) {
+        if ( v < SUB_COUNT )
+            return (int)Math.max(v, 0);
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int)(v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    // 桶的下限
+    static long lower(int index) {
+        int group = index >>> SUB_BITS;
+        long sub = index & (SUB_COUNT - 1);
+        if ( group == 0 )
+            return sub;
+        int exp = group + SUB_BITS - 1;
+        return (1L << exp) | (sub << (exp - SUB_BITS));
+    }
+
+    /** 记录数值 */
+    public void record(long v) {
+        Counts.incrementAndGet(index(v));
+        Total.increment();
+        Sum.add(v);
+        long max;
+        while ( v > (max = Max.get()) && !Max.compareAndSet(max, v) );
+    }
+
+    /** 百分位数（q为0~1），返回所在桶的上限 */
+    public long percentile(double q) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for ( int i = 0; i < BUCKETS; i ++ )
+            total += counts[i] = Counts.get(i);
+        if ( total == 0 )
+            return 0;
+        long target = Math.max(1, (long)Math.ceil(q * total));
+        long n = 0;
+        for ( int i = 0; i < BUCKETS; i ++ ) {
+            n += counts[i];
+            if ( n >= target )
+                return i + 1 < BUCKETS ? Math.min(lower(i + 1) - 1, Max.get()) : Max.get();
+        }
+        return Max.get();
+    }
+
+    /** 统计信息 */
+    public Map snapshot() {
+        long total = Total.sum();
+        return Util.toMap(new Object[] {
+                "count", total,
+                "mean", total == 0 ? 0 : Sum.sum() / total,
+                "max", Max.get(),
+                "p50", percentile(0.5),
+                "p90", percentile(0.9),
+                "p99", percentile(0.99),
+                "p999", percentile(0.999)
+        });
+    }
+}
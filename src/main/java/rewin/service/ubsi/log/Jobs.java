@@ -0,0 +1,204 @@
+package rewin.service.ubsi.log;
+
+import rewin.ubsi.common.Util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 后台任务（删除/过期清理/导出等耗时操作），可以查询进度及取消
+ */
+public class Jobs {
+
+    /** 任务的执行过程 */
+    public interface Task {
+        void run(Job job) throws Exception;
+    }
+
+    /** 后台任务 */
+    public static class Job {
+        final String        Id = Util.getUUID();        // 任务ID
+        final String        Type;                       // 任务类型
+        final Object        Params;                     // 任务参数
+        final long          Created = System.currentTimeMillis();  // 创建时间
+        volatile long       Started = 0;                // 开始时间
+        volatile long       Finished = 0;               // 结束时间
+        volatile String     State = PENDING;            // 状态
+        volatile String     Error = null;               // 失败原因
+        volatile long       Total = -1;                 // 总数量，-1表示未知
+        final LongAdder     Done = new LongAdder();     // 已完成的数量
+        final AtomicLong    Paced = new AtomicLong(0);  // 已限速的数量
+        volatile boolean    Cancelled = false;          // 是否已取消
+        volatile Object     Result = null;              // 任务结果
+
+        Job(String type, Object params) {
+            Type = type;
+            Params = params;
+        }
+
+        /** 检查是否已取消，已取消时抛出CancellationException */
+        public void check() {
+            if ( Cancelled )
+                throw new CancellationException("job cancelled");
+        }
+
+        /** 处理了count条记录后，按照限定的速度（条/秒）等待，rate<=0表示不限速 */
+        public void pace(long count, int rate) throws InterruptedException {
+            long n = Paced.addAndGet(count);
+            if ( rate <= 0 )
+                return;
+            long wait = Started + n * 1000 / rate - System.currentTimeMillis();
+            while ( wait > 0 && !Cancelled ) {
+                Thread.sleep(Math.min(wait, 200));
+                wait = Started + n * 1000 / rate - System.currentTimeMillis();
+            }
+            check();
+        }
+
+        /** 是否已结束 */
+        public boolean isFinished() {
+            return Finished > 0;
+        }
+
+        /** 任务信息 */
+        public Map info() {
+            long end = Finished > 0 ? Finished : System.currentTimeMillis();
+            return Util.toMap(new Object[] {
+                    "id", Id,
+                    "type", Type,
+                    "params", Params,
+                    "state", State,
+                    "error", Error,
+                    "total", Total,
+                    "done", Done.sum(),
+                    "created", Created,
+                    "started", Started,
+                    "finished", Finished,
+                    "elapsed_ms", Started == 0 ? 0 : end - Started,
+                    "result", Result
+            });
+        }
+    }
+
+    public final static String PENDING = "pending";        // 等待执行
+    public final static String RUNNING = "running";        // 正在执行
+    public final static String DONE = "done";              // 已完成
+    public final static String FAILED = "failed";          // 失败
+    public final static String CANCELLED = "cancelled";    // 已取消
+
+    final static long KEEP = 3600 * 1000;       // 已结束的任务保留的时间（毫秒）
+
+    static ConcurrentMap<String, Job> All = new ConcurrentHashMap<>();
+    static ExecutorService Pool = null;
+
+    /** 启动任务线程池 */
+    public static synchronized void start(int threads) {
+        if ( Pool != null )
+            return;
+        AtomicInteger index = new AtomicInteger(0);
+        Pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "rewin.service.log.job-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** 取消所有任务并结束线程池 */
+    public static synchronized void stop() {
+        if ( Pool == null )
+            return;
+        for ( Job job : All.values() )
+            job.Cancelled = true;
+        Pool.shutdown();
+        try { Pool.awaitTermination(10, TimeUnit.SECONDS); } catch (Exception e) {}
+        Pool = null;
+        All.clear();
+    }
+
+    /** 提交任务 */
+    public static Job submit(String type, Object params, Task task) {
+        purge();
+        Job job = new Job(type, params);
+        All.put(job.Id, job);
+        try {
+            Pool.execute(() -> run(job, task));
+        } catch (Exception e) {
+            All.remove(job.Id);
+            throw e;
+        }
+        return job;
+    }
+
+    // 执行任务
+    static void run(Job job, Task task) {
+        if ( job.Cancelled ) {
+            job.State = CANCELLED;
+            job.Finished = System.currentTimeMillis();
+            return;
+        }
+        job.Started = System.currentTimeMillis();
+        job.State = RUNNING;
+        try {
+            task.run(job);
+            job.State = DONE;
+        } catch (CancellationException | InterruptedException e) {
+            job.State = CANCELLED;
+        } catch (Exception e) {
+            System.out.println("[ERROR] rewin.service.log job " + job.Type + " " + e.toString());
+            job.Error = e.toString();
+            job.State = FAILED;
+        } finally {
+            job.Finished = System.currentTimeMillis();
+        }
+    }
+
+    // 清除过期的已结束任务
+    static void purge() {
+        long now = System.currentTimeMillis();
+        All.values().removeIf(job -> job.isFinished() && now - job.Finished > KEEP);
+    }
+
+    /** 查询任务 */
+    public static Job get(String id) {
+        return id == null ? null : All.get(id);
+    }
+
+    /** 所有任务的信息，按创建时间排序 */
+    public static List<Map> list() {
+        purge();
+        List<Job> jobs = new ArrayList<>(All.values());
+        jobs.sort(Comparator.comparingLong(job -> job.Created));
+        List<Map> res = new ArrayList<>();
+        for ( Job job : jobs )
+            res.add(job.info());
+        return res;
+    }
+
+    /** 取消任务，返回false表示任务不存在或已结束 */
+    public static boolean cancel(String id) {
+        Job job = get(id);
+        if ( job == null || job.isFinished() )
+            return false;
+        job.Cancelled = true;
+        return true;
+    }
+
+    /** 是否有未结束的同类任务 */
+    public static boolean isRunning(String type) {
+        for ( Job job : All.values() )
+            if ( type.equals(job.Type) && !job.isFinished() )
+                return true;
+        return false;
+    }
+}
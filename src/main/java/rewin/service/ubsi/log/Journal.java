@@ -0,0 +1,254 @@
+package rewin.service.ubsi.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * 本地溢出日志：由固定大小的内存映射段文件组成，只追加写入，按顺序回放
+ *
+ * 记录格式：[int 长度][int CRC32][short 表名长度][表名][BSON]，长度为0表示段结束
+ */
+public class Journal {
+
+    final static String SUFFIX = ".seg";            // 段文件的扩展名
+    final static String CHECKPOINT = "checkpoint";  // 回放进度的文件名
+
+    /** 日志记录 */
+    public static class Entry {
+        public String   cname;      // 表名
+        public byte[]   bson;       // BSON格式的日志
+    }
+
+    final File      Dir;            // 目录
+    final int       SegmentSize;    // 段文件的大小
+    final long      MaxBytes;       // 未回放数据的最大字节数
+
+    final TreeSet<Long>     Segments = new TreeSet<>();     // 现有的段
+    final MappedByteBuffer  Checkpoint;                     // 回放进度：[long 段号][long 位置]
+
+    volatile long       WSeq;       // 写入的段号
+    volatile int        WPos;       // 写入的位置
+    MappedByteBuffer    WBuf;       // 写入的段
+
+    long                RSeq;       // 回放的段号
+    int                 RPos;       // 回放的位置
+    MappedByteBuffer    RBuf;       // 回放的段
+    long                NSeq;       // 本次读取后的段号
+    int                 NPos;       // 本次读取后的位置
+    MappedByteBuffer    NBuf;       // 本次读取后的段
+    long                NRecords;   // 本次读取的记录数
+    long                NBytes;     // 本次读取的字节数
+
+    final AtomicLong    Records = new AtomicLong(0);    // 未回放的记录数
+    final AtomicLong    Bytes = new AtomicLong(0);      // 未回放的字节数
+
+    public Journal(String path, int segmentSize, long maxBytes) throws IOException {
+        Dir = new File(path);
+        if ( !Dir.isDirectory() && !Dir.mkdirs() )
+            throw new IOException("can not create journal directory: " + path);
+        SegmentSize = Math.max(segmentSize, 64 * 1024);
+        MaxBytes = maxBytes <= 0 ? Long.MAX_VALUE : maxBytes;
+
+        File[] files = Dir.listFiles();
+        if ( files != null )
+            for ( File f : files ) {
+                String name = f.getName();
+                if ( name.endsWith(SUFFIX) )
+                    try { Segments.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length()))); } catch (Exception e) {}
+            }
+
+        // 恢复回放进度，删除已回放的段
+        Checkpoint = map(new File(Dir, CHECKPOINT), 16);
+        long cseq = Checkpoint.getLong(0);
+        while ( !Segments.isEmpty() && Segments.first() < cseq )
+            file(Segments.pollFirst()).delete();
+        RSeq = Segments.isEmpty() ? cseq : Segments.first();
+        RPos = RSeq == cseq ? (int)Checkpoint.getLong(8) : 0;
+
+        // 统计未回放的数据
+        for ( long s : Segments ) {
+            MappedByteBuffer buf = map(file(s), 0);
+            int pos = s == RSeq ? RPos : 0;
+            int len;
+            while ( (len = check(buf, pos, buf.capacity())) >= 0 ) {
+                Records.incrementAndGet();
+                Bytes.addAndGet(8 + len);
+                pos += 8 + len;
+            }
+        }
+
+        // 新建写入的段
+        roll(Segments.isEmpty() ? RSeq + 1 : Segments.last() + 1);
+        if ( Segments.size() == 1 ) {
+            RSeq = WSeq;
+            RPos = 0;
+        }
+        NSeq = RSeq;
+        NPos = RPos;
+    }
+
+    // 段文件
+    File file(long seq) {
+        return new File(Dir, String.format("%016d", seq) + SUFFIX);
+    }
+
+    // 映射文件，size为0表示使用文件的长度
+    static MappedByteBuffer map(File f, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size == 0 ? raf.length() : size);
+        }
+    }
+
+    // 检查pos处的记录，返回记录体的长度，-1表示没有有效的记录
+    static int check(ByteBuffer buf, int pos, int limit) {
+        if ( pos + 8 > limit )
+            return -1;
+        int len = buf.getInt(pos);
+        if ( len <= 0 || len > limit - pos - 8 )
+            return -1;
+        ByteBuffer body = buf.duplicate();
+        body.limit(pos + 8 + len).position(pos + 8);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int)crc.getValue() == buf.getInt(pos + 4) ? len : -1;
+    }
+
+    // 切换到新的写入段
+    void roll(long seq) throws IOException {
+        if ( WBuf != null )
+            WBuf.force();
+        WBuf = map(file(seq), SegmentSize);
+        WPos = 0;
+        synchronized (Segments) {
+            Segments.add(seq);
+        }
+        WSeq = seq;
+    }
+
+    /** 追加日志，返回false表示超出容量 */
+    public synchronized boolean append(String cname, byte[] bson) throws IOException {
+        byte[] name = cname.getBytes(StandardCharsets.UTF_8);
+        int len = 2 + name.length + bson.length;
+        if ( len + 8 > SegmentSize || Bytes.get() + len + 8 > MaxBytes )
+            return false;
+        if ( WPos + 8 + len > SegmentSize )
+            roll(WSeq + 1);
+
+        int pos = WPos;
+        ByteBuffer body = WBuf.duplicate();
+        body.position(pos + 8);
+        body.putShort((short)name.length).put(name).put(bson);
+        body.limit(pos + 8 + len).position(pos + 8);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        WBuf.putInt(pos + 4, (int)crc.getValue());
+        WBuf.putInt(pos, len);          // 最后写入长度，表示记录完整
+
+        Records.incrementAndGet();
+        Bytes.addAndGet(8 + len);
+        WPos = pos + 8 + len;
+        return true;
+    }
+
+    /** 从回放进度处读取最多max条记录（需要commit()确认），返回读取的数量 */
+    public int read(List<Entry> list, int max) throws IOException {
+        long seq = RSeq;
+        int pos = RPos;
+        MappedByteBuffer buf = RBuf;
+        int n = 0;
+        long bytes = 0;
+        while ( n < max ) {
+            long wseq = WSeq;
+            if ( buf == null ) {
+                synchronized (Segments) {
+                    if ( !Segments.contains(seq) )
+                        break;
+                }
+                buf = map(file(seq), 0);
+            }
+            int len = check(buf, pos, seq == wseq ? WPos : buf.capacity());
+            if ( len < 0 ) {
+                if ( seq == wseq )
+                    break;          // 等待新的写入
+                Long next;
+                synchronized (Segments) {
+                    next = Segments.higher(seq);
+                }
+                if ( next == null )
+                    break;
+                seq = next;
+                pos = 0;
+                buf = null;
+                continue;
+            }
+            Entry entry = new Entry();
+            ByteBuffer body = buf.duplicate();
+            body.position(pos + 8);
+            byte[] name = new byte[body.getShort()];
+            body.get(name);
+            entry.cname = new String(name, StandardCharsets.UTF_8);
+            entry.bson = new byte[len - 2 - name.length];
+            body.get(entry.bson);
+            list.add(entry);
+            pos += 8 + len;
+            bytes += 8 + len;
+            n ++;
+        }
+        NSeq = seq;
+        NPos = pos;
+        NBuf = buf;
+        NRecords = n;
+        NBytes = bytes;
+        return n;
+    }
+
+    /** 确认上次read()的记录已经回放，保存回放进度并删除回放完毕的段 */
+    public void commit() {
+        long old = RSeq;
+        RSeq = NSeq;
+        RPos = NPos;
+        RBuf = NBuf;
+        Checkpoint.putLong(0, RSeq);
+        Checkpoint.putLong(8, RPos);
+        Records.addAndGet(-NRecords);
+        Bytes.addAndGet(-NBytes);
+        NRecords = NBytes = 0;
+        for ( long s = old; s < RSeq; s ++ ) {
+            synchronized (Segments) {
+                if ( !Segments.remove(s) )
+                    continue;
+            }
+            file(s).delete();
+        }
+    }
+
+    /** 关闭 */
+    public synchronized void close() {
+        WBuf.force();
+        Checkpoint.force();
+    }
+
+    /** 未回放的记录数 */
+    public long pending() {
+        return Records.get();
+    }
+    /** 未回放的字节数 */
+    public long pendingBytes() {
+        return Bytes.get();
+    }
+    /** 段文件的数量 */
+    public int segments() {
+        synchronized (Segments) {
+            return Segments.size();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package rewin.service.ubsi.log;
+
+import rewin.ubsi.common.Util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 写日志的流量控制：按app/tag/type的令牌桶限速（无锁的开放寻址表，以64位哈希为key），
+ * 缓冲持续高负载时对低级别的日志分类（如访问日志）自动采样，保留的日志记录采样权重，错误等其他分类不采样
+ */
+public class Limiter {
+
+    public final static double LIMITED = -1;    // 被限速丢弃
+    public final static double SAMPLED = 0;     // 被采样丢弃
+
+    final static String[] DIMS = { Database.LOGS_APP, Database.LOGS_TAG, Database.LOGS_TYPE };
+    final static long UNIT = 64;                // 令牌的精度（1/64个）
+
+    static AtomicLongArray Keys = new AtomicLongArray(1);       // 令牌桶的key（0表示空槽位）
+    static AtomicLongArray States = new AtomicLongArray(1);     // 令牌桶的状态：高32位为时间（毫秒），低32位为令牌数（1/64个），0表示未初始化
+    static double[] Defaults = new double[DIMS.length];         // 各维度的缺省速度（条/秒）
+    static Map<String, Double> Rules = new HashMap<>();         // 维度|值 -> 速度（条/秒）
+    static boolean[] Sampling = new boolean[0];                 // 需要采样的日志分类（下标为分类）
+
+    static volatile double Load = 0;            // 缓冲负载的移动平均
+    static volatile double Rate = 1;            // 当前的采样比例
+    final static LongAdder Limited = new LongAdder();
+    final static LongAdder Sampled = new LongAdder();
+    final static LongAdder Overflow = new LongAdder();         // 令牌桶表满而不限速的次数
+
+    /** 按照配置项初始化 */
+    static void start(Config.Option option) {
+        int slots = 1;
+        while ( slots < option.limit_slots && slots < (1 << 24) )
+            slots <<= 1;
+        Keys = new AtomicLongArray(slots);
+        States = new AtomicLongArray(slots);
+        Defaults = new double[] { option.limit_app, option.limit_tag, option.limit_type };
+        Map<String, Double> rules = new HashMap<>();
+        if ( option.limit_rules != null )
+            for ( Config.Limit rule : option.limit_rules )
+                if ( rule != null && rule.by != null )
+                    rules.put(rule.by.trim() + "|" + rule.value, rule.rate);
+        Rules = rules;
+        int max = -1;
+        List<Integer> types = option.sample_types;
+        if ( types != null )
+            for ( Integer t : types )
+                if ( t != null && t >= 0 && t < 1024 )
+                    max = Math.max(max, t);
+        boolean[] sampling = new boolean[max + 1];
+        if ( types != null )
+            for ( Integer t : types )
+                if ( t != null && t >= 0 && t <= max )
+                    sampling[t] = true;
+        Sampling = sampling;
+        Load = 0;
+        Rate = 1;
+    }
+
+    /**
+     * 检查一条日志是否可以写入，返回保留的日志的采样权重（>=1），或LIMITED/SAMPLED表示丢弃
+     */
+    static double admit(Object[] data) {
+        for ( int i = 0; i < DIMS.length; i ++ ) {
+            Object v = i == 0 ? data[4] : i == 1 ? data[3] : data[1];
+            String value = v == null ? null : v.toString();
+            Double rule = Rules.isEmpty() ? null : Rules.get(DIMS[i] + "|" + value);
+            double rate = rule == null ? Defaults[i] : rule;
+            if ( rate > 0 && !acquire(Sketches.hash(DIMS[i] + "|" + value), rate) ) {
+                Limited.increment();
+                return LIMITED;
+            }
+        }
+        double p = Rate;
+        if ( p < 1 && data[1] instanceof Integer ) {
+            int type = (Integer) data[1];
+            if ( type >= 0 && type < Sampling.length && Sampling[type] ) {
+                if ( ThreadLocalRandom.current().nextDouble() >= p ) {
+                    Sampled.increment();
+                    return SAMPLED;
+                }
+                return 1 / p;
+            }
+        }
+        return 1;
+    }
+
+    // 从令牌桶中取一个令牌，令牌桶表满时不限速
+    static boolean acquire(long key, double rate) {
+        if ( key == 0 )
+            key = 1;
+        AtomicLongArray keys = Keys, states = States;
+        int mask = keys.length() - 1;
+        int idx = (int)(key ^ (key >>> 32)) & mask;
+        for ( int probe = 0; ; probe ++ ) {
+            long k = keys.get(idx);
+            if ( k == key )
+                break;
+            if ( k == 0 && probe < (mask + 1) * 3 / 4 ) {
+                if ( keys.compareAndSet(idx, 0, key) )
+                    break;
+                continue;   // 被其他线程占用，重新检查此槽位
+            }
+            if ( probe >= (mask + 1) * 3 / 4 ) {
+                Overflow.increment();
+                return true;
+            }
+            idx = (idx + 1) & mask;
+        }
+        long burst = Math.min(0xFFFFFFFFL, Math.max(UNIT, (long)(rate * Service.LoggerOption.limit_burst * UNIT)));
+        int now = (int) System.currentTimeMillis();
+        for ( ; ; ) {
+            long s = states.get(idx);
+            long tokens = s == 0 ? burst : s & 0xFFFFFFFFL;
+            int last = s == 0 ? now : (int)(s >>> 32);
+            long elapsed = Math.max(0, now - last);
+            long add = (long)(elapsed * rate * UNIT / 1000);
+            if ( add > 0 ) {
+                tokens = Math.min(burst, tokens + add);
+                last = now;
+            }
+            boolean ok = tokens >= UNIT;
+            if ( ok )
+                tokens -= UNIT;
+            long ns = ((long) last << 32) | tokens;
+            if ( ns == 0 )
+                ns = 1L << 32;  // 避免与未初始化的状态混淆
+            if ( ns == s || states.compareAndSet(idx, s, ns) )
+                return ok;
+        }
+    }
+
+    /** 按照缓冲的负载调整采样比例（每秒调用）：负载超过sample_start后线性降低，最低为sample_min */
+    static void tick() {
+        Config.Option option = Service.LoggerOption;
+        double load = 0.7 * Load + 0.3 * Service.BatchDealer.load();
+        Load = load;
+        double start = Math.min(0.99, option.sample_start);
+        double rate = load <= start ? 1 : 1 - (load - start) / (1 - start);
+        Rate = Math.min(1, Math.max(option.sample_min, rate));
+    }
+
+    /** 令牌桶的数量 */
+    static int buckets() {
+        int n = 0;
+        AtomicLongArray keys = Keys;
+        for ( int i = 0; i < keys.length(); i ++ )
+            if ( keys.get(i) != 0 )
+                n ++;
+        return n;
+    }
+
+    /** 运行信息 */
+    static Map info() {
+        return Util.toMap(new Object[] {
+                "load", Math.round(Load * 1000) / 1000.0,
+                "sample_rate", Math.round(Rate * 1000) / 1000.0,
+                "limited", Limited.sum(),
+                "sampled", Sampled.sum(),
+                "buckets", buckets(),
+                "overflow", Overflow.sum()
+        });
+    }
+}
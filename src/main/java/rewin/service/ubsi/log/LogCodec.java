@@ -0,0 +1,160 @@
+package rewin.service.ubsi.log;
+
+import com.mongodb.MongoClient;
+import org.bson.BsonBinary;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonWriter;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import rewin.ubsi.common.Util;
+
+import java.util.Map;
+
+/**
+ * 日志记录的BSON编码：由日志数据直接编码为RawBsonDocument，只编码一次，主表/过滤表/溢出日志共用
+ */
+public class LogCodec {
+
+    final static int BUFFER_SIZE = 4 * 1024;            // 编码缓冲区的初始大小
+    final static int BUFFER_MAX = 1024 * 1024;          // 超过此大小的编码缓冲区不再复用
+
+    final static CodecRegistry Registry = MongoClient.getDefaultCodecRegistry();
+    final static EncoderContext Context = EncoderContext.builder().build();
+    final static ThreadLocal<BasicOutputBuffer> Buffers = ThreadLocal.withInitial(() -> new BasicOutputBuffer(BUFFER_SIZE));
+
+    /** 编码日志数据（结构同ServiceEntry.log的data参数），数据不合法时抛出异常 */
+    public static RawBsonDocument encode(Object[] data) {
+        return encode(data, 1);
+    }
+
+    /** 编码日志数据，weight为采样权重，>1时写入sample字段 */
+    public static RawBsonDocument encode(Object[] data, double weight) {
+        return encode(data, weight, null);
+    }
+
+    /** 编码日志数据，extra为附加的字段（如合并日志的重复次数），值为null的字段不写入 */
+    public static RawBsonDocument encode(Object[] data, double weight, Map<String, Object> extra) {
+        return encode(new ObjectId(), data, weight, extra);
+    }
+
+    /** 编码日志数据，使用指定的_id */
+    public static RawBsonDocument encode(ObjectId id, Object[] data, double weight, Map<String, Object> extra) {
+        BasicOutputBuffer out = Buffers.get();
+        out.truncateToPosition(0);
+        try (BsonBinaryWriter writer = new BsonBinaryWriter(out)) {
+            writer.writeStartDocument();
+            writer.writeObjectId("_id", id);    // 预先生成_id，主表/过滤表共用
+            writeField(writer, Database.LOGS_TIME, (Long) data[0]);
+            writeField(writer, Database.LOGS_TYPE, (Integer) data[1]);
+            writeField(writer, Database.LOGS_ADDR, (String) data[2]);
+            writeField(writer, Database.LOGS_TAG, (String) data[3]);
+            writeField(writer, Database.LOGS_APP, (String) data[4]);
+            writeField(writer, Database.LOGS_CODE, (String) data[5]);
+            writeField(writer, Database.LOGS_TIPS, (String) data[6]);
+            writeField(writer, Database.LOGS_BODY, Util.array2List(data[7]));
+            if ( weight > 1 )
+                writeField(writer, Database.LOGS_SAMPLE, weight);
+            if ( extra != null )
+                for ( Map.Entry<String, Object> entry : extra.entrySet() )
+                    if ( entry.getValue() != null )
+                        writeField(writer, entry.getKey(), entry.getValue());
+            writer.writeEndDocument();
+        }
+        RawBsonDocument doc = new RawBsonDocument(out.toByteArray());
+        if ( out.getSize() > BUFFER_MAX )
+            Buffers.remove();
+        return doc;
+    }
+
+    /** 将任意类型的值编码为{ v: value }格式的BSON */
+    static byte[] encodeValue(Object value) {
+        BasicOutputBuffer out = new BasicOutputBuffer();
+        try (BsonBinaryWriter writer = new BsonBinaryWriter(out)) {
+            writer.writeStartDocument();
+            writeField(writer, "v", Util.array2List(value));
+            writer.writeEndDocument();
+        }
+        return out.toByteArray();
+    }
+
+    /** 编码后的字节数 */
+    public static int sizeOf(RawBsonDocument doc) {
+        return doc.getByteBuffer().remaining();
+    }
+
+    /** 编码后的字节数组（复制） */
+    public static byte[] toBytes(RawBsonDocument doc) {
+        byte[] bytes = new byte[sizeOf(doc)];
+        doc.getByteBuffer().get(bytes);
+        return bytes;
+    }
+
+    /** 日志数据（结构同ServiceEntry.log的data参数）中字段的值，字段可以是"body.a.b"格式 */
+    static Object field(Object[] data, String path) {
+        int dot = path.indexOf('.');
+        String name = dot < 0 ? path : path.substring(0, dot);
+        String[] fields = { Database.LOGS_TIME, Database.LOGS_TYPE, Database.LOGS_ADDR, Database.LOGS_TAG,
+                Database.LOGS_APP, Database.LOGS_CODE, Database.LOGS_TIPS, Database.LOGS_BODY };
+        Object o = null;
+        for ( int i = 0; i < fields.length && i < data.length; i ++ )
+            if ( fields[i].equals(name) ) {
+                o = data[i];
+                break;
+            }
+        for ( ; dot >= 0 && o != null; dot = path.indexOf('.', dot + 1) ) {
+            if ( !(o instanceof Map) )
+                return null;
+            int end = path.indexOf('.', dot + 1);
+            o = ((Map) o).get(end < 0 ? path.substring(dot + 1) : path.substring(dot + 1, end));
+        }
+        return o;
+    }
+
+    // 写入字段
+    static void writeField(BsonWriter writer, String name, Object value) {
+        writer.writeName(name);
+        writeValue(writer, value);
+    }
+
+    // 写入任意类型的值
+    @SuppressWarnings("unchecked")
+    static void writeValue(BsonWriter writer, Object value) {
+        if ( value == null )
+            writer.writeNull();
+        else if ( value instanceof String )
+            writer.writeString((String) value);
+        else if ( value instanceof Integer || value instanceof Short || value instanceof Byte )
+            writer.writeInt32(((Number) value).intValue());
+        else if ( value instanceof Long )
+            writer.writeInt64((Long) value);
+        else if ( value instanceof Double || value instanceof Float )
+            writer.writeDouble(((Number) value).doubleValue());
+        else if ( value instanceof Boolean )
+            writer.writeBoolean((Boolean) value);
+        else if ( value instanceof byte[] )
+            writer.writeBinaryData(new BsonBinary((byte[]) value));
+        else if ( value instanceof Map ) {
+            writer.writeStartDocument();
+            for ( Map.Entry<?,?> entry : ((Map<?,?>) value).entrySet() )
+                writeField(writer, String.valueOf(entry.getKey()), entry.getValue());
+            writer.writeEndDocument();
+        } else if ( value instanceof Iterable ) {
+            writer.writeStartArray();
+            for ( Object item : (Iterable<?>) value )
+                writeValue(writer, item);
+            writer.writeEndArray();
+        } else if ( value instanceof Object[] ) {
+            writer.writeStartArray();
+            for ( Object item : (Object[]) value )
+                writeValue(writer, item);
+            writer.writeEndArray();
+        } else {
+            Codec codec = Registry.get(value.getClass());
+            Context.encodeWithChildContext(codec, writer, value);
+        }
+    }
+}
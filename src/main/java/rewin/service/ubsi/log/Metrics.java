@@ -0,0 +1,33 @@
+package rewin.service.ubsi.log;
+
+import rewin.ubsi.common.Util;
+
+import java.util.Map;
+
+/**
+ * 运行指标：各操作的耗时分布
+ */
+public class Metrics {
+
+    public final static Histogram Insert = new Histogram();     // insertMany耗时（微秒）
+    public final static Histogram Find = new Histogram();       // find耗时（微秒）
+    public final static Histogram Count = new Histogram();      // count耗时（微秒）
+    public final static Histogram Aggregate = new Histogram();  // aggregate耗时（微秒）
+    public final static Histogram Match = new Histogram();      // 每条日志匹配过滤器的耗时（纳秒）
+
+    /** 记录从start（System.nanoTime()）开始的耗时（微秒） */
+    public static void elapsed(Histogram histogram, long start) {
+        histogram.record((System.nanoTime() - start) / 1000);
+    }
+
+    /** 耗时分布的统计信息 */
+    public static Map info() {
+        return Util.toMap(new Object[] {
+                "insert_us", Insert.snapshot(),
+                "find_us", Find.snapshot(),
+                "count_us", Count.snapshot(),
+                "aggregate_us", Aggregate.snapshot(),
+                "match_ns", Match.snapshot()
+        });
+    }
+}
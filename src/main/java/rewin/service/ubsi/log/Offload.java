@@ -0,0 +1,258 @@
+package rewin.service.ubsi.log;
+
+import com.mongodb.client.MongoCollection;
+import org.bson.BsonBinaryReader;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import rewin.ubsi.common.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 大body的分离存储：body（BSON编码）超过主表/过滤表storage.body_offload字节时，压缩后写入logs_bodies表（_id同日志），
+ * 日志中只保留body中较短的标量字段（用于查询）及body_offload字段，查询需要返回body时再加载
+ */
+public class Offload {
+
+    final static String LANE = "bodies";        // 写入通道（logs_bodies）
+    final static String SIZE = "size";          // 原始字节数
+    final static String DATA = "data";          // 压缩后的{ v: body }
+    final static int KEEP_LENGTH = 128;         // 保留在日志中的字符串的最大长度
+    final static int LOAD_BATCH = 1000;         // 每次加载的body数量
+
+    final static LongAdder Offloaded = new LongAdder();     // 分离存储的body数量
+    final static LongAdder Bytes = new LongAdder();         // 分离存储的body的原始字节数
+    final static LongAdder Loaded = new LongAdder();        // 查询时加载的body数量
+
+    /** 编码后的日志 */
+    static class Encoded {
+        final RawBsonDocument Full;     // 完整的日志
+        final RawBsonDocument Ref;      // 分离body后的日志，null表示没有分离
+        final int BodySize;             // body的字节数
+
+        Encoded(RawBsonDocument full, RawBsonDocument ref, int bodySize) {
+            Full = full;
+            Ref = ref;
+            BodySize = bodySize;
+        }
+
+        /** 写入主表（filterId为null）或过滤表的日志 */
+        RawBsonDocument doc(String filterId) {
+            if ( Ref == null )
+                return Full;
+            long threshold = threshold(filterId);
+            return threshold > 0 && BodySize > threshold ? Ref : Full;
+        }
+    }
+
+    // 主表或过滤表分离body的阈值，<=0表示不分离
+    static long threshold(String filterId) {
+        Database.Storage storage;
+        if ( filterId == null )
+            storage = Service.LoggerOption.logs_storage;
+        else {
+            Database.Filter filter = Service.Filters.get(filterId);
+            storage = filter == null ? null : filter.storage;
+        }
+        return storage == null ? 0 : storage.body_offload;
+    }
+
+    /** 编码日志，body超过主表或匹配的过滤表的阈值时分离存储 */
+    static Encoded encode(Object[] data, double weight, Map<String, Object> extra, List<String> filters) {
+        RawBsonDocument full = LogCodec.encode(data, weight, extra);
+        long min = threshold(null);
+        if ( !Service.single() )
+            for ( String filterId : filters ) {
+                long t = threshold(filterId);
+                if ( t > 0 && (min <= 0 || t < min) )
+                    min = t;
+            }
+        if ( min <= 0 || data[7] == null || LogCodec.sizeOf(full) <= min )
+            return new Encoded(full, null, 0);
+        byte[] body = LogCodec.encodeValue(data[7]);
+        if ( body.length <= min )
+            return new Encoded(full, null, 0);
+
+        ObjectId id = full.getObjectId("_id").getValue();
+        try {
+            Document side = new Document("_id", id).append(SIZE, body.length).append(DATA, new Binary(zip(body)));
+            if ( !Service.BatchDealer.addDoc(LANE, new RawBsonDocument(side, Cursor.Codec)) )
+                return new Encoded(full, null, 0);      // 缓冲满时不分离
+        } catch (Exception e) {
+            System.out.println("[ERROR] rewin.service.log offload " + e.toString());
+            return new Encoded(full, null, 0);
+        }
+        Object[] rec = data.clone();
+        rec[7] = keep(data[7]);
+        Map<String, Object> more = new LinkedHashMap<>();
+        if ( extra != null )
+            more.putAll(extra);
+        more.put(Database.LOGS_OFFLOAD, body.length);
+        Offloaded.increment();
+        Bytes.add(body.length);
+        return new Encoded(full, LogCodec.encode(id, rec, weight, more), body.length);
+    }
+
+    // body中保留在日志中的字段：较短的标量字段（如reqId），body不是Map时不保留
+    static Object keep(Object body) {
+        if ( !(body instanceof Map) )
+            return null;
+        Map<Object, Object> res = new LinkedHashMap<>();
+        for ( Map.Entry<?, ?> e : ((Map<?, ?>) body).entrySet() ) {
+            Object v = e.getValue();
+            if ( v instanceof Number || v instanceof Boolean || (v instanceof String && ((String) v).length() <= KEEP_LENGTH) )
+                res.put(e.getKey(), v);
+        }
+        return res;
+    }
+
+    // gzip压缩
+    static byte[] zip(byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    // gzip解压缩
+    static byte[] unzip(byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        try (GZIPInputStream gz = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            byte[] buf = new byte[8192];
+            for ( int n = gz.read(buf); n > 0; n = gz.read(buf) )
+                out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    // projection中的值是否表示包含
+    static boolean on(Object v) {
+        return !(Boolean.FALSE.equals(v) || (v instanceof Number && ((Number) v).intValue() == 0));
+    }
+
+    // projection是否为包含方式（_id之外有包含的字段）
+    static boolean inclusive(Map fields) {
+        for ( Object o : fields.entrySet() ) {
+            Map.Entry e = (Map.Entry) o;
+            if ( on(e.getValue()) && !"_id".equals(e.getKey()) )
+                return true;
+        }
+        return false;
+    }
+
+    /** 返回的字段（MongoDB的projection）是否包含body */
+    static boolean needBody(Map fields) {
+        if ( fields == null || fields.isEmpty() )
+            return true;
+        for ( Object o : fields.entrySet() ) {
+            Map.Entry e = (Map.Entry) o;
+            String key = String.valueOf(e.getKey());
+            if ( key.equals(Database.LOGS_BODY) || key.startsWith(Database.LOGS_BODY + ".") )
+                return on(e.getValue());
+        }
+        return !inclusive(fields);     // 排除方式时未排除body
+    }
+
+    /** 查询使用的projection：包含方式且需要返回body时加入body_offload字段（用于判断是否需要加载） */
+    static Document project(Map fields) {
+        if ( fields == null )
+            return null;
+        Document res = new Document(fields);
+        if ( !res.isEmpty() && inclusive(res) && needBody(res) )
+            res.putIfAbsent(Database.LOGS_OFFLOAD, 1);
+        return res;
+    }
+
+    /** 在查询结果中加载分离存储的body，fields不需要返回body时不加载 */
+    @SuppressWarnings("unchecked")
+    static void load(List docs, Map fields) {
+        if ( docs == null || docs.isEmpty() || !needBody(fields) )
+            return;
+        Map<Object, List<Map>> refs = new HashMap<>();
+        for ( Object o : docs ) {
+            Map doc = (Map) o;
+            if ( doc.get(Database.LOGS_OFFLOAD) != null && doc.get("_id") != null )
+                refs.computeIfAbsent(doc.get("_id"), k -> new ArrayList<>()).add(doc);
+        }
+        if ( refs.isEmpty() )
+            return;
+        MongoCollection<Document> col = Service.MongoDBLogs.getCollection(Database.COL_BODIES);
+        List<Object> ids = new ArrayList<>(refs.keySet());
+        for ( int i = 0; i < ids.size(); i += LOAD_BATCH ) {
+            List<Object> batch = ids.subList(i, Math.min(ids.size(), i + LOAD_BATCH));
+            for ( Document side : col.find(new Document("_id", new Document("$in", batch))) ) {
+                try {
+                    byte[] bson = unzip(side.get(DATA, Binary.class).getData());
+                    Object body = Cursor.Codec.decode(new BsonBinaryReader(ByteBuffer.wrap(bson)), DecoderContext.builder().build()).get("v");
+                    for ( Map doc : refs.get(side.get("_id")) )
+                        doc.put(Database.LOGS_BODY, body);
+                    Loaded.increment();
+                } catch (Exception e) {
+                    System.out.println("[ERROR] rewin.service.log offload " + e.toString());
+                }
+            }
+        }
+    }
+
+    /** 恢复分离存储的body（导出完整的日志），返回的列表与docs一一对应，body已被删除的日志保留body_offload字段 */
+    static List<RawBsonDocument> inline(List<RawBsonDocument> docs) {
+        List<Integer> index = new ArrayList<>();
+        List<Document> refs = new ArrayList<>();
+        for ( int i = 0; i < docs.size(); i ++ )
+            if ( docs.get(i).containsKey(Database.LOGS_OFFLOAD) ) {
+                index.add(i);
+                refs.add(Cursor.Codec.decode(docs.get(i).asBsonReader(), DecoderContext.builder().build()));
+            }
+        if ( refs.isEmpty() )
+            return docs;
+        List<Object> kept = new ArrayList<>();
+        for ( Document doc : refs )
+            kept.add(doc.get(Database.LOGS_BODY));
+        load(refs, null);
+        List<RawBsonDocument> res = new ArrayList<>(docs);
+        for ( int i = 0; i < refs.size(); i ++ ) {
+            Document doc = refs.get(i);
+            if ( doc.get(Database.LOGS_BODY) == kept.get(i) )
+                continue;   // 没有找到分离存储的body
+            doc.remove(Database.LOGS_OFFLOAD);
+            res.set(index.get(i), new RawBsonDocument(doc, Cursor.Codec));
+        }
+        return res;
+    }
+
+    /** logs_bodies表的保存时间（小时）：所有日志表中最长的max_age，有永久保存的表时返回0 */
+    static long maxAge() {
+        Database.Retention retention = Service.LoggerOption.logs_retention;
+        long age = retention == null ? 0 : retention.max_age;
+        if ( !Service.single() )
+            for ( Database.Filter filter : Service.Filters.values() ) {
+                if ( age <= 0 )
+                    break;
+                age = filter.retention == null || filter.retention.max_age <= 0 ? 0 : Math.max(age, filter.retention.max_age);
+            }
+        return age;
+    }
+
+    /** 运行信息 */
+    static Map info() {
+        return Util.toMap(new Object[] {
+                "offloaded", Offloaded.sum(),
+                "offloaded_bytes", Bytes.sum(),
+                "loaded", Loaded.sum()
+        });
+    }
+}
@@ -0,0 +1,349 @@
+package rewin.service.ubsi.log;
+
+import org.bson.BsonRegularExpression;
+import org.bson.BsonTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+import java.util.regex.Pattern;
+
+/**
+ * 日志表的时间分区：表名为"基础表名_yyyyMMdd"（按天）或"基础表名_yyyyMMddHH"（按小时）
+ */
+public class Partition {
+
+    /** 分区方式 */
+    public enum Unit {
+        NONE(null, null),
+        DAY("yyyyMMdd", ChronoUnit.DAYS),
+        HOUR("yyyyMMddHH", ChronoUnit.HOURS);
+
+        final String            Pattern;    // 表名后缀的格式
+        final ChronoUnit        Chrono;     // 时间单位
+        final DateTimeFormatter Format;
+
+        Unit(String pattern, ChronoUnit chrono) {
+            Pattern = pattern;
+            Chrono = chrono;
+            Format = pattern == null ? null : DateTimeFormatter.ofPattern(pattern);
+        }
+
+        /** 解析配置项，无法识别时返回NONE */
+        public static Unit parse(String name) {
+            if ( name != null )
+                for ( Unit u : values() )
+                    if ( u.name().equalsIgnoreCase(name.trim()) )
+                        return u;
+            return NONE;
+        }
+    }
+
+    final static ZoneId Zone = ZoneId.systemDefault();
+
+    /** 分区的开始时间 */
+    public static long start(Unit unit, long time) {
+        LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), Zone).truncatedTo(unit.Chrono);
+        return t.atZone(Zone).toInstant().toEpochMilli();
+    }
+
+    /** 下一个分区的开始时间 */
+    public static long next(Unit unit, long time) {
+        LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), Zone).truncatedTo(unit.Chrono).plus(1, unit.Chrono);
+        return t.atZone(Zone).toInstant().toEpochMilli();
+    }
+
+    /** 日志时间所在分区的表名 */
+    public static String name(String base, Unit unit, long time) {
+        if ( unit == Unit.NONE )
+            return base;
+        return base + "_" + unit.Format.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), Zone));
+    }
+
+    // 解析分区表名的开始时间，不是base的分区时返回null
+    static Long parse(String base, String cname) {
+        if ( !cname.startsWith(base + "_") )
+            return null;
+        String suffix = cname.substring(base.length() + 1);
+        for ( Unit unit : Unit.values() ) {
+            if ( unit == Unit.NONE || suffix.length() != unit.Pattern.length() )
+                continue;
+            for ( int i = 0; i < suffix.length(); i ++ )
+                if ( !Character.isDigit(suffix.charAt(i)) )
+                    return null;
+            try {
+                LocalDateTime t = unit == Unit.DAY ?
+                        java.time.LocalDate.parse(suffix, unit.Format).atStartOfDay() :
+                        LocalDateTime.parse(suffix, unit.Format);
+                return t.atZone(Zone).toInstant().toEpochMilli();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /** 去掉表名中的分区后缀 */
+    public static String base(String cname) {
+        int i = cname.lastIndexOf('_');
+        if ( i > 0 && parse(cname.substring(0, i), cname) != null )
+            return cname.substring(0, i);
+        return cname;
+    }
+
+    /** 分区表的时间范围[开始时间, 结束时间)，不是base的分区时返回null */
+    public static long[] span(String base, String cname) {
+        Long start = parse(base, cname);
+        if ( start == null )
+            return null;
+        Unit unit = cname.length() - base.length() - 1 == Unit.DAY.Pattern.length() ? Unit.DAY : Unit.HOUR;
+        return new long[] { start, next(unit, start) };
+    }
+
+    /** 表base的所有分区（以及未分区的基础表），按时间升序 */
+    public static List<String> all(String base, Collection<String> collections) {
+        return select(base, collections, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /** 与时间范围[from, to]重叠的分区（未分区的基础表排在最前面），按时间升序 */
+    public static List<String> select(String base, Collection<String> collections, long from, long to) {
+        TreeMap<String, String> parts = new TreeMap<>();     // 分区名后缀（时间）-> 表名
+        List<String> res = new ArrayList<>();
+        for ( String cname : collections ) {
+            if ( cname.equals(base) )
+                res.add(cname);
+            else {
+                long[] span = span(base, cname);
+                if ( span != null && span[0] <= to && span[1] > from )
+                    parts.put(cname.substring(base.length() + 1), cname);
+            }
+        }
+        res.addAll(parts.values());
+        return res;
+    }
+
+    /** 解析查询条件中time字段的范围[from, to]（包含边界） */
+    public static long[] range(Map query) {
+        long[] r = new long[] { Long.MIN_VALUE, Long.MAX_VALUE };
+        narrow(query, r);
+        return r;
+    }
+
+    // 按照查询条件缩小时间范围，支持数值相等、$gt/$gte/$lt/$lte/$eq及顶层的$and
+    static void narrow(Map query, long[] r) {
+        if ( query == null )
+            return;
+        Object t = query.get(Database.LOGS_TIME);
+        if ( t instanceof Number ) {
+            r[0] = Math.max(r[0], ((Number) t).longValue());
+            r[1] = Math.min(r[1], ((Number) t).longValue());
+        } else if ( t instanceof Map ) {
+            for ( Object o : ((Map) t).entrySet() ) {
+                Map.Entry e = (Map.Entry) o;
+                if ( !(e.getValue() instanceof Number) )
+                    continue;
+                long v = ((Number) e.getValue()).longValue();
+                switch ( String.valueOf(e.getKey()) ) {
+                    case "$gt": r[0] = Math.max(r[0], v == Long.MAX_VALUE ? v : v + 1); break;
+                    case "$gte": r[0] = Math.max(r[0], v); break;
+                    case "$lt": r[1] = Math.min(r[1], v == Long.MIN_VALUE ? v : v - 1); break;
+                    case "$lte": r[1] = Math.min(r[1], v); break;
+                    case "$eq": r[0] = Math.max(r[0], v); r[1] = Math.min(r[1], v); break;
+                }
+            }
+        }
+        Object and = query.get("$and");
+        if ( and instanceof List )
+            for ( Object q : (List) and )
+                if ( q instanceof Map )
+                    narrow((Map) q, r);
+    }
+
+    /** 是否为互不重叠的同一种分区（不含未分区的基础表），可以按时间顺序依次查询 */
+    public static boolean isDisjoint(String base, List<String> cnames) {
+        int len = -1;
+        for ( String cname : cnames ) {
+            if ( cname.equals(base) || (len >= 0 && cname.length() != len) )
+                return false;
+            len = cname.length();
+        }
+        return true;
+    }
+
+    /** 按照sort（字段名->1/-1）生成记录的比较器，字段名可以是"a.b"格式 */
+    public static Comparator<Map> comparator(Map sort) {
+        String[] keys = new String[sort.size()];
+        int[] dirs = new int[sort.size()];
+        int i = 0;
+        for ( Object o : sort.entrySet() ) {
+            Map.Entry e = (Map.Entry) o;
+            keys[i] = String.valueOf(e.getKey());
+            dirs[i ++] = e.getValue() instanceof Number && ((Number) e.getValue()).intValue() < 0 ? -1 : 1;
+        }
+        return (a, b) -> {
+            for ( int k = 0; k < keys.length; k ++ ) {
+                int c = compare(value(a, keys[k]), value(b, keys[k]));
+                if ( c != 0 )
+                    return c * dirs[k];
+            }
+            return 0;
+        };
+    }
+
+    // 取字段的值
+    static Object value(Map doc, String path) {
+        Object o = doc;
+        for ( String key : path.split("\\.") ) {
+            if ( !(o instanceof Map) )
+                return null;
+            o = ((Map) o).get(key);
+        }
+        return o;
+    }
+
+    // BSON类型的比较顺序（同MongoDB）：MinKey, null, 数值, 字符串, 对象, 数组, 二进制, ObjectId, 布尔, 日期, 时间戳, 正则, MaxKey
+    static int rank(Object o) {
+        if ( o instanceof MinKey )
+            return 0;
+        if ( o == null )
+            return 1;
+        if ( o instanceof Number )
+            return 2;
+        if ( o instanceof String || o instanceof Symbol || o instanceof Character )
+            return 3;
+        if ( o instanceof Map )
+            return 4;
+        if ( o instanceof List || o instanceof Object[] )
+            return 5;
+        if ( o instanceof Binary || o instanceof byte[] )
+            return 6;
+        if ( o instanceof ObjectId )
+            return 7;
+        if ( o instanceof Boolean )
+            return 8;
+        if ( o instanceof Date )
+            return 9;
+        if ( o instanceof BsonTimestamp )
+            return 10;
+        if ( o instanceof Pattern || o instanceof BsonRegularExpression )
+            return 11;
+        if ( o instanceof MaxKey )
+            return 13;
+        return 12;
+    }
+
+    // 比较两个值：不同类型按BSON类型顺序，数值按大小，对象按字段（类型、名字、值）依次比较，数组按元素依次比较，同类型按自然顺序
+    @SuppressWarnings("unchecked")
+    static int compare(Object a, Object b) {
+        if ( a == b )
+            return 0;
+        int ra = rank(a), rb = rank(b);
+        if ( ra != rb )
+            return Integer.compare(ra, rb);
+        switch ( ra ) {
+            case 0: case 1: case 13:
+                return 0;
+            case 2:
+                if ( (a instanceof Long || a instanceof Integer) && (b instanceof Long || b instanceof Integer) )
+                    return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+                return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+            case 3:
+                return a.toString().compareTo(b.toString());
+            case 4:
+                Iterator<Map.Entry> x = ((Map) a).entrySet().iterator(), y = ((Map) b).entrySet().iterator();
+                while ( x.hasNext() && y.hasNext() ) {
+                    Map.Entry ex = x.next(), ey = y.next();
+                    int c = Integer.compare(rank(ex.getValue()), rank(ey.getValue()));
+                    if ( c == 0 )
+                        c = String.valueOf(ex.getKey()).compareTo(String.valueOf(ey.getKey()));
+                    if ( c == 0 )
+                        c = compare(ex.getValue(), ey.getValue());
+                    if ( c != 0 )
+                        return c;
+                }
+                return Boolean.compare(x.hasNext(), y.hasNext());
+            case 5:
+                List la = a instanceof List ? (List) a : Arrays.asList((Object[]) a);
+                List lb = b instanceof List ? (List) b : Arrays.asList((Object[]) b);
+                for ( int i = 0; i < la.size() && i < lb.size(); i ++ ) {
+                    int c = compare(la.get(i), lb.get(i));
+                    if ( c != 0 )
+                        return c;
+                }
+                return Integer.compare(la.size(), lb.size());
+            case 6:
+                byte[] ba = a instanceof Binary ? ((Binary) a).getData() : (byte[]) a;
+                byte[] bb = b instanceof Binary ? ((Binary) b).getData() : (byte[]) b;
+                if ( ba.length != bb.length )
+                    return Integer.compare(ba.length, bb.length);
+                for ( int i = 0; i < ba.length; i ++ )
+                    if ( ba[i] != bb[i] )
+                        return Integer.compare(ba[i] & 0xFF, bb[i] & 0xFF);
+                return 0;
+            case 11:
+                return a.toString().compareTo(b.toString());
+        }
+        if ( a.getClass() == b.getClass() && a instanceof Comparable )
+            return ((Comparable) a).compareTo(b);
+        return a.getClass().getName().compareTo(b.getClass().getName());
+    }
+
+    /**
+     * 按时间顺序依次查询互不重叠的分区，取够skip+limit条即停止
+     * @param cnames 按时间升序的分区
+     * @param desc 是否按时间降序
+     * @param fetch 查询一个分区：(表名, 最多需要的记录数，0表示不限) -> 已排序的记录
+     */
+    public static List sequential(List<String> cnames, boolean desc, int skip, int limit, BiFunction<String, Integer, List> fetch) {
+        int need = limit <= 0 ? 0 : skip + limit;
+        List<String> list = new ArrayList<>(cnames);
+        if ( desc )
+            Collections.reverse(list);
+        List res = new ArrayList();
+        for ( String cname : list ) {
+            res.addAll(fetch.apply(cname, need == 0 ? 0 : need - res.size()));
+            if ( need > 0 && res.size() >= need )
+                break;
+        }
+        return skip >= res.size() ? new ArrayList() : new ArrayList(res.subList(skip, need == 0 ? res.size() : Math.min(need, res.size())));
+    }
+
+    /** 归并多个已排序的结果，跳过skip条后返回最多limit条（0表示不限） */
+    public static List merge(List<List> sorted, Map sort, int skip, int limit) {
+        Comparator<Map> cmp = comparator(sort);
+        PriorityQueue<int[]> heap = new PriorityQueue<>((x, y) ->
+                cmp.compare((Map) sorted.get(x[0]).get(x[1]), (Map) sorted.get(y[0]).get(y[1])));
+        for ( int i = 0; i < sorted.size(); i ++ )
+            if ( !sorted.get(i).isEmpty() )
+                heap.add(new int[] { i, 0 });
+        List res = new ArrayList();
+        int n = 0;
+        while ( !heap.isEmpty() && (limit <= 0 || res.size() < limit) ) {
+            int[] top = heap.poll();
+            if ( n ++ >= skip )
+                res.add(sorted.get(top[0]).get(top[1]));
+            if ( ++ top[1] < sorted.get(top[0]).size() )
+                heap.add(top);
+        }
+        return res;
+    }
+}
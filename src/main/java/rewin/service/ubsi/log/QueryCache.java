@@ -0,0 +1,208 @@
+package rewin.service.ubsi.log;
+
+import org.bson.Document;
+import rewin.ubsi.common.JedisUtil;
+import rewin.ubsi.common.Util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * count/aggregate的查询结果缓存（LRU，限制条数及内存）：
+ * 时间范围已完全过去的结果在写入迟到的日志（补写或回放）后失效（多实例部署时另有有效时间）；包含当前时间的结果在数据表的写入水位变化后失效
+ */
+public class QueryCache {
+
+    // 缓存项
+    static class Entry {
+        final String    Filter;         // 过滤器ID，null表示主表
+        final Object    Value;          // 查询结果
+        final boolean   Past;           // 时间范围是否已完全过去
+        final long      Mark;           // 查询前的写入水位
+        final long      Late;           // 查询前的迟到水位
+        final long      Time = System.currentTimeMillis();  // 缓存的时间
+        final int       Bytes;          // 估计的内存字节数
+
+        Entry(String filter, Object value, boolean past, long[] mark, int bytes) {
+            Filter = filter;
+            Value = value;
+            Past = past;
+            Mark = mark[0];
+            Late = mark[1];
+            Bytes = bytes;
+        }
+    }
+
+    final static LinkedHashMap<String, Entry> Cache = new LinkedHashMap<>(256, 0.75f, true);    // 按访问顺序
+    static long Bytes = 0;                          // 缓存的字节数
+    final static LongAdder Hits = new LongAdder();
+    final static LongAdder Misses = new LongAdder();
+    final static LongAdder Evictions = new LongAdder();
+
+    // 过滤器ID的规范形式
+    static String filter(String filterId) {
+        return filterId == null || filterId.trim().isEmpty() ? null : filterId.trim();
+    }
+
+    /** 缓存的key：操作类型 + 过滤器ID + 查询条件（规范化后的文本），不适合缓存时返回null */
+    static String key(String op, String filterId, Object query) {
+        if ( Service.LoggerOption.cache_bytes <= 0 )
+            return null;
+        StringBuilder sb = new StringBuilder(op).append('|');
+        String filter = filter(filterId);
+        if ( filter != null )
+            sb.append(filter);
+        sb.append('|');
+        canon(sb, query);
+        String key = sb.toString();
+        // 不缓存有写操作或结果不确定的聚合
+        if ( key.contains("\"$out\"") || key.contains("\"$merge\"") || key.contains("\"$sample\"") || key.contains("$$NOW") || key.contains("\"$rand\"") )
+            return null;
+        return key;
+    }
+
+    // 规范化的文本（保持Map中字段的顺序，空的查询条件等同于null）
+    static void canon(StringBuilder sb, Object o) {
+        if ( o == null || (o instanceof Map && ((Map) o).isEmpty()) )
+            sb.append("null");
+        else if ( o instanceof Map ) {
+            sb.append('{');
+            for ( Object e : ((Map) o).entrySet() ) {
+                canon(sb, String.valueOf(((Map.Entry) e).getKey()));
+                sb.append(':');
+                canon(sb, ((Map.Entry) e).getValue());
+                sb.append(',');
+            }
+            sb.append('}');
+        } else if ( o instanceof List || o instanceof Object[] ) {
+            sb.append('[');
+            for ( Object item : o instanceof List ? (List) o : java.util.Arrays.asList((Object[]) o) ) {
+                canon(sb, item);
+                sb.append(',');
+            }
+            sb.append(']');
+        } else if ( o instanceof String )
+            sb.append('"').append(((String) o).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        else if ( o instanceof Number || o instanceof Boolean )
+            sb.append(o);
+        else
+            sb.append(o.getClass().getSimpleName()).append('(').append(o).append(')');
+    }
+
+    /** 查询前的水位：[写入水位, 迟到水位] */
+    static long[] mark(String filterId) {
+        String filter = filter(filterId);
+        return new long[] { Service.BatchDealer.watermark(filter), Service.BatchDealer.late(filter) };
+    }
+
+    /** 查询缓存，未命中或已失效时返回null */
+    static Object get(String key) {
+        if ( key == null )
+            return null;
+        Entry entry;
+        synchronized (Cache) {
+            entry = Cache.get(key);
+        }
+        if ( entry != null && entry.Past ) {
+            // 多实例部署时看不到其他实例的迟到写入及数据删除，另按缓存时间判断
+            if ( Service.BatchDealer.late(entry.Filter) != entry.Late ||
+                    (JedisUtil.isInited() && System.currentTimeMillis() - entry.Time >= Service.LoggerOption.cache_past) ) {
+                remove(key);
+                entry = null;
+            }
+        } else if ( entry != null ) {
+            long age = System.currentTimeMillis() - entry.Time;
+            // 多实例部署时看不到其他实例的写入，只按缓存时间判断
+            boolean valid = age < Service.LoggerOption.cache_fresh ||
+                    (!JedisUtil.isInited() && Service.BatchDealer.watermark(entry.Filter) == entry.Mark);
+            if ( !valid ) {
+                remove(key);
+                entry = null;
+            }
+        }
+        if ( entry == null ) {
+            Misses.increment();
+            return null;
+        }
+        Hits.increment();
+        return entry.Value;
+    }
+
+    /** 保存查询结果，upper为查询条件中time的上限，mark为查询前的水位 */
+    static void put(String key, String filterId, long upper, long[] mark, Object value) {
+        if ( key == null || value == null )
+            return;
+        Config.Option option = Service.LoggerOption;
+        boolean past = upper < System.currentTimeMillis() - option.cache_settle;
+        int bytes = key.length() * 2 + 64;
+        if ( !(value instanceof Number) )
+            bytes += new Document("v", value).toJson().length() * 2;
+        if ( bytes > option.cache_bytes / 4 )
+            return;     // 过大的结果不缓存
+        Entry entry = new Entry(filter(filterId), value, past, mark, bytes);
+        synchronized (Cache) {
+            Entry old = Cache.put(key, entry);
+            if ( old != null )
+                Bytes -= old.Bytes;
+            Bytes += bytes;
+            Iterator<Entry> it = Cache.values().iterator();
+            while ( it.hasNext() && (Bytes > option.cache_bytes || Cache.size() > option.cache_count) ) {
+                Bytes -= it.next().Bytes;
+                it.remove();
+                Evictions.increment();
+            }
+        }
+    }
+
+    // 删除缓存项
+    static void remove(String key) {
+        synchronized (Cache) {
+            Entry old = Cache.remove(key);
+            if ( old != null )
+                Bytes -= old.Bytes;
+        }
+    }
+
+    /** 数据删除或过滤器变化后，清除相关的缓存 */
+    static void invalidate(String filterId) {
+        String filter = filter(filterId);
+        synchronized (Cache) {
+            Iterator<Entry> it = Cache.values().iterator();
+            while ( it.hasNext() ) {
+                Entry entry = it.next();
+                if ( filter == null ? entry.Filter == null : filter.equals(entry.Filter) ) {
+                    Bytes -= entry.Bytes;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /** 清除所有缓存 */
+    static void clear() {
+        synchronized (Cache) {
+            Cache.clear();
+            Bytes = 0;
+        }
+    }
+
+    /** 运行信息 */
+    static Map info() {
+        int size;
+        long bytes;
+        synchronized (Cache) {
+            size = Cache.size();
+            bytes = Bytes;
+        }
+        return Util.toMap(new Object[] {
+                "entries", size,
+                "bytes", bytes,
+                "hits", Hits.sum(),
+                "misses", Misses.sum(),
+                "evictions", Evictions.sum()
+        });
+    }
+}
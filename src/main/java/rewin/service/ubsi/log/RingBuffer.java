@@ -0,0 +1,226 @@
+package rewin.service.ubsi.log;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 有界的多生产者环形缓冲队列（限制条数及字节数，长度计算为O(1)）
+ */
+public class RingBuffer<E> {
+
+    /** 队列满时的溢出策略 */
+    public enum Overflow {
+        DROP_NEWEST,        // 丢弃新记录
+        DROP_OLDEST,        // 丢弃最早的记录
+        BLOCK,              // 阻塞等待（超时后丢弃新记录）
+        SPILL;              // 交由调用者溢出到磁盘
+
+        /** 解析配置项，无法识别时返回DROP_NEWEST */
+        public static Overflow parse(String name) {
+            if ( name != null )
+                for ( Overflow o : values() )
+                    if ( o.name().equalsIgnoreCase(name.trim()) )
+                        return o;
+            return DROP_NEWEST;
+        }
+    }
+
+    final int               Mask;           // 容量 - 1（容量为2的幂）
+    final AtomicLongArray   Sequence;       // 每个槽位的序号
+    final Object[]          Items;          // 槽位中的记录
+    final long[]            Sizes;          // 槽位中记录的字节数
+    final AtomicLong        Head = new AtomicLong(0);   // 读位置
+    final AtomicLong        Tail = new AtomicLong(0);   // 写位置
+    final AtomicLong        Bytes = new AtomicLong(0);  // 当前的字节数
+
+    final long      MaxBytes;           // 最大字节数
+    final Overflow  Policy;             // 溢出策略
+    final long      BlockNanos;         // BLOCK策略的等待时间
+
+    final LongAdder Dropped = new LongAdder();      // 丢弃的新记录数量
+    final LongAdder Evicted = new LongAdder();      // 丢弃的旧记录数量
+    final LongAdder TimedOut = new LongAdder();     // 等待超时后丢弃的记录数量
+
+    /**
+     * @param count 最大记录数（向上取整为2的幂）
+     * @param bytes 最大字节数，<=0表示不限
+     * @param policy 溢出策略
+     * @param blockMillis BLOCK策略的等待时间（毫秒）
+     */
+    public RingBuffer(int count, long bytes, Overflow policy, long blockMillis) {
+        int cap = 1;
+        while ( cap < count && cap < (1 << 30) )
+            cap <<= 1;
+        Mask = cap - 1;
+        Sequence = new AtomicLongArray(cap);
+        for ( int i = 0; i < cap; i ++ )
+            Sequence.set(i, i);
+        Items = new Object[cap];
+        Sizes = new long[cap];
+        MaxBytes = bytes <= 0 ? Long.MAX_VALUE : bytes;
+        Policy = policy == null ? Overflow.DROP_NEWEST : policy;
+        BlockNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, blockMillis));
+    }
+
+    // 写入槽位，队列满时返回false
+    boolean push(E e, long size) {
+        long pos = Tail.get();
+        int idx;
+        for ( ; ; ) {
+            idx = (int)(pos & Mask);
+            long dif = Sequence.get(idx) - pos;
+            if ( dif == 0 ) {
+                if ( Tail.compareAndSet(pos, pos + 1) )
+                    break;
+                pos = Tail.get();
+            } else if ( dif < 0 )
+                return false;
+            else
+                pos = Tail.get();
+        }
+        Items[idx] = e;
+        Sizes[idx] = size;
+        Sequence.set(idx, pos + 1);     // 发布
+        return true;
+    }
+
+    // 检查字节数并写入，单条超限的记录在队列为空时仍然可以写入
+    boolean tryOffer(E e, long size) {
+        long bytes = Bytes.addAndGet(size);
+        if ( bytes > MaxBytes && bytes != size ) {
+            Bytes.addAndGet(-size);
+            return false;
+        }
+        if ( !push(e, size) ) {
+            Bytes.addAndGet(-size);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 写入记录，按照溢出策略处理队列满的情况
+     * @return false表示记录未写入（SPILL策略时由调用者负责溢出处理及计数）
+     */
+    public boolean offer(E e, long size) {
+        if ( tryOffer(e, size) )
+            return true;
+        switch ( Policy ) {
+            case DROP_OLDEST:
+                for ( int i = 0; i <= Mask; i ++ ) {
+                    if ( poll() != null )
+                        Evicted.increment();
+                    if ( tryOffer(e, size) )
+                        return true;
+                }
+                break;
+            case BLOCK:
+                long deadline = System.nanoTime() + BlockNanos;
+                while ( System.nanoTime() - deadline < 0 ) {
+                    LockSupport.parkNanos(50000);   // 等待消费者腾出空间
+                    if ( tryOffer(e, size) )
+                        return true;
+                }
+                TimedOut.increment();
+                return false;
+            case SPILL:
+                return false;
+        }
+        Dropped.increment();
+        return false;
+    }
+
+    /** 取出最早的记录，队列为空时返回null */
+    public E poll() {
+        return poll(null);
+    }
+
+    // 取出最早的记录，size[0]返回记录的字节数
+    @SuppressWarnings("unchecked")
+    E poll(long[] size) {
+        long pos = Head.get();
+        int idx;
+        for ( ; ; ) {
+            idx = (int)(pos & Mask);
+            long dif = Sequence.get(idx) - (pos + 1);
+            if ( dif == 0 ) {
+                if ( Head.compareAndSet(pos, pos + 1) )
+                    break;
+                pos = Head.get();
+            } else if ( dif < 0 )
+                return null;
+            else
+                pos = Head.get();
+        }
+        E e = (E)Items[idx];
+        long bytes = Sizes[idx];
+        Items[idx] = null;
+        Sequence.set(idx, pos + Mask + 1);  // 释放槽位
+        Bytes.addAndGet(-bytes);
+        if ( size != null )
+            size[0] = bytes;
+        return e;
+    }
+
+    /** 取出最多max条记录放入list，返回取出的数量 */
+    public int drain(List<? super E> list, int max) {
+        int n = 0;
+        E e;
+        while ( n < max && (e = poll()) != null ) {
+            list.add(e);
+            n ++;
+        }
+        return n;
+    }
+
+    /** 取出最多max条记录放入list，累计字节数达到maxBytes时停止，返回取出的数量 */
+    public int drain(List<? super E> list, int max, long maxBytes) {
+        int n = 0;
+        long bytes = 0;
+        long[] size = new long[1];
+        while ( n < max && bytes < maxBytes ) {
+            E e = poll(size);
+            if ( e == null )
+                break;
+            list.add(e);
+            bytes += size[0];
+            n ++;
+        }
+        return n;
+    }
+
+    /** 当前记录数 */
+    public int size() {
+        long n = Tail.get() - Head.get();
+        return n <= 0 ? 0 : (int)Math.min(n, Mask + 1);
+    }
+
+    /** 当前字节数 */
+    public long bytes() {
+        return Bytes.get();
+    }
+
+    /** 是否为空 */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** 容量 */
+    public int capacity() {
+        return Mask + 1;
+    }
+
+    /** 使用率（记录数及字节数中较高的比例） */
+    public double load() {
+        return Math.max((double) size() / capacity(), (double) bytes() / MaxBytes);
+    }
+
+    /** 丢弃的记录总数 */
+    public long shed() {
+        return Dropped.sum() + Evicted.sum() + TimedOut.sum();
+    }
+}
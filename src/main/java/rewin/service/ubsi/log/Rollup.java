@@ -0,0 +1,200 @@
+package rewin.service.ubsi.log;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import rewin.ubsi.common.LogUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 日志数量的预聚合：写日志时按(分钟, type, app, service, entry)在内存中计数（包括被限速/采样丢弃的日志），定期累加到logs_stats表
+ */
+public class Rollup {
+
+    final static long MINUTE = 60 * 1000;
+    final static double FOLDED = -2;        // 合并为汇总日志（add的admit参数）
+
+    // 计数的维度
+    static class Key {
+        final long      Minute;
+        final int       Type;
+        final String    App;
+        final String    Service;        // 访问日志的body.service
+        final String    Entry;          // 访问日志的body.entry
+        final int       Hash;
+
+        Key(long minute, int type, String app, String service, String entry) {
+            Minute = minute;
+            Type = type;
+            App = app;
+            Service = service;
+            Entry = entry;
+            Hash = Objects.hash(minute, type, app, service, entry);
+        }
+
+        @Override
+        public int hashCode() {
+            return Hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if ( !(o instanceof Key) )
+                return false;
+            Key k = (Key) o;
+            return Minute == k.Minute && Type == k.Type && Objects.equals(App, k.App)
+                    && Objects.equals(Service, k.Service) && Objects.equals(Entry, k.Entry);
+        }
+
+        // 统计表的_id
+        String id() {
+            return Minute + "|" + Type + "|" + (App == null ? "" : App) + "|" + (Service == null ? "" : Service) + "|" + (Entry == null ? "" : Entry);
+        }
+    }
+
+    // 计数
+    static class Counter {
+        final LongAdder Count = new LongAdder();        // 收到的日志数量（包括被丢弃的）
+        final LongAdder Limited = new LongAdder();      // 被限速丢弃的数量
+        final LongAdder Sampled = new LongAdder();      // 被采样丢弃的数量
+        final LongAdder Folded = new LongAdder();       // 合并为汇总日志的数量
+    }
+
+    static ConcurrentHashMap<Key, Counter> Counters = new ConcurrentHashMap<>();
+
+    /** 计数一条日志，admit为Limiter.admit的结果，或FOLDED表示被合并 */
+    static void add(Long time, Integer type, String app, Object body, double admit) {
+        if ( Service.LoggerOption.stats_interval <= 0 )
+            return;
+        long t = time == null ? System.currentTimeMillis() : time;
+        String service = null, entry = null;
+        int tp = type == null ? 0 : type;
+        if ( tp == LogUtil.ACCESS && body instanceof Map ) {
+            Object s = ((Map) body).get("service");
+            Object e = ((Map) body).get("entry");
+            service = s == null ? null : s.toString();
+            entry = e == null ? null : e.toString();
+        }
+        Key key = new Key(t - Math.floorMod(t, MINUTE), tp, app, service, entry);
+        Counter n = Counters.get(key);
+        if ( n == null ) {
+            Counter old = Counters.putIfAbsent(key, n = new Counter());
+            if ( old != null )
+                n = old;
+        }
+        n.Count.increment();
+        if ( admit == Limiter.LIMITED )
+            n.Limited.increment();
+        else if ( admit == Limiter.SAMPLED )
+            n.Sampled.increment();
+        else if ( admit == FOLDED )
+            n.Folded.increment();
+    }
+
+    /** 将计数累加到logs_stats表（多实例的计数通过$inc合并） */
+    static void flush() {
+        long now = System.currentTimeMillis();
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        Map<Key, long[]> counts = new LinkedHashMap<>();
+        for ( Map.Entry<Key, Counter> e : Counters.entrySet() ) {
+            Key key = e.getKey();
+            long n = e.getValue().Count.sumThenReset();
+            long limited = e.getValue().Limited.sumThenReset();
+            long sampled = e.getValue().Sampled.sumThenReset();
+            long folded = e.getValue().Folded.sumThenReset();
+            if ( n == 0 ) {
+                if ( now - key.Minute > 2 * MINUTE )
+                    Counters.remove(key, e.getValue());     // 不再变化的计数
+                continue;
+            }
+            counts.put(key, new long[] { n, limited, sampled, folded });
+            Document inc = new Document("count", n);
+            if ( limited > 0 )
+                inc.append("limited", limited);
+            if ( sampled > 0 )
+                inc.append("sampled", sampled);
+            if ( folded > 0 )
+                inc.append("folded", folded);
+            updates.add(new UpdateOneModel<>(
+                    new Document("_id", key.id()),
+                    new Document("$inc", inc)
+                            .append("$setOnInsert", new Document(Database.LOGS_TIME, key.Minute)
+                                    .append(Database.LOGS_TYPE, key.Type)
+                                    .append(Database.LOGS_APP, key.App)
+                                    .append("service", key.Service)
+                                    .append("entry", key.Entry)),
+                    new UpdateOptions().upsert(true)));
+        }
+        if ( updates.isEmpty() )
+            return;
+        try {
+            MongoCollection<Document> col = Service.MongoDBLogs.getCollection(Database.COL_STATS);
+            col.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+        } catch (Exception e) {
+            System.out.println("[ERROR] rewin.service.log stats " + e.toString());
+            for ( Map.Entry<Key, long[]> c : counts.entrySet() ) {     // 下次重新写入
+                Counter n = Counters.computeIfAbsent(c.getKey(), k -> new Counter());
+                n.Count.add(c.getValue()[0]);
+                n.Limited.add(c.getValue()[1]);
+                n.Sampled.add(c.getValue()[2]);
+                n.Folded.add(c.getValue()[3]);
+            }
+        }
+    }
+
+    /** 清除计数 */
+    static void clear() {
+        Counters.clear();
+    }
+
+    /**
+     * 按时间间隔及维度汇总日志数量
+     * @param query 查询条件，字段：time, type, app, service, entry
+     * @param group 汇总的维度，可以是type, app, service, entry
+     * @param interval 时间间隔（分钟），<=0表示不按时间分组
+     */
+    @SuppressWarnings("unchecked")
+    static List<Map> query(Map query, List<String> group, int interval) {
+        Document id = new Document();
+        if ( interval > 0 )
+            id.append(Database.LOGS_TIME, new Document("$subtract", Arrays.asList(
+                    "$" + Database.LOGS_TIME, new Document("$mod", Arrays.asList("$" + Database.LOGS_TIME, interval * MINUTE)))));
+        if ( group != null )
+            for ( String field : group )
+                id.append(field, "$" + field);
+        List<Document> pipeline = new ArrayList<>();
+        if ( query != null && !query.isEmpty() )
+            pipeline.add(new Document("$match", new Document(query)));
+        pipeline.add(new Document("$group", new Document("_id", id)
+                .append("count", new Document("$sum", "$count"))
+                .append("limited", new Document("$sum", "$limited"))
+                .append("sampled", new Document("$sum", "$sampled"))
+                .append("folded", new Document("$sum", "$folded"))));
+        pipeline.add(new Document("$sort", new Document("_id", 1)));
+
+        List<Map> res = new ArrayList<>();
+        for ( Document doc : Service.MongoDBLogs.getCollection(Database.COL_STATS).aggregate(pipeline) ) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            Object key = doc.get("_id");
+            if ( key instanceof Map )
+                item.putAll((Map<String, Object>) key);
+            item.put("count", doc.get("count"));
+            item.put("limited", doc.get("limited"));
+            item.put("sampled", doc.get("sampled"));
+            item.put("folded", doc.get("folded"));
+            res.add(item);
+        }
+        return res;
+    }
+}
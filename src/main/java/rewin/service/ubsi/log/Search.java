@@ -0,0 +1,388 @@
+package rewin.service.ubsi.log;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import rewin.ubsi.common.Util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 最近日志的全文检索：写日志时由后台线程增量建立内存中的倒排索引（tips、code及配置的body字段，按非字母数字分词，
+ * 每个词取3个字符的n-gram），索引按收到的时间分段，超过保留时间或内存上限时淘汰最早的段；
+ * 检索时按n-gram的倒排列表求交集，再以原文本验证子串匹配
+ */
+public class Search {
+
+    final static int GRAM = 3;                  // n-gram的长度
+    final static String FILTER = "\u0001";      // 过滤器的倒排列表的key前缀
+    final static char SEPARATOR = '\n';         // 各字段文本的分隔符
+    final static int BATCH = 10000;             // 每次建立索引的最大日志条数
+    final static int DOC_BYTES = 64;            // 每条日志的固定内存开销（估计值）
+    final static int POSTING_BYTES = 96;        // 每个倒排列表的固定内存开销（估计值）
+
+    // 倒排列表：文档序号（升序）
+    static class Posting {
+        int[] Docs = new int[2];
+        int Size = 0;
+
+        void add(int doc) {
+            if ( Size > 0 && Docs[Size - 1] == doc )
+                return;     // 同一条日志中重复的n-gram
+            if ( Size == Docs.length )
+                Docs = Arrays.copyOf(Docs, Size * 2);
+            Docs[Size ++] = doc;
+        }
+    }
+
+    // 一个时间段的索引（只由索引线程写入，读写都需要锁定）
+    static class Segment {
+        final long Start;                   // 段的开始时间
+        int Count = 0;                      // 日志数量
+        byte[] Ids = new byte[12 * 256];    // 日志的_id（每个12字节）
+        long[] Times = new long[256];       // 日志的时间
+        String[] Texts = new String[256];   // 索引的文本（小写）
+        final HashMap<String, Posting> Postings = new HashMap<>();
+        volatile long Bytes = 0;            // 内存字节数（估计值）
+        long MinTime = Long.MAX_VALUE;      // 日志的最早时间
+        long MaxTime = Long.MIN_VALUE;      // 日志的最晚时间
+
+        Segment(long start) {
+            Start = start;
+        }
+
+        // 加入一条日志
+        void add(ObjectId id, long time, String text, List<String> filters) {
+            if ( Count == Times.length ) {
+                int cap = Count * 2;
+                Ids = Arrays.copyOf(Ids, cap * 12);
+                Times = Arrays.copyOf(Times, cap);
+                Texts = Arrays.copyOf(Texts, cap);
+            }
+            int doc = Count;
+            id.putToByteBuffer(ByteBuffer.wrap(Ids, doc * 12, 12));
+            Times[doc] = time;
+            Texts[doc] = text;
+            Count ++;
+            MinTime = Math.min(MinTime, time);
+            MaxTime = Math.max(MaxTime, time);
+            long bytes = DOC_BYTES + text.length() * 2L;
+            for ( String filterId : filters )
+                bytes += post(FILTER + filterId, doc);
+            for ( String gram : grams(text) )
+                bytes += post(gram, doc);
+            Bytes += bytes;
+        }
+
+        // 加入倒排列表，返回增加的内存字节数
+        long post(String key, int doc) {
+            Posting p = Postings.get(key);
+            if ( p == null ) {
+                Postings.put(key, p = new Posting());
+                p.add(doc);
+                return POSTING_BYTES + key.length() * 2L;
+            }
+            int size = p.Size;
+            p.add(doc);
+            return p.Size == size ? 0 : 4;
+        }
+
+        // 日志的_id
+        ObjectId id(int doc) {
+            return new ObjectId(ByteBuffer.wrap(Ids, doc * 12, 12));
+        }
+    }
+
+    static ConcurrentLinkedDeque<Segment> Segments = new ConcurrentLinkedDeque<>();     // 按时间顺序
+    static volatile RingBuffer<Object[]> Queue = null;     // 等待建立索引的日志：[_id, time, text, filters]
+    static Thread Indexer = null;
+    final static LongAdder Indexed = new LongAdder();      // 建立索引的日志数量
+
+    /** 启动索引线程，search_hours<=0时不建立索引 */
+    static void start(Config.Option option) {
+        if ( option.search_hours <= 0 )
+            return;
+        RingBuffer<Object[]> queue = new RingBuffer<>(option.search_queue, option.search_bytes / 8, RingBuffer.Overflow.DROP_NEWEST, 0);
+        Thread t = new Thread(() -> {
+            List<Object[]> batch = new ArrayList<>();
+            while ( !Thread.currentThread().isInterrupted() ) {
+                try {
+                    if ( queue.drain(batch, BATCH) == 0 )
+                        Thread.sleep(50);
+                    else
+                        index(batch);
+                    evict();
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    System.out.println("[ERROR] rewin.service.log search " + e.toString());
+                } finally {
+                    batch.clear();
+                }
+            }
+        }, "rewin.service.log.search");
+        t.setDaemon(true);
+        t.start();
+        Indexer = t;
+        Queue = queue;
+    }
+
+    /** 停止索引线程并清除索引 */
+    static void stop() {
+        Queue = null;
+        if ( Indexer != null ) {
+            Indexer.interrupt();
+            Indexer = null;
+        }
+        clear();
+    }
+
+    /** 清除索引 */
+    static void clear() {
+        Segments.clear();
+    }
+
+    /** 加入等待建立索引的日志（由写日志接口调用，只保留_id、时间、索引的文本及过滤器ID），队列满时丢弃并计数 */
+    static void add(Object[] data, RawBsonDocument doc, List<String> filters) {
+        RingBuffer<Object[]> queue = Queue;
+        if ( queue == null )
+            return;
+        String text = text(data, Service.LoggerOption);
+        long time = data[0] instanceof Number ? ((Number) data[0]).longValue() : System.currentTimeMillis();
+        queue.offer(new Object[] { doc.getObjectId("_id").getValue(), time, text, filters }, DOC_BYTES + text.length() * 2L);
+    }
+
+    // 建立索引，当前段超过时间或内存上限的1/8时开始新的段
+    @SuppressWarnings("unchecked")
+    static void index(List<Object[]> batch) {
+        Config.Option option = Service.LoggerOption;
+        if ( option == null )
+            return;
+        long now = System.currentTimeMillis();
+        Segment seg = Segments.peekLast();
+        if ( seg == null || now - seg.Start >= option.search_segment * 60 * 1000L || seg.Bytes >= option.search_bytes / 8 ) {
+            seg = new Segment(now);
+            Segments.add(seg);
+        }
+        synchronized (seg) {
+            for ( Object[] item : batch ) {
+                try {
+                    seg.add((ObjectId) item[0], (Long) item[1], (String) item[2], (List<String>) item[3]);
+                    Indexed.increment();
+                } catch (Exception e) {
+                    System.out.println("[ERROR] rewin.service.log search " + e.toString());
+                }
+            }
+        }
+    }
+
+    // 日志中索引的文本（小写），各字段以SEPARATOR分隔，每个字段最多search_text个字符
+    static String text(Object[] data, Config.Option option) {
+        StringBuilder sb = new StringBuilder();
+        for ( String field : option.search_fields == null ? java.util.Collections.<String>emptyList() : option.search_fields ) {
+            Object v = LogCodec.field(data, field);
+            if ( v == null )
+                continue;
+            String s = v.toString();
+            if ( sb.length() > 0 )
+                sb.append(SEPARATOR);
+            sb.append(s.length() > option.search_text ? s.substring(0, option.search_text) : s);
+        }
+        return sb.toString().toLowerCase();
+    }
+
+    // 淘汰超过保留时间的段，总内存超过search_bytes时淘汰最早的段（当前段除外）
+    static void evict() {
+        Config.Option option = Service.LoggerOption;
+        if ( option == null )
+            return;
+        long expire = System.currentTimeMillis() - option.search_hours * 3600 * 1000L - option.search_segment * 60 * 1000L;
+        long bytes = bytes();
+        for ( Segment seg = Segments.peekFirst(); seg != null && seg != Segments.peekLast(); seg = Segments.peekFirst() ) {
+            if ( seg.Start >= expire && bytes <= option.search_bytes )
+                break;
+            Segments.remove(seg);
+            bytes -= seg.Bytes;
+        }
+    }
+
+    // 索引的内存字节数（估计值）
+    static long bytes() {
+        long bytes = 0;
+        for ( Segment seg : Segments )
+            bytes += seg.Bytes;
+        return bytes;
+    }
+
+    // 解析检索的文本：空格分隔的词（小写），双引号中的短语作为一个词
+    static List<String> terms(String text) {
+        List<String> res = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for ( char c : (text.toLowerCase() + " ").toCharArray() ) {
+            if ( c == '"' )
+                quoted = !quoted;
+            else if ( quoted || !Character.isWhitespace(c) ) {
+                sb.append(c);
+                continue;
+            }
+            if ( sb.length() > 0 )
+                res.add(sb.toString());
+            sb.setLength(0);
+        }
+        return res;
+    }
+
+    // 文本中的n-gram：按非字母数字分词，每个词中连续的GRAM个字符
+    static List<String> grams(String term) {
+        List<String> res = new ArrayList<>();
+        int start = -1;
+        for ( int i = 0; i <= term.length(); i ++ ) {
+            if ( i < term.length() && Character.isLetterOrDigit(term.charAt(i)) ) {
+                if ( start < 0 )
+                    start = i;
+                continue;
+            }
+            for ( int j = start; start >= 0 && j + GRAM <= i; j ++ )
+                res.add(term.substring(j, j + GRAM));
+            start = -1;
+        }
+        return res;
+    }
+
+    // 有序数组的交集
+    static int[] intersect(int[] a, int[] b, int bn) {
+        int[] res = new int[Math.min(a.length, bn)];
+        int n = 0;
+        for ( int i = 0, j = 0; i < a.length && j < bn; ) {
+            if ( a[i] < b[j] )
+                i ++;
+            else if ( a[i] > b[j] )
+                j ++;
+            else {
+                res[n ++] = a[i];
+                i ++;
+                j ++;
+            }
+        }
+        return n == res.length ? res : Arrays.copyOf(res, n);
+    }
+
+    /**
+     * 检索日志，返回{ ids: 匹配的日志_id列表（按收到的时间倒序）, docs: 日志数据列表, since: 索引覆盖的最早时间, truncated: 是否达到limit }
+     * @param filterId 过滤器ID，null表示所有日志
+     * @param text 检索的文本，所有的词都需要出现（子串匹配，不区分大小写）
+     * @param from 开始时间，0表示不限
+     * @param to 结束时间，0表示不限
+     * @param limit 返回的最大数量
+     * @param docs 是否从MongoDB中读取日志数据
+     */
+    static Map search(String filterId, String text, long from, long to, int limit, boolean docs) throws Exception {
+        if ( Queue == null )
+            throw new Exception("search is disabled");
+        List<String> terms = terms(text == null ? "" : text);
+        if ( terms.isEmpty() )
+            throw new Exception("invalid text");
+        List<String> keys = new ArrayList<>();
+        if ( filterId != null && !filterId.trim().isEmpty() )
+            keys.add(FILTER + filterId.trim());
+        for ( String term : terms )
+            keys.addAll(grams(term));
+        if ( to <= 0 )
+            to = Long.MAX_VALUE;
+
+        List<ObjectId> ids = new ArrayList<>();
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        Segment first = Segments.peekFirst();
+        for ( Iterator<Segment> it = Segments.descendingIterator(); it.hasNext() && ids.size() < limit; ) {
+            Segment seg = it.next();
+            synchronized (seg) {
+                if ( seg.Count == 0 || seg.MaxTime < from || seg.MinTime > to )
+                    continue;
+                // 候选日志：倒排列表从短到长求交集，没有可用的n-gram时（都是短词）逐条验证
+                List<Posting> postings = new ArrayList<>();
+                for ( String key : keys ) {
+                    Posting p = seg.Postings.get(key);
+                    if ( p == null ) {
+                        postings = null;
+                        break;
+                    }
+                    postings.add(p);
+                }
+                if ( postings == null )
+                    continue;
+                postings.sort((a, b) -> Integer.compare(a.Size, b.Size));
+                int[] cands = null;
+                for ( Posting p : postings ) {
+                    cands = cands == null ? Arrays.copyOf(p.Docs, p.Size) : intersect(cands, p.Docs, p.Size);
+                    if ( cands.length == 0 )
+                        break;
+                }
+                int n = cands == null ? seg.Count : cands.length;
+                for ( int i = n - 1; i >= 0 && ids.size() < limit; i -- ) {
+                    int doc = cands == null ? i : cands[i];
+                    long time = seg.Times[doc];
+                    if ( time < from || time > to )
+                        continue;
+                    boolean match = true;
+                    for ( String term : terms )
+                        if ( !seg.Texts[doc].contains(term) ) {
+                            match = false;
+                            break;
+                        }
+                    if ( !match )
+                        continue;
+                    ids.add(seg.id(doc));
+                    min = Math.min(min, time);
+                    max = Math.max(max, time);
+                }
+            }
+        }
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("ids", ids);
+        if ( docs )
+            res.put("docs", load(filterId, ids, min, max));
+        res.put("since", first == null ? System.currentTimeMillis() : first.Start);
+        res.put("truncated", ids.size() >= limit);
+        return res;
+    }
+
+    // 从MongoDB中读取检索到的日志（按时间降序，尚未写入的日志不返回）
+    static List load(String filterId, List<ObjectId> ids, long from, long to) {
+        if ( ids.isEmpty() )
+            return new ArrayList();
+        Document query = new Document(Database.LOGS_TIME, new Document("$gte", from).append("$lte", to))
+                .append("_id", new Document("$in", ids));
+        List res = ServiceEntry.query(Service.table(filterId), Service.route(filterId, query), Service.scope(filterId, query),
+                new Document(Database.LOGS_TIME, -1), 0, 0, null);
+        Offload.load(res, null);
+        return res;
+    }
+
+    /** 运行信息 */
+    static Map info() {
+        RingBuffer<Object[]> queue = Queue;
+        Segment first = Segments.peekFirst();
+        int docs = 0;
+        for ( Segment seg : Segments )
+            docs += seg.Count;
+        return Util.toMap(new Object[] {
+                "segments", Segments.size(),
+                "docs", docs,
+                "bytes", bytes(),
+                "since", first == null ? 0 : first.Start,
+                "indexed", Indexed.sum(),
+                "queued", queue == null ? 0 : queue.size(),
+                "dropped", queue == null ? 0 : queue.shed()
+        });
+    }
+}
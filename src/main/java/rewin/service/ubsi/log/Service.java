@@ -1,8 +1,11 @@
 package rewin.service.ubsi.log;
 
 import com.mongodb.MongoClient;
+import com.mongodb.MongoCommandException;
 import com.mongodb.ReadPreference;
 import com.mongodb.client.*;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.IndexOptions;
 import org.bson.Document;
 import rewin.ubsi.annotation.*;
 import rewin.ubsi.common.JedisUtil;
@@ -13,12 +16,20 @@ import rewin.ubsi.consumer.Context;
 import rewin.ubsi.container.Bootstrap;
 import rewin.ubsi.container.ServiceContext;
 
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * UBSI日志服务：rewin.ubsi.logger -> rewin.service.ubsi.log.Service
@@ -35,10 +46,11 @@ public class Service extends ServiceEntry {
     static MongoUtil.Config MongoDBConfig = null;       // 当前MongoDB配置
     static MongoClient      MongoDBClient = null;       // 当前MongoDB客户端实例
     static MongoDatabase    MongoDBLogs = null;         // ubsi_logs数据库
+    static Config.Option    LoggerOption = null;        // 当前日志服务配置项
 
     // 日志表的缺省索引
     static List<List<Database.Index>> IndexLogs = Arrays.asList(
-            Arrays.asList(new Database.Index(Database.LOGS_TIME, 1)),
+            Arrays.asList(new Database.Index(Database.LOGS_TIME, 1), new Database.Index("_id", 1)),     // 同时用于游标查询
             Arrays.asList(new Database.Index(Database.LOGS_TYPE, 1)),
             Arrays.asList(new Database.Index(Database.LOGS_APP, 1))
         );
@@ -50,7 +62,7 @@ public class Service extends ServiceEntry {
         FilterUbsiAccess.type = Arrays.asList(LogUtil.ACCESS);
         FilterUbsiAccess.app = Arrays.asList(Bootstrap.LOG_APPID, Context.LOG_APPID);
         FilterUbsiAccess.index = Arrays.asList(
-                Arrays.asList(new Database.Index(Database.LOGS_TIME, 1)),
+                Arrays.asList(new Database.Index(Database.LOGS_TIME, 1), new Database.Index("_id", 1)),
                 Arrays.asList(new Database.Index(Database.LOGS_APP, 1)),
                 Arrays.asList(new Database.Index("body.reqId", 1)),
                 Arrays.asList(new Database.Index("body.seqId", 1)),
@@ -60,11 +72,18 @@ public class Service extends ServiceEntry {
 
     // 加载的Filters
     static ConcurrentMap<String, Database.Filter> Filters = new ConcurrentHashMap<>();
+    static volatile FilterIndex Matcher = FilterIndex.EMPTY;    // Filters的匹配索引
     final static String FILTERS_CHANNEL = "ubsi_logs_filters";  // 订阅频道
     static JedisUtil.Listener Listener = null;      // Filters变化的订阅器
     static String ListenerID = Util.getUUID();      // 订阅器的ID
+    static String InstanceID = ListenerID;          // 实例的名称（进程重启后不变），用于保存的近似统计
     static BatchDeal BatchDealer = null;            // 批量处理器
 
+    static Set<String> Collections = ConcurrentHashMap.newKeySet();     // 已存在的数据表
+    static ScheduledExecutorService Scheduler = null;   // 后台维护任务
+    final static int MAINTAIN_INTERVAL = 60;            // 后台维护的间隔（秒）
+    final static String FILTER_INDEX = "filter.";       // 单写模式下过滤器部分索引的名字前缀
+
     // 创建索引
     static void createIndex(String cname, List<List<Database.Index>> indexes) {
         if ( indexes == null )
@@ -78,35 +97,297 @@ public class Service extends ServiceEntry {
         }
     }
 
+    // 创建数据表及索引，已存在时忽略
+    static synchronized void createCollection(String cname, List<List<Database.Index>> indexes) {
+        if ( Collections.contains(cname) )
+            return;
+        try {
+            CreateCollectionOptions options = new CreateCollectionOptions();
+            Database.Storage storage = storage(Partition.base(cname));
+            if ( storage != null && storage.compressor != null && !storage.compressor.trim().isEmpty() )
+                options.storageEngineOptions(new Document("wiredTiger", new Document("configString", "block_compressor=" + storage.compressor.trim())));
+            MongoDBLogs.createCollection(cname, options);
+        } catch (MongoCommandException e) {
+            if ( e.getErrorCode() != 48 )       // NamespaceExists，其他实例已创建
+                throw e;
+        }
+        createIndex(cname, indexes);
+        if ( single() && Database.COL_LOGS.equals(Partition.base(cname)) )
+            indexFilters(cname, Filters.values());
+        Collections.add(cname);
+    }
+
+    // 日志表（主表/过滤表的基础名字）的存储选项，没有时返回null
+    static Database.Storage storage(String base) {
+        if ( Database.COL_LOGS.equals(base) )
+            return LoggerOption.logs_storage;
+        if ( !base.startsWith(Database.COL_LOGS + "_") )
+            return null;
+        Database.Filter filter = Filters.get(base.substring(Database.COL_LOGS.length() + 1));
+        return filter == null ? null : filter.storage;
+    }
+
+    // 是否为单写模式：日志只写入主表，匹配的过滤器ID记录在filters字段中
+    static boolean single() {
+        return LoggerOption != null && "single".equalsIgnoreCase(LoggerOption.storage_mode);
+    }
+
+    // 单写模式时写入日志的filters字段，其他情况返回null
+    static Map<String, Object> filterField(List<String> filters) {
+        if ( !single() || filters.isEmpty() )
+            return null;
+        return Util.toMap(new Object[] { Database.LOGS_FILTERS, filters });
+    }
+
+    // 查询过滤器日志的条件：单写模式时加入filters字段的条件，不需要加入且query为null时返回null
+    static Document scope(String filterId, Map query) {
+        if ( !single() || filterId == null || filterId.trim().isEmpty() )
+            return query == null ? null : new Document(query);
+        Document cond = new Document(Database.LOGS_FILTERS, filterId.trim());
+        return query == null || query.isEmpty() ? cond : new Document("$and", Arrays.asList(cond, new Document(query)));
+    }
+
+    // 单写模式下过滤器的视图名字（主表的每个分区对应一个视图，名字同复制模式的过滤表）
+    static String view(String filterId, String cname) {
+        return Database.COL_LOGS + "_" + filterId + cname.substring(Database.COL_LOGS.length());
+    }
+
+    // 单写模式：在主表（或分区）上创建filters字段的索引，以及各过滤器的部分索引及视图
+    static void indexFilters(String cname, Collection<Database.Filter> filters) {
+        MongoDBLogs.getCollection(cname).createIndex(new Document(Database.LOGS_FILTERS, 1).append(Database.LOGS_TIME, 1));
+        for ( Database.Filter filter : filters )
+            indexFilter(cname, filter);
+    }
+
+    // 单写模式：在主表（或分区）上创建过滤器的部分索引（全文索引除外，一个表只能有一个）及视图
+    static void indexFilter(String cname, Database.Filter filter) {
+        MongoCollection col = MongoDBLogs.getCollection(cname);
+        if ( filter.index != null )
+            for ( List<Database.Index> index : filter.index ) {
+                Document doc = new Document();
+                StringBuilder name = new StringBuilder(FILTER_INDEX).append(filter._id).append('.');
+                for ( Database.Index idx : index ) {
+                    doc.append(idx.key, idx.type);
+                    name.append('_').append(idx.key).append('_').append(idx.type);
+                }
+                if ( !doc.isEmpty() && !doc.containsValue(0) )
+                    col.createIndex(doc, new IndexOptions().name(name.toString())
+                            .partialFilterExpression(new Document(Database.LOGS_FILTERS, filter._id)));
+            }
+        String view = view(filter._id, cname);
+        if ( Collections.contains(view) )
+            return;
+        try {
+            MongoDBLogs.createView(view, cname, Arrays.asList(new Document("$match", new Document(Database.LOGS_FILTERS, filter._id))));
+        } catch (MongoCommandException e) {
+            if ( e.getErrorCode() != 48 )       // NamespaceExists，其他实例已创建
+                throw e;
+        }
+        Collections.add(view);
+    }
+
+    // 单写模式：删除过滤器在主表（包括所有分区）上的部分索引，dropView表示同时删除视图
+    static void dropFilter(String filterId, boolean dropView) {
+        String prefix = FILTER_INDEX + filterId + ".";
+        for ( String cname : Partition.all(Database.COL_LOGS, Collections) ) {
+            MongoCollection col = MongoDBLogs.getCollection(cname);
+            for ( Object o : col.listIndexes() ) {
+                String name = ((Document) o).getString("name");
+                if ( name != null && name.startsWith(prefix) )
+                    col.dropIndex(name);
+            }
+            if ( dropView ) {
+                String view = view(filterId, cname);
+                MongoDBLogs.getCollection(view).drop();
+                Collections.remove(view);
+            }
+        }
+    }
+
+    // 确保日志表存在（分区表在首次写入时按所属主表/过滤表的索引创建）
+    static void prepare(String cname) {
+        if ( Collections.contains(cname) )
+            return;
+        String base = Partition.base(cname);
+        if ( Database.COL_LOGS.equals(base) ) {
+            createCollection(cname, IndexLogs);
+            return;
+        }
+        Database.Filter filter = Filters.get(base.substring(Database.COL_LOGS.length() + 1));
+        createCollection(cname, filter == null ? null : filter.index);
+    }
+
+    // 预先创建当前及下一个时间分区，不分区时创建基础表
+    static void prepare(String base, Partition.Unit unit, List<List<Database.Index>> indexes, long time) {
+        if ( unit == Partition.Unit.NONE ) {
+            createCollection(base, indexes);
+            return;
+        }
+        createCollection(Partition.name(base, unit, time), indexes);
+        createCollection(Partition.name(base, unit, Partition.next(unit, time)), indexes);
+    }
+
+    // 日志表的基础名字
+    static String table(String filterId) {
+        return Database.COL_LOGS + (filterId == null || filterId.trim().isEmpty() || single() ? "" : "_" + filterId.trim());
+    }
+
+    // 查询涉及的日志表：按照查询条件中time的范围选取重叠的分区
+    static List<String> route(String filterId, Map query) {
+        String base = table(filterId);
+        long[] range = Partition.range(query);
+        List<String> list = Partition.select(base, Collections, range[0], range[1]);
+        if ( list.isEmpty() )
+            list.add(base);
+        return list;
+    }
+
+    // 后台维护：刷新数据表列表，提前创建分区表，启动过期清理任务
+    static void maintain() {
+        try {
+            Set<String> names = MongoDBLogs.listCollectionNames().into(new HashSet<>());
+            Collections.addAll(names);
+            Collections.retainAll(names);
+
+            long now = System.currentTimeMillis();
+            Partition.Unit unit = Partition.Unit.parse(LoggerOption.logs_partition);
+            if ( unit != Partition.Unit.NONE )
+                prepare(Database.COL_LOGS, unit, IndexLogs, now);
+            if ( !single() )    // 单写模式没有过滤表
+                for ( Database.Filter filter : Filters.values() ) {
+                    unit = Partition.Unit.parse(filter.partition);
+                    if ( unit != Partition.Unit.NONE )
+                        prepare(Database.COL_LOGS + "_" + filter._id, unit, filter.index, now);
+                }
+            Expire.schedule();
+            Traces.evict();
+            if ( JedisUtil.isInited() )
+                loadFilters(false);     // 补偿可能丢失的通知
+        } catch (Exception e) {
+            System.out.println("[ERROR] rewin.service.log maintain " + e.toString());
+        }
+    }
+
+    // 重建Filters的匹配索引
+    static synchronized void compileFilters() {
+        Matcher = new FilterIndex(Filters.values());
+    }
+
     // 新增Filter
     static void createFilter(Database.Filter filter) {
+        filter.version = 1;
         MongoCollection<Database.Filter> col = MongoDBLogs.getCollection(Database.COL_FILTERS, Database.Filter.class);
         col.insertOne(filter);
 
         String cname = Database.COL_LOGS + "_" + filter._id;
-        MongoDBLogs.createCollection(cname);        // 新建日志数据表
-
-        BatchDealer.addFilter(filter._id);
+        BatchDealer.addFilter(filter._id, filter.partition);
 
         Filters.put(filter._id, filter);
-        if ( FilterUbsiAccess != filter && JedisUtil.isInited() )
-            JedisUtil.publish(FILTERS_CHANNEL, ListenerID);     // 发出消息通知
+        compileFilters();
+        if ( FilterUbsiAccess != filter )
+            publishFilter("added", filter._id, filter.version);     // 发出消息通知
 
-        createIndex(cname, filter.index);           // 新建日志数据表索引
+        if ( single() ) {
+            // 单写模式：在主表（包括所有分区）上创建部分索引及视图
+            for ( String main : Partition.all(Database.COL_LOGS, Collections) )
+                indexFilter(main, filter);
+            return;
+        }
+        // 新建日志数据表及索引（分区表创建当前及下一个分区）
+        prepare(cname, Partition.Unit.parse(filter.partition), filter.index, System.currentTimeMillis());
     }
 
-    // 加载Filters
-    static void loadFilters() {
+    // 加载Filters：与当前的Filters比较版本后增量更新（force表示全部更新），保留各过滤表缓冲中的日志
+    static synchronized void loadFilters(boolean force) {
         BatchDealer.wakeup();
         MongoCollection<Database.Filter> col = MongoDBLogs.getCollection(Database.COL_FILTERS, Database.Filter.class)
                 .withReadPreference(ReadPreference.primary());
-        List<Database.Filter> list = col.find().into(new ArrayList<>());
+        Map<String, Database.Filter> loaded = new HashMap<>();
+        for ( Database.Filter filter : col.find() )
+            loaded.put(filter._id, filter);
 
-        Filters.clear();
-        BatchDealer.clearFilter();
-        for ( Database.Filter filter : col.find() ) {
+        boolean changed = false;
+        for ( String id : new ArrayList<>(Filters.keySet()) )
+            if ( !loaded.containsKey(id) ) {
+                Filters.remove(id);
+                BatchDealer.delFilter(id);
+                QueryCache.invalidate(id);
+                changed = true;
+            }
+        for ( Database.Filter filter : loaded.values() ) {
+            Database.Filter old = Filters.get(filter._id);
+            if ( !force && old != null && old.version == filter.version )
+                continue;   // 未变化
             Filters.put(filter._id, filter);
-            BatchDealer.addFilter(filter._id);
+            BatchDealer.addFilter(filter._id, filter.partition);
+            QueryCache.invalidate(filter._id);
+            changed = true;
+        }
+        if ( changed || Matcher == FilterIndex.EMPTY )
+            compileFilters();
+    }
+
+    // 按照通知中的变化增量更新Filters，结构：{ origin: 实例ID, added/modified/deleted: { 过滤器ID: 版本 } }
+    static synchronized void applyFilters(Map msg) {
+        if ( ListenerID.equals(msg.get("origin")) )
+            return;
+        MongoCollection<Database.Filter> col = MongoDBLogs.getCollection(Database.COL_FILTERS, Database.Filter.class)
+                .withReadPreference(ReadPreference.primary());
+        boolean changed = false;
+        for ( String op : new String[] { "added", "modified" } ) {
+            Map delta = (Map) msg.get(op);
+            if ( delta == null )
+                continue;
+            for ( Object o : delta.entrySet() ) {
+                Map.Entry e = (Map.Entry) o;
+                String id = (String) e.getKey();
+                Database.Filter old = Filters.get(id);
+                if ( old != null && old.version >= ((Number) e.getValue()).longValue() )
+                    continue;   // 已是最新版本
+                Database.Filter filter = col.find(new Document("_id", id)).first();
+                if ( filter == null )
+                    continue;   // 已被删除，等待删除的通知
+                Filters.put(id, filter);
+                BatchDealer.addFilter(id, filter.partition);
+                QueryCache.invalidate(id);
+                changed = true;
+            }
+        }
+        Map deleted = (Map) msg.get("deleted");
+        if ( deleted != null )
+            for ( Object o : deleted.entrySet() ) {
+                Map.Entry e = (Map.Entry) o;
+                String id = (String) e.getKey();
+                Database.Filter old = Filters.get(id);
+                if ( old == null || old.version > ((Number) e.getValue()).longValue() )
+                    continue;
+                Filters.remove(id);
+                BatchDealer.delFilter(id);
+                QueryCache.invalidate(id);
+                changed = true;
+            }
+        if ( changed )
+            compileFilters();
+    }
+
+    // 发出Filter变化的通知，op为added/modified/deleted
+    static void publishFilter(String op, String id, long version) {
+        if ( JedisUtil.isInited() )
+            JedisUtil.publish(FILTERS_CHANNEL, Util.toMap(new Object[] {
+                    "origin", ListenerID,
+                    op, Util.toMap(new Object[] { id, version })
+            }));
+    }
+
+    // 实例的名称：配置项sketch_instance，缺省为主机名
+    static String instance(Config.Option option) {
+        if ( option.sketch_instance != null && !option.sketch_instance.trim().isEmpty() )
+            return option.sketch_instance.trim();
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            System.out.println("[ERROR] rewin.service.log instance " + e.toString());
+            return ListenerID;      // 无法加载重启前的统计
         }
     }
 
@@ -117,39 +398,58 @@ public class Service extends ServiceEntry {
         MongoDBClient = MongoUtil.getMongoClient(MongoDBConfig, Database.DB);
         MongoDBLogs = MongoDBClient.getDatabase(Database.DB);
 
-        BatchDealer = new BatchDeal();
+        LoggerOption = ctx.readDataFile(Config.OPTION_FILE, Config.Option.class);
+        if ( LoggerOption == null )
+            LoggerOption = new Config.Option();
+
+        BatchDealer = new BatchDeal(LoggerOption);
         BatchDealer.start();
+        Jobs.start(LoggerOption.job_threads);
+        Aggregator.start(LoggerOption.aggregate_threads);
+        Limiter.start(LoggerOption);
+        Traces.clear();
+        Tail.start();
+        Search.start(LoggerOption);
 
         // 检查缺省的Collection是否存在
-        boolean hasLogs = false;
         boolean hasFilters = false;
         for ( String cname : MongoDBLogs.listCollectionNames() ) {
-            if ( Database.COL_LOGS.equals(cname) )
-                hasLogs = true;
-            else if ( Database.COL_FILTERS.equals(cname) )
+            Collections.add(cname);
+            if ( Database.COL_FILTERS.equals(cname) )
                 hasFilters = true;
         }
-        if ( !hasLogs ) {
-            // 创建主表
-            MongoDBLogs.createCollection(Database.COL_LOGS);
-            createIndex(Database.COL_LOGS, IndexLogs);
-        }
+        // 创建主表（分区表创建当前及下一个分区）
+        prepare(Database.COL_LOGS, Partition.Unit.parse(LoggerOption.logs_partition), IndexLogs, System.currentTimeMillis());
+        createCollection(Database.COL_STATS, Arrays.asList(Arrays.asList(new Database.Index(Database.LOGS_TIME, 1))));
+        createCollection(Database.COL_SKETCHES, Arrays.asList(Arrays.asList(new Database.Index("filter", 1), new Database.Index(Database.LOGS_TIME, 1))));
+        InstanceID = instance(LoggerOption);
+        Sketches.restore();
         if ( !hasFilters ) {
             // 创建缺省的Filter表（logs_ubsi_access）
             MongoDBLogs.createCollection(Database.COL_FILTERS);
             createFilter(FilterUbsiAccess);
         } else
-            loadFilters();  // 加载Filters
+            loadFilters(true);  // 加载Filters
+        if ( single() )
+            for ( String cname : Partition.all(Database.COL_LOGS, Collections) )
+                indexFilters(cname, Filters.values());  // 补建部分索引及视图（如由复制模式切换）
 
         if ( JedisUtil.isInited() ) {
             // 订阅Filters的变更
             Listener = new JedisUtil.Listener() {
                 @Override
                 public void onMessage(String channel, Object msg) throws Exception {
+                    if ( Tail.CHANNEL.equals(channel) ) {
+                        Tail.onMessage(msg);
+                        return;
+                    }
                     if ( !FILTERS_CHANNEL.equals(channel) || ListenerID.equals(msg) )
                         return;
                     try {
-                        loadFilters();
+                        if ( msg instanceof Map )
+                            applyFilters((Map) msg);
+                        else
+                            loadFilters(true);  // 旧版本的通知（实例ID），全部更新
                     } catch (Exception e) {
                         ctx.getLogger().error("reload filters", e);
                     }
@@ -158,14 +458,48 @@ public class Service extends ServiceEntry {
                 public void onEvent(String channel, Object event) throws Exception {
                 }
             };
-            Listener.subscribe(FILTERS_CHANNEL);
+            Listener.subscribe(FILTERS_CHANNEL, Tail.CHANNEL);
+        }
+
+        Scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rewin.service.log.maintain");
+            t.setDaemon(true);
+            return t;
+        });
+        Scheduler.scheduleWithFixedDelay(Service::maintain, MAINTAIN_INTERVAL, MAINTAIN_INTERVAL, TimeUnit.SECONDS);
+        if ( LoggerOption.stats_interval > 0 )
+            Scheduler.scheduleWithFixedDelay(Rollup::flush, LoggerOption.stats_interval, LoggerOption.stats_interval, TimeUnit.SECONDS);
+        if ( LoggerOption.sample_types != null && !LoggerOption.sample_types.isEmpty() )
+            Scheduler.scheduleWithFixedDelay(Limiter::tick, 1, 1, TimeUnit.SECONDS);
+        if ( LoggerOption.sketch_interval > 0 )
+            Scheduler.scheduleWithFixedDelay(Sketches::persist, LoggerOption.sketch_interval, LoggerOption.sketch_interval, TimeUnit.SECONDS);
+        if ( LoggerOption.collapse_window > 0 ) {
+            long sweep = Math.max(100, LoggerOption.collapse_window / 4);
+            Scheduler.scheduleWithFixedDelay(Collapse::sweep, sweep, sweep, TimeUnit.MILLISECONDS);
         }
     }
 
     /** 结束 */
     @USClose
     public static void close(ServiceContext ctx) throws Exception {
+        if ( Scheduler != null ) {
+            Scheduler.shutdownNow();
+            Scheduler = null;
+            Collapse.sweep(true);
+            Rollup.flush();
+            Sketches.persist();
+        }
+        Collapse.clear();
+        Rollup.clear();
+        Sketches.clear();
+        Traces.clear();
+        Jobs.stop();
+        Tail.stop();
+        Search.stop();
+        Aggregator.stop();
+        QueryCache.clear();
         Filters.clear();
+        Matcher = FilterIndex.EMPTY;
         if ( Listener != null ) {
             if ( JedisUtil.isInited() )
                 Listener.unsubscribe();
@@ -181,8 +515,40 @@ public class Service extends ServiceEntry {
             MongoDBClient.close();
             MongoDBClient = null;
         }
+        Collections.clear();
         MongoDBConfig = null;
         MongoDBLogs = null;
+        LoggerOption = null;
+    }
+
+    // 运行指标
+    static Map<String, Object> metrics() {
+        long[] shed = BatchDealer.shed();
+        return Util.toMap(new Object[] {
+                "recorded_new_logs", BatchDealer.Buffer.Written.sum(),
+                "buffered_logs", BatchDealer.pending(),
+                "buffered_bytes", BatchDealer.pendingBytes(),
+                "dropped_newest_logs", shed[0],
+                "dropped_oldest_logs", shed[1],
+                "dropped_timeout_logs", shed[2],
+                "dropped_spill_logs", shed[3],
+                "spilled_logs", BatchDealer.Spilled.sum(),
+                "replayed_logs", BatchDealer.Replayed.sum(),
+                "replay_skipped_logs", BatchDealer.ReplaySkipped.sum(),
+                "journal_logs", BatchDealer.Spill == null ? 0 : BatchDealer.Spill.pending(),
+                "journal_bytes", BatchDealer.Spill == null ? 0 : BatchDealer.Spill.pendingBytes(),
+                "journal_segments", BatchDealer.Spill == null ? 0 : BatchDealer.Spill.segments(),
+                "flush_linger_ms", LoggerOption.flush_linger,
+                "lanes", BatchDealer.lanes(),
+                "latency", Metrics.info(),
+                "cache", QueryCache.info(),
+                "limiter", Limiter.info(),
+                "collapse", Collapse.info(),
+                "offload", Offload.info(),
+                "trace", Traces.info(),
+                "tail", Tail.info(),
+                "search", Search.info()
+        });
     }
 
     /** 运行信息 */
@@ -190,7 +556,7 @@ public class Service extends ServiceEntry {
     public static Map info(ServiceContext ctx) throws Exception {
         if ( BatchDealer == null )
             return null;
-        return Util.toMap(new Object[] { "recorded_new_logs", BatchDealer.Count.get() });
+        return metrics();
     }
 
     /** 返回配置参数 */
@@ -216,6 +582,8 @@ public class Service extends ServiceEntry {
                         auth.password = "******";
             res.mongo_option_restart = config.option;
         }
+        res.logger_option = LoggerOption;
+        res.logger_option_restart = ctx.readDataFile(Config.OPTION_FILE, Config.Option.class);
         return res;
     }
 
@@ -230,6 +598,8 @@ public class Service extends ServiceEntry {
 
         MongoUtil.checkConfig(config);
         ctx.saveDataFile(MongoUtil.CONFIG_FILE, config);
+        if ( cfg.logger_option != null )
+            ctx.saveDataFile(Config.OPTION_FILE, cfg.logger_option);
     }
 
 }
@@ -1,16 +1,21 @@
 package rewin.service.ubsi.log;
 
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.MapReduceAction;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
 import rewin.ubsi.annotation.USEntry;
 import rewin.ubsi.annotation.USParam;
 import rewin.ubsi.common.Codec;
-import rewin.ubsi.common.JedisUtil;
 import rewin.ubsi.common.MongoUtil;
 import rewin.ubsi.common.Util;
 import rewin.ubsi.container.ServiceContext;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -37,49 +42,185 @@ public class ServiceEntry {
     )
     public void log(ServiceContext ctx, Object[] data) {
         try {
-            Integer type = (Integer) data[1];
-            String tag = (String) data[3];
-            String app = (String) data[4];
-            Document doc = new Document();
-            doc.append(Database.LOGS_TIME, (Long) data[0]);
-            doc.append(Database.LOGS_TYPE, type);
-            doc.append(Database.LOGS_ADDR, (String) data[2]);
-            doc.append(Database.LOGS_TAG, tag);
-            doc.append(Database.LOGS_APP, app);
-            doc.append(Database.LOGS_CODE, (String) data[5]);
-            doc.append(Database.LOGS_TIPS, (String) data[6]);
-            doc.append(Database.LOGS_BODY, Util.array2List(data[7]));
-            Service.BatchDealer.addDoc(null, doc);
-
-            for (Database.Filter filter : Service.Filters.values()) {
-                if (filter.type != null)
-                    if (!filter.type.contains(type))
-                        continue;
-                if (filter.tag != null)
-                    if (!filter.tag.contains(tag))
-                        continue;
-                if (filter.app != null)
-                    if (!filter.app.contains(app))
-                        continue;
-                Service.BatchDealer.addDoc(filter._id, doc);
+            double admit = Limiter.admit(data);
+            if ( admit < 1 ) {
+                Rollup.add((Long) data[0], (Integer) data[1], (String) data[4], data[7], admit);
+                return;     // 被限速或采样丢弃
             }
+            if ( admit == 1 && Collapse.fold(data) ) {
+                Rollup.add((Long) data[0], (Integer) data[1], (String) data[4], data[7], Rollup.FOLDED);
+                return;     // 合并为汇总日志
+            }
+            long start = System.nanoTime();
+            List<String> filters = Service.Matcher.match((Integer) data[1], (String) data[3], (String) data[4]);
+            Metrics.Match.record(System.nanoTime() - start);
+
+            Offload.Encoded enc = Offload.encode(data, admit, Service.filterField(filters), filters);
+            RawBsonDocument doc = enc.Full;
+            Service.BatchDealer.addDoc(null, enc.doc(null));
+            Traces.add(data, doc);
+            Rollup.add((Long) data[0], (Integer) data[1], (String) data[4], data[7], admit);
+            if ( !Service.single() )
+                for (String filterId : filters)
+                    Service.BatchDealer.addDoc(filterId, enc.doc(filterId));
+            Sketches.add(data, filters);
+            Tail.add(data, doc, filters);
+            Search.add(data, doc, filters);
         } catch (Exception e) {
             System.out.println("[ERROR] rewin.service.log " + e.toString());
         }
     }
 
     @USEntry(
-            tips = "删除日志",
+            tips = "批量记录日志",
+            params = { @USParam(
+                    name = "data",
+                    tips = "日志数据列表，每条日志的结构同log接口的data"
+            )},
+            result = "处理结果，结构：{ accepted: 接收的日志数量, dropped: 缓冲区满被丢弃的日志数量, invalid: 数据不合法的日志数量, limited: 被限速丢弃的数量, sampled: 被采样丢弃的数量, folded: 合并为汇总日志的数量 }",
+            readonly = true
+    )
+    public Map logBatch(ServiceContext ctx, List data) {
+        List<RawBsonDocument> docs = new ArrayList<>(data == null ? 0 : data.size());
+        Map<String, List<RawBsonDocument>> routes = new HashMap<>();
+        FilterIndex matcher = Service.Matcher;
+        boolean single = Service.single();
+        int invalid = 0, limited = 0, sampled = 0, folded = 0;
+        if ( data != null )
+            for ( Object item : data ) {
+                try {
+                    Object[] rec = item instanceof List ? ((List) item).toArray() : (Object[]) item;
+                    double admit = Limiter.admit(rec);
+                    if ( admit < 1 ) {
+                        Rollup.add((Long) rec[0], (Integer) rec[1], (String) rec[4], rec[7], admit);
+                        if ( admit == Limiter.LIMITED )
+                            limited ++;
+                        else
+                            sampled ++;
+                        continue;
+                    }
+                    if ( admit == 1 && Collapse.fold(rec) ) {
+                        Rollup.add((Long) rec[0], (Integer) rec[1], (String) rec[4], rec[7], Rollup.FOLDED);
+                        folded ++;
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    List<String> filters = matcher.match((Integer) rec[1], (String) rec[3], (String) rec[4]);
+                    Metrics.Match.record(System.nanoTime() - start);
+                    Offload.Encoded enc = Offload.encode(rec, admit, Service.filterField(filters), filters);
+                    RawBsonDocument doc = enc.Full;
+                    docs.add(enc.doc(null));
+                    Traces.add(rec, doc);
+                    Rollup.add((Long) rec[0], (Integer) rec[1], (String) rec[4], rec[7], admit);
+                    for ( String filterId : single ? Collections.<String>emptyList() : filters ) {
+                        List<RawBsonDocument> list = routes.get(filterId);
+                        if ( list == null )
+                            routes.put(filterId, list = new ArrayList<>());
+                        list.add(enc.doc(filterId));
+                    }
+                    Sketches.add(rec, filters);
+                    Tail.add(rec, doc, filters);
+                    Search.add(rec, doc, filters);
+                } catch (Exception e) {
+                    invalid ++;
+                }
+            }
+
+        int accepted = Service.BatchDealer.addDocs(null, docs);
+        for ( Map.Entry<String, List<RawBsonDocument>> route : routes.entrySet() )
+            Service.BatchDealer.addDocs(route.getKey(), route.getValue());
+        return Util.toMap(new Object[] {
+                "accepted", accepted,
+                "dropped", docs.size() - accepted,
+                "invalid", invalid,
+                "limited", limited,
+                "sampled", sampled,
+                "folded", folded
+        });
+    }
+
+    @USEntry(
+            tips = "删除日志（后台分批删除，可以通过getJob查询进度）",
             params = {
                     @USParam(name = "filterId", tips = "过滤器ID，可以为null"),
                     @USParam(name = "query", tips = "查询条件(MongoDB语法)，可以为null")
             },
+            result = "后台任务ID",
             readonly = false
     )
-    public void clear(ServiceContext ctx, String filterId, Map query) {
-        String cname = Database.COL_LOGS + (filterId == null || filterId.trim().isEmpty() ? "" : "_" + filterId.trim());
-        MongoCollection col = Service.MongoDBLogs.getCollection(cname);
-        col.deleteMany(query == null ? new Document() : new Document(query));
+    public String clear(ServiceContext ctx, String filterId, Map query) {
+        String base = Service.table(filterId);
+        List<String> cnames = Service.route(filterId, query);
+        // 单写模式：过滤器的日志只去掉filters字段中的过滤器ID，删除主表的日志时所有过滤器的缓存都失效
+        boolean pull = Service.single() && filterId != null && !filterId.trim().isEmpty();
+        Runnable invalidate = () -> {
+            if ( Service.single() && !pull )
+                QueryCache.clear();
+            else
+                QueryCache.invalidate(filterId);
+        };
+        Jobs.Job job = Jobs.submit(Expire.JOB_CLEAR, Util.toMap(new Object[] { "filterId", filterId, "query", query }),
+                j -> {
+                    try {
+                        if ( pull )
+                            Expire.pull(j, cnames, filterId.trim(), query);
+                        else
+                            Expire.clear(j, base, cnames, query);
+                    } finally {
+                        invalidate.run();
+                    }
+                });
+        invalidate.run();
+        if ( filterId == null || filterId.trim().isEmpty() || Service.FilterUbsiAccess._id.equals(filterId.trim()) )
+            Traces.clear();
+        Search.clear();     // 索引中不能按条件删除，全部清除
+        return job.Id;
+    }
+
+    @USEntry(
+            tips = "导出日志到本地文件（后台并行导出，可以通过getJob查询进度）",
+            params = {
+                    @USParam(name = "filterId", tips = "过滤器ID，可以为null"),
+                    @USParam(name = "query", tips = "查询条件(MongoDB语法)，可以为null"),
+                    @USParam(name = "format", tips = "文件格式，ndjson:每行一条JSON（gzip压缩），bson:BSON（gzip压缩），null表示ndjson")
+            },
+            result = "后台任务ID（同时也是导出ID，导出文件在配置项export_path下以导出ID命名的目录中）"
+    )
+    public String export(ServiceContext ctx, String filterId, Map query, String format) throws Exception {
+        return Export.start(filterId, query, format).Id;
+    }
+
+    @USEntry(
+            tips = "从检查点继续导出（导出任务中断或取消后）",
+            params = { @USParam(name = "exportId", tips = "导出ID") },
+            result = "后台任务ID"
+    )
+    public String resumeExport(ServiceContext ctx, String exportId) throws Exception {
+        return Export.resume(exportId).Id;
+    }
+
+    @USEntry(
+            tips = "查询后台任务",
+            params = { @USParam(name = "jobId", tips = "任务ID，null表示查询所有任务") },
+            result = "任务信息，结构：{ id, type, params, state: pending|running|done|failed|cancelled, error, total, done: 已处理的数量, created, started, finished, elapsed_ms, result }，jobId为null时返回任务信息的列表"
+    )
+    public Object getJob(ServiceContext ctx, String jobId) throws Exception {
+        if ( jobId == null )
+            return Jobs.list();
+        Jobs.Job job = Jobs.get(jobId);
+        if ( job == null )
+            throw new Exception("job not found");
+        return job.info();
+    }
+
+    @USEntry(
+            tips = "取消后台任务",
+            params = { @USParam(name = "jobId", tips = "任务ID") },
+            result = "是否取消成功，false表示任务不存在或已结束",
+            readonly = false
+    )
+    public boolean cancelJob(ServiceContext ctx, String jobId) {
+        return Jobs.cancel(jobId);
     }
 
     @USEntry(
@@ -91,9 +232,24 @@ public class ServiceEntry {
             result = "日志数量"
     )
     public long count(ServiceContext ctx, String filterId, Map query) {
-        String cname = Database.COL_LOGS + (filterId == null || filterId.trim().isEmpty() ? "" : "_" + filterId.trim());
-        MongoCollection col = Service.MongoDBLogs.getCollection(cname);
-        return col.countDocuments(query == null ? new Document() : new Document(query));
+        String key = QueryCache.key("count", filterId, query);
+        Object cached = QueryCache.get(key);
+        if ( cached != null )
+            return (Long) cached;
+        long[] mark = QueryCache.mark(filterId);
+        long start = System.nanoTime();
+        try {
+            long n = 0;
+            Document q = Service.scope(filterId, query);
+            for ( String cname : Service.route(filterId, query) ) {
+                MongoCollection col = Service.MongoDBLogs.getCollection(cname);
+                n += col.countDocuments(q == null ? new Document() : q);
+            }
+            QueryCache.put(key, filterId, Partition.range(query)[1], mark, n);
+            return n;
+        } finally {
+            Metrics.elapsed(Metrics.Count, start);
+        }
     }
 
     @USEntry(
@@ -109,17 +265,79 @@ public class ServiceEntry {
             result = "日志数据列表，每条日志是一个Map"
     )
     public List find(ServiceContext ctx, String filterId, Map query, List sort, int skip, int limit, Map fields) {
-        String cname = Database.COL_LOGS + (filterId == null || filterId.trim().isEmpty() ? "" : "_" + filterId.trim());
-        MongoCollection col = Service.MongoDBLogs.getCollection(cname);
-        return MongoUtil.query(col,
-                query == null ? null : new Document(query),
-                sort == null ? new Document(Database.LOGS_TIME, -1) : Util.toBson(sort.toArray()),
-                skip, limit,
-                fields == null ? null : new Document(fields));
+        long start = System.nanoTime();
+        try {
+            List res = query(Service.table(filterId), Service.route(filterId, query),
+                    Service.scope(filterId, query),
+                    sort == null ? new Document(Database.LOGS_TIME, -1) : Util.toBson(sort.toArray()),
+                    skip, limit,
+                    Offload.project(fields));
+            Offload.load(res, fields);     // 需要返回body时加载分离存储的body
+            return res;
+        } finally {
+            Metrics.elapsed(Metrics.Find, start);
+        }
+    }
+
+    @USEntry(
+            tips = "游标查询（按照time及_id翻页，适用于深度翻页及大量数据的读取）",
+            params = {
+                    @USParam(name = "filterId", tips = "过滤器ID，可以为null"),
+                    @USParam(name = "query", tips = "查询条件(MongoDB语法)，可以为null"),
+                    @USParam(name = "order", tips = "排序方式，1:按time升序，-1:按time降序"),
+                    @USParam(name = "fields", tips = "返回的字段(MongoDB语法)，可以为null，time及_id字段总会返回"),
+                    @USParam(name = "limit", tips = "返回的记录数，0表示缺省值，不超过配置项cursor_limit")
+            },
+            result = "查询结果，结构：{ docs: 日志数据列表, next: 下一页的游标（null表示没有更多数据） }"
+    )
+    public Map findCursor(ServiceContext ctx, String filterId, Map query, int order, Map fields, int limit) {
+        long start = System.nanoTime();
+        try {
+            return Cursor.next(Cursor.create(filterId, query, order, fields), limit);
+        } finally {
+            Metrics.elapsed(Metrics.Find, start);
+        }
+    }
+
+    @USEntry(
+            tips = "游标查询的下一页",
+            params = {
+                    @USParam(name = "cursor", tips = "findCursor或findNext返回的游标"),
+                    @USParam(name = "limit", tips = "返回的记录数，0表示缺省值，不超过配置项cursor_limit")
+            },
+            result = "查询结果，结构同findCursor"
+    )
+    public Map findNext(ServiceContext ctx, String cursor, int limit) throws Exception {
+        Document state = Cursor.decode(cursor);
+        long start = System.nanoTime();
+        try {
+            return Cursor.next(state, limit);
+        } finally {
+            Metrics.elapsed(Metrics.Find, start);
+        }
+    }
+
+    // 跨分区查询：按time排序时依次查询各分区，数量足够即停止；否则各分区分别查询后归并排序，base为未分区的基础表名
+    static List query(String base, List<String> cnames, Document query, Document sort, int skip, int limit, Document fields) {
+        if ( cnames.size() == 1 )
+            return MongoUtil.query(Service.MongoDBLogs.getCollection(cnames.get(0)), query, sort, skip, limit, fields);
+
+        int need = limit <= 0 ? 0 : skip + limit;       // 每个分区最多需要的记录数
+        Map.Entry<String, Object> first = sort.isEmpty() ? null : sort.entrySet().iterator().next();
+        if ( first != null && Database.LOGS_TIME.equals(first.getKey()) && Partition.isDisjoint(base, cnames) ) {
+            boolean desc = first.getValue() instanceof Number && ((Number) first.getValue()).intValue() < 0;
+            return Partition.sequential(cnames, desc, skip, limit, (cname, max) ->
+                    MongoUtil.query(Service.MongoDBLogs.getCollection(cname), query, sort, 0, max, fields));
+        }
+
+        List<List> sorted = new ArrayList<>();
+        for ( String cname : cnames )
+            sorted.add(MongoUtil.query(Service.MongoDBLogs.getCollection(cname), query, sort, 0, need, fields));
+        return Partition.merge(sorted, sort, skip, limit);
     }
 
     @USEntry(
-            tips = "日志的聚合查询",
+            tips = "日志的聚合查询（可分解的$match + $group($sum/$min/$max/$count)或$count并行执行）",
             params = {
                     @USParam(name = "filterId", tips = "过滤器ID，可以为null"),
                     @USParam(name = "pipeline", tips = "MongoDB aggregate语法的Map列表")
@@ -127,15 +345,179 @@ public class ServiceEntry {
             result = "聚合数据列表，每条数据是一个Map"
     )
     public List aggregate(ServiceContext ctx, String filterId, List pipeline) {
+        String key = QueryCache.key("aggregate", filterId, pipeline);
+        Object cached = QueryCache.get(key);
+        if ( cached != null )
+            return (List) cached;
+        long[] mark = QueryCache.mark(filterId);
         for ( int i = 0; i < pipeline.size(); i ++ )
             pipeline.set(i, new Document((Map)pipeline.get(i)));
-        String cname = Database.COL_LOGS + (filterId == null || filterId.trim().isEmpty() ? "" : "_" + filterId.trim());
-        MongoCollection col = Service.MongoDBLogs.getCollection(cname);
-        return (List)col.aggregate(pipeline).into(new ArrayList());
+        // 按照第一个$match的time范围选取分区，其他分区通过$unionWith合并（需要MongoDB 4.4以上）
+        Document match = pipeline.isEmpty() || !((Document) pipeline.get(0)).containsKey("$match") ? null : (Document) pipeline.get(0);
+        Map range = match == null ? null : (Map) match.get("$match");
+        List<String> cnames = Service.route(filterId, range);
+        if ( Service.single() && filterId != null && !filterId.trim().isEmpty() ) {
+            // 单写模式：在第一个$match中加入filters字段的条件（没有$match时插入）
+            if ( match == null )
+                pipeline.add(0, match = new Document());
+            match.put("$match", Service.scope(filterId, range));
+        }
+        // 可分解的聚合按_id范围拆分后并行执行
+        Aggregator.Plan plan = Service.LoggerOption.aggregate_threads > 0 ? Aggregator.plan(pipeline) : null;
+        if ( plan == null )
+            for ( int i = cnames.size() - 1; i > 0; i -- )
+                pipeline.add(match == null ? 0 : 1, new Document("$unionWith", new Document("coll", cnames.get(i))
+                        .append("pipeline", match == null ? new ArrayList() : Arrays.asList(match))));
+        long start = System.nanoTime();
+        try {
+            List res = plan != null ? Aggregator.run(cnames, plan) :
+                    (List)Service.MongoDBLogs.getCollection(cnames.get(0)).aggregate(pipeline).into(new ArrayList());
+            QueryCache.put(key, filterId, Partition.range(range)[1], mark, res);
+            return res;
+        } finally {
+            Metrics.elapsed(Metrics.Aggregate, start);
+        }
+    }
+
+    @USEntry(
+            tips = "查询请求的调用链路（最近的请求从内存中查询）",
+            params = { @USParam(name = "reqId", tips = "请求ID（访问日志的body.reqId）") },
+            result = "调用链路，结构：{ reqId, source: memory|database, count: 日志数量, tree: [调用树的节点] }，节点的结构：{ seqId, logs: [按时间排序的日志], children: [按seqId排序的子节点] }"
+    )
+    public Map getTrace(ServiceContext ctx, String reqId) throws Exception {
+        if ( reqId == null || reqId.isEmpty() )
+            throw new Exception("invalid reqId");
+        long start = System.nanoTime();
+        try {
+            return Traces.get(reqId);
+        } finally {
+            Metrics.elapsed(Metrics.Find, start);
+        }
     }
 
     @USEntry(
-            tips = "日志的MapReduce查询",
+            tips = "全文检索最近的日志（内存中的倒排索引，只检索本实例最近search_hours小时收到的日志）",
+            params = {
+                    @USParam(name = "filterId", tips = "过滤器ID，可以为null"),
+                    @USParam(name = "text", tips = "检索的文本，空格分隔的词（双引号中的短语作为一个词）都需要出现在tips、code或配置项search_fields的字段中，按子串匹配，不区分大小写"),
+                    @USParam(name = "from", tips = "开始时间（毫秒），0表示不限"),
+                    @USParam(name = "to", tips = "结束时间（毫秒），0表示不限"),
+                    @USParam(name = "limit", tips = "返回的数量，0表示配置项search_limit，不超过search_limit"),
+                    @USParam(name = "docs", tips = "是否返回日志数据，false表示只返回_id")
+            },
+            result = "检索结果，结构：{ ids: 匹配的日志_id列表（按收到的时间倒序）, docs: 日志数据列表（docs为true时，按time降序，尚未写入MongoDB的日志不返回）, since: 索引覆盖的最早时间（之前的日志需要通过find查询）, truncated: 是否达到返回数量 }"
+    )
+    public Map search(ServiceContext ctx, String filterId, String text, long from, long to, int limit, boolean docs) throws Exception {
+        int max = Service.LoggerOption.search_limit;
+        long start = System.nanoTime();
+        try {
+            return Search.search(filterId, text, from, to, limit <= 0 || limit > max ? max : limit, docs);
+        } finally {
+            Metrics.elapsed(Metrics.Find, start);
+        }
+    }
+
+    @USEntry(
+            tips = "实时订阅日志（写日志时按条件匹配，不查询MongoDB）",
+            params = {
+                    @USParam(name = "filterId", tips = "过滤器ID，只订阅此过滤器的日志，null表示所有日志"),
+                    @USParam(name = "query", tips = "订阅条件(MongoDB查询语法的子集：字段相等, $eq, $ne, $gt, $gte, $lt, $lte, $in, $nin, $exists, $regex, $and, $or, $nor)，可以为null"),
+                    @USParam(name = "channel", tips = "Redis频道，匹配的日志定期发布到此频道（消息结构：{ id, logs, dropped }，所有实例都会发布），null表示通过tailPoll拉取（只匹配本实例收到的日志）")
+            },
+            result = "订阅ID，需要在tail_lease秒内调用tailPoll续约"
+    )
+    public String tail(ServiceContext ctx, String filterId, Map query, String channel) throws Exception {
+        return Tail.subscribe(filterId, query, channel).Id;
+    }
+
+    @USEntry(
+            tips = "拉取订阅的日志（同时续约）",
+            params = {
+                    @USParam(name = "subId", tips = "订阅ID"),
+                    @USParam(name = "limit", tips = "最多返回的日志条数，通过Redis频道发布的订阅不返回日志（只续约）")
+            },
+            result = "结构：{ logs: [日志], matched: 累计匹配的数量, dropped: 累计因缓冲满丢弃的数量 }"
+    )
+    public Map tailPoll(ServiceContext ctx, String subId, int limit) throws Exception {
+        return Tail.poll(subId, limit);
+    }
+
+    @USEntry(
+            tips = "取消订阅",
+            params = { @USParam(name = "subId", tips = "订阅ID") },
+            result = "是否取消成功，false表示订阅不存在"
+    )
+    public boolean untail(ServiceContext ctx, String subId) {
+        return Tail.unsubscribe(subId);
+    }
+
+    @USEntry(
+            tips = "日志数量的时间序列统计（基于写日志时的预聚合，有stats_interval秒的延迟）",
+            params = {
+                    @USParam(name = "query", tips = "查询条件(MongoDB语法)，字段：time(分钟的开始时间), type, app, service, entry，可以为null"),
+                    @USParam(name = "group", tips = "汇总的维度，可以是type, app, service, entry的组合，null表示只按时间汇总"),
+                    @USParam(name = "interval", tips = "时间间隔（分钟），<=0表示不按时间分组")
+            },
+            result = "统计数据列表，每条数据的结构：{ time: 时间间隔的开始时间, ...group中的维度, count: 日志数量（包括被丢弃的）, limited: 被限速丢弃的数量, sampled: 被采样丢弃的数量, folded: 合并为汇总日志的数量 }"
+    )
+    public List stats(ServiceContext ctx, Map query, List group, int interval) throws Exception {
+        if ( group != null )
+            for ( Object field : group )
+                if ( !STATS_FIELDS.contains(field) )
+                    throw new Exception("invalid group field: " + field);
+        long start = System.nanoTime();
+        try {
+            return Rollup.query(query, group, interval);
+        } finally {
+            Metrics.elapsed(Metrics.Aggregate, start);
+        }
+    }
+    final static List<String> STATS_FIELDS = Arrays.asList(Database.LOGS_TYPE, Database.LOGS_APP, "service", "entry");
+
+    @USEntry(
+            tips = "字段不同值数量的近似统计（HyperLogLog，按小时统计并合并所有实例的结果，误差约2%）",
+            params = {
+                    @USParam(name = "filterId", tips = "过滤器ID，null表示主表"),
+                    @USParam(name = "field", tips = "字段名字，必须是配置项sketch_fields中的字段"),
+                    @USParam(name = "from", tips = "开始时间（毫秒），按小时对齐"),
+                    @USParam(name = "to", tips = "结束时间（毫秒）")
+            },
+            result = "不同值的数量（近似值）"
+    )
+    public long distinct(ServiceContext ctx, String filterId, String field, long from, long to) throws Exception {
+        List<String> fields = Service.LoggerOption.sketch_fields;
+        if ( fields == null || !fields.contains(field) )
+            throw new Exception("invalid field: " + field);
+        long start = System.nanoTime();
+        try {
+            return Sketches.distinct(filterId, field, from, to);
+        } finally {
+            Metrics.elapsed(Metrics.Aggregate, start);
+        }
+    }
+
+    @USEntry(
+            tips = "某个分类的日志最多的应用（count-min/top-k近似统计，按小时统计并合并所有实例的结果）",
+            params = {
+                    @USParam(name = "filterId", tips = "过滤器ID，null表示主表"),
+                    @USParam(name = "type", tips = "日志分类"),
+                    @USParam(name = "from", tips = "开始时间（毫秒），按小时对齐"),
+                    @USParam(name = "to", tips = "结束时间（毫秒）"),
+                    @USParam(name = "k", tips = "返回的数量，最多sketch_topk个")
+            },
+            result = "应用列表（按日志数量从多到少），每条数据的结构：{ key: 应用ID, count: 日志数量（近似值） }"
+    )
+    public List topApps(ServiceContext ctx, String filterId, int type, long from, long to, int k) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return Sketches.topApps(filterId, type, from, to, Math.min(k, Service.LoggerOption.sketch_topk));
+        } finally {
+            Metrics.elapsed(Metrics.Aggregate, start);
+        }
+    }
+
+    @USEntry(
+            tips = "日志的MapReduce查询（简单的map/reduce转换为并行聚合，其他的按分区依次计算，相同key的结果由reduce合并）",
             params = {
                     @USParam(name = "filterId", tips = "过滤器ID，可以为null"),
                     @USParam(name = "map", tips = "MongoDB的map_function"),
@@ -144,9 +526,26 @@ public class ServiceEntry {
             result = "结果数据列表，每条数据是一个Map"
     )
     public List mapReduce(ServiceContext ctx, String filterId, String map, String reduce) {
-        String cname = Database.COL_LOGS + (filterId == null || filterId.trim().isEmpty() ? "" : "_" + filterId.trim());
-        MongoCollection col = Service.MongoDBLogs.getCollection(cname);
-        return (List)col.mapReduce(map, reduce).into(new ArrayList());
+        // 简单的map/reduce转换为并行聚合（各分区的结果会合并）
+        Aggregator.Plan plan = Aggregator.translate(map, reduce);
+        Document scope = Service.scope(filterId, null);
+        if ( plan != null ) {
+            plan.Match = scope;
+            return Aggregator.run(Service.route(filterId, null), plan);
+        }
+        List<String> cnames = Service.route(filterId, null);
+        if ( cnames.size() == 1 )
+            return Service.MongoDBLogs.getCollection(cnames.get(0)).mapReduce(map, reduce).filter(scope).into(new ArrayList());
+        // 多个分区：依次输出到临时表（REDUCE方式，相同key的结果由reduce再次合并），读取后删除临时表
+        String tmp = Database.COL_MAPREDUCE + "_" + new ObjectId().toHexString();
+        try {
+            for ( String cname : cnames )
+                Service.MongoDBLogs.getCollection(cname).mapReduce(map, reduce).filter(scope)
+                        .collectionName(tmp).action(MapReduceAction.REDUCE).toCollection();
+            return Service.MongoDBLogs.getCollection(tmp).find().into(new ArrayList());
+        } finally {
+            Service.MongoDBLogs.getCollection(tmp).drop();
+        }
     }
 
     @USEntry(
@@ -163,6 +562,11 @@ public class ServiceEntry {
             throw new Exception("invalid filter's _id");
         if ( id.indexOf('.') >= 0 || id.indexOf('$') >= 0 || id.startsWith("system") )
             throw new Exception("invalid filter's _id");
+        String cname = Database.COL_LOGS + "_" + id;
+        if ( !Partition.base(cname).equals(cname) || Partition.parse(Database.COL_LOGS, cname) != null )
+            throw new Exception("invalid filter's _id");    // 与分区表的名字冲突
+        if ( Database.COL_STATS.equals(cname) || Database.COL_BODIES.equals(cname) )
+            throw new Exception("invalid filter's _id");    // 保留的名字
     }
 
     @USEntry(
@@ -186,29 +590,50 @@ public class ServiceEntry {
     )
     public void setFilter(ServiceContext ctx, Map filter) throws Exception {
         Database.Filter f = Codec.toType(filter, Database.Filter.class);
-        if ( !Service.Filters.containsKey(f._id) )
+        Database.Filter old = Service.Filters.get(f._id);
+        if ( old == null )
             throw new Exception("filter not found");
 
+        // 按版本更新，防止覆盖其他实例同时进行的修改
+        f.version = old.version + 1;
         MongoCollection<Database.Filter> col = Service.MongoDBLogs.getCollection(Database.COL_FILTERS, Database.Filter.class);
-        col.replaceOne(new Document("_id", f._id), f);
+        Object version = old.version == 0 ? new Document("$in", Arrays.asList(0L, null)) : old.version;
+        if ( col.replaceOne(new Document("_id", f._id).append("version", version), f).getMatchedCount() == 0 )
+            throw new Exception("filter has been modified, reload and retry");
 
         Service.Filters.put(f._id, f);
-        if ( JedisUtil.isInited() )
-            JedisUtil.publish(Service.FILTERS_CHANNEL, Service.ListenerID);     // 发出消息通知
+        Service.compileFilters();
+        Service.BatchDealer.addFilter(f._id, f.partition);
+        QueryCache.invalidate(f._id);
+        Service.publishFilter("modified", f._id, f.version);    // 发出消息通知
 
-        // 重建索引
-        String cname = Database.COL_LOGS + "_" + f._id;
-        Service.MongoDBLogs.getCollection(cname).dropIndexes();
-        Service.createIndex(cname, f.index);
+        if ( Service.single() ) {
+            // 单写模式：重建主表（包括所有分区）上的部分索引
+            Service.dropFilter(f._id, false);
+            for ( String cname : Partition.all(Database.COL_LOGS, Service.Collections) )
+                Service.indexFilter(cname, f);
+            return;
+        }
+        // 重建索引（包括所有分区）
+        String base = Database.COL_LOGS + "_" + f._id;
+        List<String> cnames = Partition.all(base, Service.Collections);
+        if ( !cnames.contains(base) && Partition.Unit.parse(f.partition) == Partition.Unit.NONE )
+            cnames.add(base);
+        for ( String cname : cnames ) {
+            Service.MongoDBLogs.getCollection(cname).dropIndexes();
+            Service.createIndex(cname, f.index);
+        }
+        Service.prepare(base, Partition.Unit.parse(f.partition), f.index, System.currentTimeMillis());
     }
 
     @USEntry(
-            tips = "删除过滤器（注：数据表也会被删除）",
+            tips = "删除过滤器（注：数据表也会被删除，单写模式时后台去掉日志中的过滤器ID）",
             params = { @USParam(name = "filterId", tips = "过滤器ID") },
             readonly = false
     )
     public void delFilter(ServiceContext ctx, String filterId) throws Exception {
-        if ( !Service.Filters.containsKey(filterId) )
+        Database.Filter old = Service.Filters.get(filterId);
+        if ( old == null )
             throw new Exception("filter not found");
 
         Service.BatchDealer.delFilter(filterId);
@@ -217,12 +642,27 @@ public class ServiceEntry {
         col.deleteOne(new Document("_id", filterId));
 
         Service.Filters.remove(filterId);
-        if ( JedisUtil.isInited() )
-            JedisUtil.publish(Service.FILTERS_CHANNEL, Service.ListenerID);     // 发出消息通知
+        Service.compileFilters();
+        QueryCache.invalidate(filterId);
+        Service.publishFilter("deleted", filterId, old.version);    // 发出消息通知
 
-        // 删除数据表
-        String cname = Database.COL_LOGS + "_" + filterId;
-        Service.MongoDBLogs.getCollection(cname).drop();
+        if ( Service.single() ) {
+            // 单写模式：删除部分索引及视图，后台去掉日志中的过滤器ID
+            Service.dropFilter(filterId, true);
+            List<String> cnames = Partition.all(Database.COL_LOGS, Service.Collections);
+            Jobs.submit(Expire.JOB_CLEAR, Util.toMap(new Object[] { "filterId", filterId, "query", null }),
+                    j -> Expire.pull(j, cnames, filterId, null));
+            return;
+        }
+        // 删除数据表（包括所有分区）
+        String base = Database.COL_LOGS + "_" + filterId;
+        List<String> cnames = Partition.all(base, Service.Collections);
+        if ( !cnames.contains(base) )
+            cnames.add(base);
+        for ( String cname : cnames ) {
+            Service.MongoDBLogs.getCollection(cname).drop();
+            Service.Collections.remove(cname);
+        }
     }
 
 }
@@ -0,0 +1,366 @@
+package rewin.service.ubsi.log;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.ReplaceOptions;
+import org.bson.Document;
+import org.bson.types.Binary;
+import rewin.ubsi.common.Util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 近似统计：每个主表/过滤表每小时一组HyperLogLog（字段的不同值数量）及count-min/top-k（各日志分类中日志最多的应用），
+ * 写日志时无锁更新，定期保存到sketches表（每个实例一条记录），查询时合并所有实例的数据
+ */
+public class Sketches {
+
+    final static long HOUR = 3600 * 1000;
+
+    /** HyperLogLog（4096个6位寄存器，每个long中保存8个寄存器，标准误差约1.6%） */
+    public static class Hll {
+        final static int P = 12;
+        final static int M = 1 << P;
+        final AtomicLongArray Registers = new AtomicLongArray(M / 8);
+
+        /** 加入一个值的哈希 */
+        public void add(long hash) {
+            int idx = (int)(hash >>> (64 - P));
+            int rank = Long.numberOfLeadingZeros((hash << P) | (1L << (P - 1))) + 1;
+            set(idx, rank);
+        }
+
+        // 寄存器取较大值
+        void set(int idx, int rank) {
+            int i = idx >>> 3;
+            int shift = (idx & 7) * 8;
+            for ( ; ; ) {
+                long old = Registers.get(i);
+                if ( rank <= ((int)(old >>> shift) & 0xFF) )
+                    return;
+                if ( Registers.compareAndSet(i, old, (old & ~(0xFFL << shift)) | ((long) rank << shift)) )
+                    return;
+            }
+        }
+
+        int get(int idx) {
+            return (int)(Registers.get(idx >>> 3) >>> ((idx & 7) * 8)) & 0xFF;
+        }
+
+        /** 合并 */
+        public void merge(byte[] regs) {
+            for ( int i = 0; i < M && i < regs.length; i ++ )
+                if ( regs[i] != 0 )
+                    set(i, regs[i]);
+        }
+
+        /** 导出寄存器 */
+        public byte[] toBytes() {
+            byte[] res = new byte[M];
+            for ( int i = 0; i < M; i ++ )
+                res[i] = (byte) get(i);
+            return res;
+        }
+
+        /** 估计的不同值数量 */
+        public long estimate() {
+            double sum = 0;
+            int zeros = 0;
+            for ( int i = 0; i < M; i ++ ) {
+                int r = get(i);
+                sum += 1.0 / (1L << r);
+                if ( r == 0 )
+                    zeros ++;
+            }
+            double e = 0.7213 / (1 + 1.079 / M) * M * M / sum;
+            if ( e <= 2.5 * M && zeros > 0 )
+                e = M * Math.log((double) M / zeros);     // 小数量时使用线性计数
+            return Math.round(e);
+        }
+    }
+
+    /** count-min sketch + 候选集合，统计出现次数最多的值（已结束的小时压缩为只保留候选集合） */
+    public static class TopK {
+        final static int DEPTH = 4;
+        final static int WIDTH = 2048;
+        volatile AtomicLongArray Counts = new AtomicLongArray(DEPTH * WIDTH);     // null表示已压缩
+        final ConcurrentHashMap<String, Long> Candidates = new ConcurrentHashMap<>();
+        final AtomicBoolean Trimming = new AtomicBoolean(false);
+        final int Capacity;             // 候选集合的大小
+        volatile long Threshold = 0;    // 进入候选集合的最小次数
+
+        public TopK(int k) {
+            Capacity = Math.max(16, k * 4);
+        }
+
+        /** 加入一个值 */
+        public void add(String item, long hash) {
+            AtomicLongArray counts = Counts;
+            if ( counts == null ) {
+                // 已压缩（迟到的日志），只累加候选值
+                if ( Candidates.containsKey(item) || Candidates.size() < Capacity )
+                    put(item, Candidates.merge(item, 1L, Long::sum));
+                return;
+            }
+            long est = count(counts, hash, 1);
+            if ( Candidates.containsKey(item) || Candidates.size() < Capacity || est > Threshold )
+                put(item, est);
+        }
+
+        // count-min sketch中增加次数，返回估计的次数
+        static long count(AtomicLongArray counts, long hash, long delta) {
+            int h1 = (int) hash, h2 = (int)(hash >>> 32);
+            long est = Long.MAX_VALUE;
+            for ( int i = 0; i < DEPTH; i ++ ) {
+                int idx = ((h1 + i * h2) & Integer.MAX_VALUE) % WIDTH;
+                est = Math.min(est, counts.addAndGet(i * WIDTH + idx, delta));
+            }
+            return est;
+        }
+
+        // 更新候选值
+        void put(String item, long count) {
+            Candidates.put(item, count);
+            if ( Candidates.size() > Capacity * 2 )
+                trim();
+        }
+
+        /** 直接加入候选值（合并其他实例或重启前保存的结果），同时计入count-min sketch */
+        public void merge(String item, long count) {
+            AtomicLongArray counts = Counts;
+            if ( counts != null )
+                count(counts, hash(item), count);
+            Candidates.merge(item, count, Long::sum);
+        }
+
+        /** 压缩：释放count-min sketch，只保留候选集合 */
+        public void compact() {
+            Counts = null;
+        }
+
+        // 只保留次数最多的候选值
+        void trim() {
+            if ( !Trimming.compareAndSet(false, true) )
+                return;
+            try {
+                List<Map.Entry<String, Long>> list = new ArrayList<>(Candidates.entrySet());
+                list.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+                for ( int i = Capacity; i < list.size(); i ++ )
+                    Candidates.remove(list.get(i).getKey(), list.get(i).getValue());
+                Threshold = list.get(Math.min(Capacity, list.size()) - 1).getValue();
+            } finally {
+                Trimming.set(false);
+            }
+        }
+
+        /** 次数最多的k个值：[{ key, count }] */
+        public List<Map> top(int k) {
+            List<Map.Entry<String, Long>> list = new ArrayList<>(Candidates.entrySet());
+            list.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+            List<Map> res = new ArrayList<>();
+            for ( int i = 0; i < k && i < list.size(); i ++ )
+                res.add(Util.toMap(new Object[] { "key", list.get(i).getKey(), "count", list.get(i).getValue() }));
+            return res;
+        }
+    }
+
+    /** 一个主表/过滤表一小时的统计 */
+    static class Bucket {
+        final String    Filter;         // 过滤器ID，""表示主表
+        final long      Hour;           // 小时的开始时间
+        final ConcurrentHashMap<String, Hll> Distinct = new ConcurrentHashMap<>();      // 字段 -> 不同值
+        final ConcurrentHashMap<Integer, TopK> TopApps = new ConcurrentHashMap<>();     // 日志分类 -> 日志最多的应用
+        volatile boolean Dirty = false; // 是否有未保存的变化
+
+        Bucket(String filter, long hour) {
+            Filter = filter;
+            Hour = hour;
+        }
+
+        Hll hll(String field) {
+            return Distinct.computeIfAbsent(field, k -> new Hll());
+        }
+
+        TopK topk(int type) {
+            return TopApps.computeIfAbsent(type, k -> new TopK(Service.LoggerOption.sketch_topk));
+        }
+
+        // 已结束的小时只保留候选集合及HyperLogLog
+        void compact() {
+            for ( TopK topk : TopApps.values() )
+                topk.compact();
+        }
+
+        // 合并保存的记录
+        @SuppressWarnings("unchecked")
+        void merge(Document doc) {
+            Document distinct = (Document) doc.get("distinct");
+            if ( distinct != null )
+                for ( Map.Entry<String, Object> e : distinct.entrySet() )
+                    if ( e.getValue() instanceof Binary )
+                        hll(e.getKey()).merge(((Binary) e.getValue()).getData());
+            Document top = (Document) doc.get("top");
+            if ( top != null )
+                for ( Map.Entry<String, Object> e : top.entrySet() ) {
+                    TopK topk = topk(Integer.parseInt(e.getKey()));
+                    for ( Document item : (List<Document>) e.getValue() )
+                        topk.merge(item.getString("key"), ((Number) item.get("count")).longValue());
+                }
+        }
+
+        // 保存的记录
+        Document toDocument() {
+            Document distinct = new Document();
+            for ( Map.Entry<String, Hll> e : Distinct.entrySet() )
+                distinct.append(e.getKey(), new Binary(e.getValue().toBytes()));
+            Document top = new Document();
+            for ( Map.Entry<Integer, TopK> e : TopApps.entrySet() )
+                top.append(String.valueOf(e.getKey()), e.getValue().top(e.getValue().Capacity));
+            return new Document("_id", Service.InstanceID + "|" + Filter + "|" + Hour)
+                    .append("instance", Service.InstanceID)
+                    .append("filter", Filter)
+                    .append(Database.LOGS_TIME, Hour)
+                    .append("distinct", distinct)
+                    .append("top", top);
+        }
+    }
+
+    static ConcurrentHashMap<String, Bucket> Buckets = new ConcurrentHashMap<>();     // 过滤器ID|小时 -> 统计
+
+    // 64位哈希（FNV-1a + murmur3的fmix64）
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for ( int i = 0; i < s.length(); i ++ ) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53ec2d3L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // 取得统计的分组
+    static Bucket bucket(String filter, long hour) {
+        String key = filter + "|" + hour;
+        Bucket b = Buckets.get(key);
+        if ( b == null ) {
+            Bucket old = Buckets.putIfAbsent(key, b = new Bucket(filter, hour));
+            if ( old != null )
+                b = old;
+        }
+        return b;
+    }
+
+    /** 更新主表及匹配的过滤表的统计 */
+    static void add(Object[] data, List<String> filters) {
+        Config.Option option = Service.LoggerOption;
+        if ( option.sketch_interval <= 0 )
+            return;
+        long t = data[0] == null ? System.currentTimeMillis() : (Long) data[0];
+        long hour = t - Math.floorMod(t, HOUR);
+        List<String> fields = option.sketch_fields;
+        long[] hashes = new long[fields == null ? 0 : fields.size()];
+        for ( int i = 0; i < hashes.length; i ++ ) {
+            Object v = LogCodec.field(data, fields.get(i));
+            hashes[i] = v == null ? 0 : hash(v.toString());
+        }
+        String app = data[4] == null ? "" : (String) data[4];
+        long appHash = hash(app);
+        int type = data[1] == null ? 0 : (Integer) data[1];
+
+        for ( int n = -1; n < filters.size(); n ++ ) {
+            Bucket b = bucket(n < 0 ? "" : filters.get(n), hour);
+            for ( int i = 0; i < hashes.length; i ++ )
+                if ( hashes[i] != 0 )
+                    b.hll(fields.get(i)).add(hashes[i]);
+            b.topk(type).add(app, appHash);
+            if ( !b.Dirty )
+                b.Dirty = true;
+        }
+    }
+
+    /** 保存有变化的统计，压缩已结束的小时，清除内存中过期的统计 */
+    static void persist() {
+        long now = System.currentTimeMillis();
+        long expire = now - Service.LoggerOption.sketch_hours * HOUR;
+        MongoCollection<Document> col = Service.MongoDBLogs.getCollection(Database.COL_SKETCHES);
+        Iterator<Bucket> it = Buckets.values().iterator();
+        while ( it.hasNext() ) {
+            Bucket b = it.next();
+            try {
+                if ( b.Dirty ) {
+                    b.Dirty = false;
+                    Document doc = b.toDocument();
+                    col.replaceOne(new Document("_id", doc.get("_id")), doc, new ReplaceOptions().upsert(true));
+                }
+                if ( b.Hour + HOUR < expire )
+                    it.remove();
+                else if ( b.Hour + HOUR < now )
+                    b.compact();
+            } catch (Exception e) {
+                b.Dirty = true;
+                System.out.println("[ERROR] rewin.service.log sketches " + e.toString());
+                return;
+            }
+        }
+    }
+
+    /** 加载本实例保存的统计（服务重启后继续累加，避免persist覆盖重启前的计数） */
+    static void restore() {
+        long now = System.currentTimeMillis();
+        Config.Option option = Service.LoggerOption;
+        if ( option.sketch_interval <= 0 )
+            return;
+        MongoCollection<Document> col = Service.MongoDBLogs.getCollection(Database.COL_SKETCHES);
+        Document query = new Document("instance", Service.InstanceID)
+                .append(Database.LOGS_TIME, new Document("$gte", now - option.sketch_hours * HOUR - HOUR));
+        for ( Document doc : col.find(query) ) {
+            Bucket b = bucket(doc.getString("filter"), ((Number) doc.get(Database.LOGS_TIME)).longValue());
+            b.merge(doc);
+            if ( b.Hour + HOUR < now )
+                b.compact();
+        }
+    }
+
+    /** 清除内存中的统计 */
+    static void clear() {
+        Buckets.clear();
+    }
+
+    // 合并时间范围内所有实例的统计
+    static Bucket load(String filterId, long from, long to) {
+        String filter = filterId == null ? "" : filterId.trim();
+        long start = from - Math.floorMod(from, HOUR);
+        Bucket res = new Bucket(filter, start);
+        for ( Bucket b : Buckets.values() )
+            if ( b.Filter.equals(filter) && b.Hour >= start && b.Hour <= to )
+                res.merge(b.toDocument());
+        MongoCollection<Document> col = Service.MongoDBLogs.getCollection(Database.COL_SKETCHES);
+        Document query = new Document("filter", filter)
+                .append(Database.LOGS_TIME, new Document("$gte", start).append("$lte", to))
+                .append("instance", new Document("$ne", Service.InstanceID));     // 当前实例使用内存中的统计
+        for ( Document doc : col.find(query) )
+            res.merge(doc);
+        return res;
+    }
+
+    /** 时间范围内字段的不同值数量（近似值） */
+    static long distinct(String filterId, String field, long from, long to) {
+        Hll hll = load(filterId, from, to).Distinct.get(field);
+        return hll == null ? 0 : hll.estimate();
+    }
+
+    /** 时间范围内某个分类的日志最多的k个应用（近似值） */
+    static List<Map> topApps(String filterId, int type, long from, long to, int k) {
+        TopK topk = load(filterId, from, to).TopApps.get(type);
+        return topk == null ? new ArrayList<>() : topk.top(k);
+    }
+}
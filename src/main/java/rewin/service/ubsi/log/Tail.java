@@ -0,0 +1,377 @@
+package rewin.service.ubsi.log;
+
+import org.bson.BsonRegularExpression;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import rewin.ubsi.common.JedisUtil;
+import rewin.ubsi.common.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+import java.util.regex.Pattern;
+
+/**
+ * 实时日志订阅：写日志时按订阅的条件匹配，匹配的日志放入订阅者的有界缓冲（满时丢弃并计数，不影响写入），
+ * 由后台线程发布到订阅者的Redis频道，或由订阅者通过tailPoll拉取；订阅有租约，超时未续约自动取消
+ */
+public class Tail {
+
+    final static String CHANNEL = "ubsi_logs_tail";    // 多实例之间同步订阅的频道
+
+    /** 订阅条件 */
+    interface Cond {
+        boolean test(Object[] data);
+    }
+
+    /** 订阅者 */
+    static class Sub {
+        final String    Id;
+        final String    FilterId;       // 只匹配此过滤器的日志，null表示所有日志
+        final Map       Query;          // 订阅条件(MongoDB语法)
+        final Cond      Cond;
+        final String    Channel;        // 发布的Redis频道，null表示通过tailPoll拉取
+        final boolean   Remote;         // 是否由其他实例同步的订阅
+        final ArrayBlockingQueue<RawBsonDocument> Buffer;
+        final LongAdder Matched = new LongAdder();
+        final LongAdder Dropped = new LongAdder();
+        volatile long   Expire;         // 租约到期的时间
+        volatile long   Renewed = 0;    // 上次同步租约的时间
+
+        Sub(String id, String filterId, Map query, String channel, boolean remote) throws Exception {
+            Id = id;
+            FilterId = filterId == null || filterId.trim().isEmpty() ? null : filterId.trim();
+            Query = query;
+            Cond = compile(query);
+            Channel = channel == null || channel.trim().isEmpty() ? null : channel.trim();
+            Remote = remote;
+            Buffer = new ArrayBlockingQueue<>(Math.max(1, Service.LoggerOption.tail_buffer));
+            renew();
+        }
+
+        void renew() {
+            Expire = System.currentTimeMillis() + Service.LoggerOption.tail_lease * 1000L;
+        }
+    }
+
+    static ConcurrentHashMap<String, Sub> Subs = new ConcurrentHashMap<>();
+    static volatile Sub[] Active = new Sub[0];     // 写日志时遍历的快照
+    static Thread Dispatcher = null;
+
+    // 更新快照
+    static synchronized void refresh() {
+        Active = Subs.values().toArray(new Sub[0]);
+    }
+
+    /** 匹配日志，放入订阅者的缓冲（由写日志接口调用） */
+    static void add(Object[] data, RawBsonDocument doc, List<String> filters) {
+        Sub[] subs = Active;
+        for ( Sub sub : subs ) {
+            if ( sub.FilterId != null && !filters.contains(sub.FilterId) )
+                continue;
+            try {
+                if ( !sub.Cond.test(data) )
+                    continue;
+            } catch (Exception e) {
+                continue;
+            }
+            sub.Matched.increment();
+            if ( !sub.Buffer.offer(doc) )
+                sub.Dropped.increment();
+        }
+    }
+
+    /** 新建订阅 */
+    static Sub subscribe(String filterId, Map query, String channel) throws Exception {
+        if ( Subs.size() >= Service.LoggerOption.tail_max )
+            throw new Exception("too many subscriptions");
+        if ( channel != null && !channel.trim().isEmpty() && !JedisUtil.isInited() )
+            throw new Exception("redis not available");
+        Sub sub = new Sub(Util.getUUID(), filterId, query, channel, false);
+        Subs.put(sub.Id, sub);
+        refresh();
+        broadcast("add", sub);
+        return sub;
+    }
+
+    /** 取消订阅 */
+    static boolean unsubscribe(String id) {
+        Sub sub = Subs.remove(id);
+        if ( sub == null )
+            return false;
+        refresh();
+        if ( !sub.Remote )
+            broadcast("del", sub);
+        return true;
+    }
+
+    /** 拉取缓冲中的日志（同时续约），结构：{ logs: [日志], matched: 匹配的数量, dropped: 丢弃的数量 } */
+    static Map poll(String id, int limit) throws Exception {
+        Sub sub = Subs.get(id);
+        if ( sub == null || sub.Remote )
+            throw new Exception("subscription not found");
+        sub.renew();
+        if ( System.currentTimeMillis() - sub.Renewed > Service.LoggerOption.tail_lease * 1000L / 3 )
+            broadcast("renew", sub);
+        List<Document> logs = new ArrayList<>();
+        if ( sub.Channel == null )
+            drain(sub, logs, Math.max(0, Math.min(limit, Service.LoggerOption.tail_buffer)));
+        return Util.toMap(new Object[] {
+                "logs", logs,
+                "matched", sub.Matched.sum(),
+                "dropped", sub.Dropped.sum()
+        });
+    }
+
+    // 从缓冲中取出日志
+    static void drain(Sub sub, List<Document> logs, int limit) {
+        for ( RawBsonDocument raw = logs.size() < limit ? sub.Buffer.poll() : null; raw != null;
+              raw = logs.size() < limit ? sub.Buffer.poll() : null )
+            logs.add(Cursor.Codec.decode(raw.asBsonReader(), DecoderContext.builder().build()));
+    }
+
+    // 向其他实例同步订阅
+    static void broadcast(String op, Sub sub) {
+        if ( sub.Channel == null || !JedisUtil.isInited() )
+            return;     // 拉取方式的订阅只匹配本实例收到的日志
+        sub.Renewed = System.currentTimeMillis();
+        try {
+            JedisUtil.publish(CHANNEL, Util.toMap(new Object[] {
+                    "op", op,
+                    "origin", Service.ListenerID,
+                    "id", sub.Id,
+                    "filterId", sub.FilterId,
+                    "query", sub.Query,
+                    "channel", sub.Channel
+            }));
+        } catch (Exception e) {
+            System.out.println("[ERROR] rewin.service.log tail " + e.toString());
+        }
+    }
+
+    /** 处理其他实例同步的订阅 */
+    static void onMessage(Object msg) {
+        if ( !(msg instanceof Map) )
+            return;
+        Map m = (Map) msg;
+        if ( Service.ListenerID.equals(m.get("origin")) )
+            return;
+        String id = (String) m.get("id");
+        try {
+            switch ( String.valueOf(m.get("op")) ) {
+                case "add":
+                case "renew":
+                    Sub sub = Subs.get(id);
+                    if ( sub != null )
+                        sub.renew();
+                    else {
+                        Subs.put(id, new Sub(id, (String) m.get("filterId"), (Map) m.get("query"), (String) m.get("channel"), true));
+                        refresh();
+                    }
+                    break;
+                case "del":
+                    if ( Subs.remove(id) != null )
+                        refresh();
+                    break;
+            }
+        } catch (Exception e) {
+            System.out.println("[ERROR] rewin.service.log tail " + e.toString());
+        }
+    }
+
+    /** 启动发布线程：将缓冲中的日志发布到订阅者的频道，清除租约到期的订阅 */
+    static void start() {
+        Thread t = new Thread(() -> {
+            while ( !Thread.currentThread().isInterrupted() ) {
+                try {
+                    Thread.sleep(Math.max(10, Service.LoggerOption.tail_interval));
+                    dispatch();
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    System.out.println("[ERROR] rewin.service.log tail " + e.toString());
+                }
+            }
+        }, "rewin.service.log.tail");
+        t.setDaemon(true);
+        t.start();
+        Dispatcher = t;
+    }
+
+    // 发布及清除一次
+    static void dispatch() {
+        long now = System.currentTimeMillis();
+        boolean removed = false;
+        for ( Sub sub : Subs.values() ) {
+            if ( sub.Expire < now ) {
+                removed |= Subs.remove(sub.Id, sub);
+                continue;
+            }
+            if ( sub.Channel == null || sub.Buffer.isEmpty() || !JedisUtil.isInited() )
+                continue;
+            List<Document> logs = new ArrayList<>();
+            drain(sub, logs, Service.LoggerOption.tail_batch);
+            JedisUtil.publish(sub.Channel, Util.toMap(new Object[] {
+                    "id", sub.Id,
+                    "logs", logs,
+                    "dropped", sub.Dropped.sum()
+            }));
+        }
+        if ( removed )
+            refresh();
+    }
+
+    /** 停止发布线程，清除所有订阅 */
+    static void stop() {
+        if ( Dispatcher != null ) {
+            Dispatcher.interrupt();
+            Dispatcher = null;
+        }
+        Subs.clear();
+        refresh();
+    }
+
+    /** 运行信息 */
+    static List<Map> info() {
+        List<Map> res = new ArrayList<>();
+        for ( Sub sub : Subs.values() )
+            res.add(Util.toMap(new Object[] {
+                    "id", sub.Id,
+                    "filterId", sub.FilterId,
+                    "query", sub.Query,
+                    "channel", sub.Channel,
+                    "remote", sub.Remote,
+                    "buffered", sub.Buffer.size(),
+                    "matched", sub.Matched.sum(),
+                    "dropped", sub.Dropped.sum(),
+                    "expire", sub.Expire
+            }));
+        return res;
+    }
+
+    /**
+     * 编译订阅条件（MongoDB查询语法的子集）：字段相等（或正则表达式），$eq/$ne/$gt/$gte/$lt/$lte/$in/$nin/$exists/$regex，
+     * 以及$and/$or/$nor，字段可以是"body.a.b"格式
+     */
+    static Cond compile(Map query) throws Exception {
+        if ( query == null || query.isEmpty() )
+            return data -> true;
+        List<Cond> conds = new ArrayList<>();
+        for ( Object o : query.entrySet() ) {
+            Map.Entry e = (Map.Entry) o;
+            String key = String.valueOf(e.getKey());
+            if ( "$and".equals(key) || "$or".equals(key) || "$nor".equals(key) ) {
+                if ( !(e.getValue() instanceof List) )
+                    throw new Exception("invalid " + key);
+                List<Cond> list = new ArrayList<>();
+                for ( Object q : (List) e.getValue() )
+                    list.add(compile((Map) q));
+                if ( "$and".equals(key) )
+                    conds.add(data -> { for ( Cond c : list ) if ( !c.test(data) ) return false; return true; });
+                else if ( "$or".equals(key) )
+                    conds.add(data -> { for ( Cond c : list ) if ( c.test(data) ) return true; return false; });
+                else
+                    conds.add(data -> { for ( Cond c : list ) if ( c.test(data) ) return false; return true; });
+            } else if ( key.startsWith("$") )
+                throw new Exception("unsupported operator: " + key);
+            else if ( e.getValue() instanceof Map && isOperator((Map) e.getValue()) ) {
+                for ( Object op : ((Map) e.getValue()).entrySet() )
+                    conds.add(operator(key, (Map.Entry) op, (Map) e.getValue()));
+            } else if ( e.getValue() instanceof Pattern || e.getValue() instanceof BsonRegularExpression ) {
+                Pattern p = e.getValue() instanceof Pattern ? (Pattern) e.getValue() :
+                        pattern(((BsonRegularExpression) e.getValue()).getPattern(), ((BsonRegularExpression) e.getValue()).getOptions());
+                conds.add(data -> {
+                    Object x = LogCodec.field(data, key);
+                    return x instanceof String && p.matcher((String) x).find();
+                });
+            } else {
+                Object v = e.getValue();
+                conds.add(data -> equal(LogCodec.field(data, key), v));
+            }
+        }
+        if ( conds.size() == 1 )
+            return conds.get(0);
+        return data -> { for ( Cond c : conds ) if ( !c.test(data) ) return false; return true; };
+    }
+
+    // 是否为操作符表达式
+    static boolean isOperator(Map m) {
+        for ( Object k : m.keySet() )
+            if ( !String.valueOf(k).startsWith("$") )
+                return false;
+        return !m.isEmpty();
+    }
+
+    // 字段的操作符条件
+    static Cond operator(String field, Map.Entry op, Map ops) throws Exception {
+        Object v = op.getValue();
+        switch ( String.valueOf(op.getKey()) ) {
+            case "$eq": return data -> equal(LogCodec.field(data, field), v);
+            case "$ne": return data -> !equal(LogCodec.field(data, field), v);
+            case "$gt": return range(field, v, c -> c > 0);
+            case "$gte": return range(field, v, c -> c >= 0);
+            case "$lt": return range(field, v, c -> c < 0);
+            case "$lte": return range(field, v, c -> c <= 0);
+            case "$in":
+            case "$nin":
+                if ( !(v instanceof List) )
+                    throw new Exception("invalid " + op.getKey());
+                boolean in = "$in".equals(op.getKey());
+                return data -> {
+                    Object x = LogCodec.field(data, field);
+                    for ( Object item : (List) v )
+                        if ( equal(x, item) )
+                            return in;
+                    return !in;
+                };
+            case "$exists":
+                boolean exists = !Boolean.FALSE.equals(v) && !Integer.valueOf(0).equals(v);
+                return data -> (LogCodec.field(data, field) != null) == exists;
+            case "$regex":
+                Pattern p = v instanceof Pattern ? (Pattern) v : pattern(String.valueOf(v), (String) ops.get("$options"));
+                return data -> {
+                    Object x = LogCodec.field(data, field);
+                    return x instanceof String && p.matcher((String) x).find();
+                };
+            case "$options":
+                return data -> true;
+        }
+        throw new Exception("unsupported operator: " + op.getKey());
+    }
+
+    // 正则表达式，支持i/m/s选项
+    static Pattern pattern(String regex, String options) {
+        int flags = 0;
+        if ( options != null ) {
+            if ( options.contains("i") )
+                flags |= Pattern.CASE_INSENSITIVE;
+            if ( options.contains("m") )
+                flags |= Pattern.MULTILINE;
+            if ( options.contains("s") )
+                flags |= Pattern.DOTALL;
+        }
+        return Pattern.compile(regex, flags);
+    }
+
+    // 相等（数值按大小比较）
+    static boolean equal(Object a, Object b) {
+        if ( a instanceof Number && b instanceof Number )
+            return Partition.compare(a, b) == 0;
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // 比较大小的条件，类型不同（数值除外）或为null时不满足
+    static Cond range(String field, Object v, IntPredicate p) {
+        return data -> {
+            Object x = LogCodec.field(data, field);
+            if ( x == null || v == null || (!(x instanceof Number && v instanceof Number) && x.getClass() != v.getClass()) )
+                return false;
+            return p.test(Partition.compare(x, v));
+        };
+    }
+}
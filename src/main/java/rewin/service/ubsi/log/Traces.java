@@ -0,0 +1,234 @@
+package rewin.service.ubsi.log;
+
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import rewin.ubsi.common.JedisUtil;
+import rewin.ubsi.common.LogUtil;
+import rewin.ubsi.common.Util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 最近的请求链路：写日志时将访问日志（body中有reqId）按reqId保存在内存中（限制时间、数量及字节数），
+ * 查询时组装为按seqId（"1.2.3"格式）的调用树，内存中没有完整链路时查询MongoDB
+ */
+public class Traces {
+
+    final static long SETTLE = 60 * 1000;  // 服务启动后多久的链路才认为是完整的（毫秒）
+
+    // 一个请求的日志
+    static class Trace {
+        final String    ReqId;
+        final long      Created = System.currentTimeMillis();
+        final long      First;          // 第一条日志的时间
+        final List<RawBsonDocument> Docs = new ArrayList<>();
+        int             Bytes = 0;
+        boolean         Truncated = false;  // 日志数量超过限制
+        boolean         Removed = false;    // 已被淘汰
+        final boolean   Partial;            // 此请求之前的日志已被淘汰（链路不完整）
+
+        Trace(String reqId, long first, boolean partial) {
+            ReqId = reqId;
+            First = first;
+            Partial = partial;
+        }
+    }
+
+    static ConcurrentHashMap<String, Trace> Index = new ConcurrentHashMap<>();
+    static ConcurrentLinkedQueue<Trace> Order = new ConcurrentLinkedQueue<>();  // 按创建顺序，用于淘汰
+    static AtomicLong Bytes = new AtomicLong(0);
+    static AtomicBoolean Evicting = new AtomicBoolean(false);
+    static volatile long Started = System.currentTimeMillis();
+    static LinkedHashMap<String, Boolean> Evicted = new LinkedHashMap<>();     // 最近被淘汰的reqId（最多trace_count个）
+
+    /** 保存访问日志（由写日志接口调用） */
+    static void add(Object[] data, RawBsonDocument doc) {
+        Config.Option option = Service.LoggerOption;
+        if ( option.trace_minutes <= 0 || data[1] == null || (Integer) data[1] != LogUtil.ACCESS || !(data[7] instanceof Map) )
+            return;
+        Object reqId = ((Map) data[7]).get("reqId");
+        if ( reqId == null )
+            return;
+        String key = reqId.toString();
+        int size = LogCodec.sizeOf(doc);
+        for ( ; ; ) {
+            Trace trace = Index.get(key);
+            if ( trace == null ) {
+                boolean partial;
+                synchronized (Evicted) {
+                    partial = Evicted.containsKey(key);
+                }
+                Trace t = new Trace(key, data[0] == null ? System.currentTimeMillis() : (Long) data[0], partial);
+                trace = Index.putIfAbsent(key, t);
+                if ( trace == null ) {
+                    trace = t;
+                    Order.add(t);
+                    evict();
+                }
+            }
+            synchronized (trace) {
+                if ( trace.Removed )
+                    continue;   // 已被淘汰，重新获取
+                if ( trace.Docs.size() >= option.trace_max_logs ) {
+                    trace.Truncated = true;
+                    return;
+                }
+                trace.Docs.add(doc);
+                trace.Bytes += size;
+                Bytes.addAndGet(size);
+            }
+            return;
+        }
+    }
+
+    /** 淘汰过期或超出限制的链路（按创建顺序） */
+    static void evict() {
+        if ( !Evicting.compareAndSet(false, true) )
+            return;
+        try {
+            Config.Option option = Service.LoggerOption;
+            long expire = System.currentTimeMillis() - option.trace_minutes * 60 * 1000L;
+            for ( Trace t = Order.peek(); t != null; t = Order.peek() ) {
+                if ( t.Created >= expire && Index.size() <= option.trace_count && Bytes.get() <= option.trace_bytes )
+                    break;
+                Order.poll();
+                Index.remove(t.ReqId, t);
+                synchronized (t) {
+                    t.Removed = true;
+                    Bytes.addAndGet(-t.Bytes);
+                }
+                synchronized (Evicted) {
+                    Evicted.put(t.ReqId, Boolean.TRUE);
+                    for ( Iterator<String> it = Evicted.keySet().iterator(); Evicted.size() > option.trace_count && it.hasNext(); ) {
+                        it.next();
+                        it.remove();
+                    }
+                }
+            }
+        } finally {
+            Evicting.set(false);
+        }
+    }
+
+    /** 清除内存中的链路 */
+    static void clear() {
+        Index.clear();
+        Order.clear();
+        Bytes.set(0);
+        synchronized (Evicted) {
+            Evicted.clear();
+        }
+        Started = System.currentTimeMillis();
+    }
+
+    // 内存中的链路是否完整：单实例部署，未截断，开始于服务启动之后，且不是淘汰后才到达的日志
+    static boolean complete(Trace trace) {
+        return !JedisUtil.isInited() && !trace.Truncated && !trace.Partial && trace.First >= Started + SETTLE
+                && trace.First >= trace.Created - Service.LoggerOption.trace_minutes * 60 * 1000L;
+    }
+
+    /** 查询请求的调用链路，结构：{ reqId, source: memory|database, count: 日志数量, tree: [调用树的节点] } */
+    static Map get(String reqId) {
+        Trace trace = Index.get(reqId);
+        List<Document> logs = new ArrayList<>();
+        Set<Object> ids = new HashSet<>();
+        if ( trace != null )
+            synchronized (trace) {
+                for ( RawBsonDocument raw : trace.Docs ) {
+                    Document doc = Cursor.Codec.decode(raw.asBsonReader(), DecoderContext.builder().build());
+                    ids.add(doc.get("_id"));
+                    logs.add(doc);
+                }
+            }
+        boolean memory = trace != null && complete(trace);
+        if ( !memory ) {
+            // 查询访问日志的过滤表（有body.reqId索引），不存在时查询主表；合并尚未写入的日志
+            Document query = new Document("body.reqId", reqId);
+            String filterId = Service.FilterUbsiAccess._id;
+            if ( !Service.Filters.containsKey(filterId) ) {
+                filterId = null;
+                query.append(Database.LOGS_TYPE, LogUtil.ACCESS);
+            }
+            query = Service.scope(filterId, query);
+            for ( String cname : Service.route(filterId, null) ) {
+                MongoCollection<Document> col = Service.MongoDBLogs.getCollection(cname);
+                for ( Document doc : col.find(query).limit(Service.LoggerOption.trace_max_logs) )
+                    if ( ids.add(doc.get("_id")) )
+                        logs.add(doc);
+            }
+            Offload.load(logs, null);
+        }
+        return Util.toMap(new Object[] {
+                "reqId", reqId,
+                "source", memory ? "memory" : "database",
+                "count", logs.size(),
+                "tree", tree(logs)
+        });
+    }
+
+    // 组装调用树：节点结构{ seqId, logs: [按时间排序的日志], children: [子节点] }，父节点不存在时挂到最近的祖先节点
+    @SuppressWarnings("unchecked")
+    static List<Map> tree(List<Document> logs) {
+        logs.sort((a, b) -> Partition.compare(a.get(Database.LOGS_TIME), b.get(Database.LOGS_TIME)));
+        Map<String, Map> nodes = new LinkedHashMap<>();
+        for ( Document doc : logs ) {
+            Object body = doc.get(Database.LOGS_BODY);
+            Object seq = body instanceof Map ? ((Map) body).get("seqId") : null;
+            String seqId = seq == null ? "" : seq.toString();
+            Map node = nodes.get(seqId);
+            if ( node == null )
+                nodes.put(seqId, node = Util.toMap(new Object[] { "seqId", seqId, "logs", new ArrayList(), "children", new ArrayList() }));
+            ((List) node.get("logs")).add(doc);
+        }
+        List<String> seqIds = new ArrayList<>(nodes.keySet());
+        seqIds.sort(Traces::compareSeq);
+        List<Map> roots = new ArrayList<>();
+        for ( String seqId : seqIds ) {
+            Map parent = null;
+            for ( int i = seqId.lastIndexOf('.'); i > 0 && parent == null; i = seqId.lastIndexOf('.', i - 1) )
+                parent = nodes.get(seqId.substring(0, i));
+            if ( parent == null )
+                roots.add(nodes.get(seqId));
+            else
+                ((List) parent.get("children")).add(nodes.get(seqId));
+        }
+        return roots;
+    }
+
+    // 按段比较seqId，数字段按数值比较
+    static int compareSeq(String a, String b) {
+        String[] x = a.split("\\.");
+        String[] y = b.split("\\.");
+        for ( int i = 0; i < x.length && i < y.length; i ++ ) {
+            int c;
+            try {
+                c = Long.compare(Long.parseLong(x[i]), Long.parseLong(y[i]));
+            } catch (NumberFormatException e) {
+                c = x[i].compareTo(y[i]);
+            }
+            if ( c != 0 )
+                return c;
+        }
+        return Integer.compare(x.length, y.length);
+    }
+
+    /** 运行信息 */
+    static Map info() {
+        return Util.toMap(new Object[] {
+                "traces", Index.size(),
+                "bytes", Bytes.get()
+        });
+    }
+}
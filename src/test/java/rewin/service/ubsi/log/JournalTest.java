@@ -0,0 +1,211 @@
+package rewin.service.ubsi.log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JournalTest {
+
+final static int SEGMENT = 64 * 1024;   // 段文件的最小大小
+
+File Dir;
+
+@Before
+public void before() throws Exception {
+    Dir = Files.createTempDirectory("journal").toFile();
+}
+
+@After
+public void after() throws Exception {
+    File[] files = Dir.listFiles();
+    if ( files != null )
+        for ( File f : files )
+            f.delete();
+    Dir.delete();
+}
+
+// 测试用的记录内容
+static byte[] record(int i, int size) {
+    byte[] res = new byte[size];
+    byte[] tag = ("record-" + i).getBytes(StandardCharsets.UTF_8);
+    System.arraycopy(tag, 0, res, 0, Math.min(tag.length, size));
+    return res;
+}
+
+// 段文件的数量
+int files() {
+    File[] files = Dir.listFiles((d, name) -> name.endsWith(Journal.SUFFIX));
+    return files == null ? 0 : files.length;
+}
+
+@Test
+public void testAppendRead() throws Exception {
+    Journal j = new Journal(Dir.getPath(), SEGMENT, 0);
+    for ( int i = 0; i < 10; i ++ )
+        assertTrue(j.append("logs_" + (i % 2), record(i, 100)));
+    assertEquals(10, j.pending());
+
+    List<Journal.Entry> list = new ArrayList<>();
+    assertEquals(4, j.read(list, 4));
+    assertEquals("logs_0", list.get(0).cname);
+    assertEquals("logs_1", list.get(1).cname);
+    assertArrayEquals(record(3, 100), list.get(3).bson);
+    j.commit();
+    assertEquals(6, j.pending());
+
+    list.clear();
+    assertEquals(6, j.read(list, 100));
+    assertArrayEquals(record(4, 100), list.get(0).bson);
+    j.commit();
+    assertEquals(0, j.pending());
+    assertEquals(0, j.pendingBytes());
+
+    list.clear();
+    assertEquals(0, j.read(list, 100));
+    j.close();
+}
+
+@Test
+public void testUncommittedRecovery() throws Exception {
+    Journal j = new Journal(Dir.getPath(), SEGMENT, 0);
+    for ( int i = 0; i < 5; i ++ )
+        j.append("logs", record(i, 100));
+    List<Journal.Entry> list = new ArrayList<>();
+    assertEquals(5, j.read(list, 100));     // 读取但未确认
+    j.close();
+
+    j = new Journal(Dir.getPath(), SEGMENT, 0);
+    assertEquals(5, j.pending());
+    list.clear();
+    assertEquals(5, j.read(list, 100));
+    assertArrayEquals(record(0, 100), list.get(0).bson);
+    j.close();
+}
+
+@Test
+public void testCheckpointRecovery() throws Exception {
+    Journal j = new Journal(Dir.getPath(), SEGMENT, 0);
+    for ( int i = 0; i < 5; i ++ )
+        j.append("logs", record(i, 100));
+    List<Journal.Entry> list = new ArrayList<>();
+    assertEquals(3, j.read(list, 3));
+    j.commit();
+    j.close();
+
+    j = new Journal(Dir.getPath(), SEGMENT, 0);
+    assertEquals(2, j.pending());
+    list.clear();
+    assertEquals(2, j.read(list, 100));
+    assertArrayEquals(record(3, 100), list.get(0).bson);
+    assertArrayEquals(record(4, 100), list.get(1).bson);
+    j.commit();
+    j.append("logs", record(5, 100));       // 重新打开后继续写入
+    list.clear();
+    assertEquals(1, j.read(list, 100));
+    assertArrayEquals(record(5, 100), list.get(0).bson);
+    j.close();
+}
+
+@Test
+public void testSegments() throws Exception {
+    Journal j = new Journal(Dir.getPath(), SEGMENT, 0);
+    for ( int i = 0; i < 20; i ++ )
+        assertTrue(j.append("logs", record(i, 10000)));     // 每段最多6条
+    assertTrue(j.segments() >= 4);
+    assertEquals(j.segments(), files());
+
+    List<Journal.Entry> list = new ArrayList<>();
+    assertEquals(20, j.read(list, 100));    // 跨段读取
+    for ( int i = 0; i < 20; i ++ )
+        assertArrayEquals(record(i, 10000), list.get(i).bson);
+    j.commit();
+    assertEquals(1, j.segments());          // 回放完毕的段被删除
+    assertEquals(1, files());
+    j.close();
+
+    // 重新打开时从最后一个段继续
+    j = new Journal(Dir.getPath(), SEGMENT, 0);
+    assertEquals(0, j.pending());
+    j.append("logs", record(20, 100));
+    list.clear();
+    assertEquals(1, j.read(list, 100));
+    assertArrayEquals(record(20, 100), list.get(0).bson);
+    j.close();
+}
+
+@Test
+public void testSegmentRecovery() throws Exception {
+    Journal j = new Journal(Dir.getPath(), SEGMENT, 0);
+    for ( int i = 0; i < 20; i ++ )
+        j.append("logs", record(i, 10000));
+    List<Journal.Entry> list = new ArrayList<>();
+    assertEquals(8, j.read(list, 8));       // 确认到第二个段的中间
+    j.commit();
+    j.close();
+
+    j = new Journal(Dir.getPath(), SEGMENT, 0);
+    assertEquals(12, j.pending());
+    list.clear();
+    assertEquals(12, j.read(list, 100));
+    for ( int i = 0; i < 12; i ++ )
+        assertArrayEquals(record(i + 8, 10000), list.get(i).bson);
+    j.close();
+}
+
+@Test
+public void testCrc() throws Exception {
+    Journal j = new Journal(Dir.getPath(), SEGMENT, 0);
+    for ( int i = 0; i < 3; i ++ )
+        j.append("logs", record(i, 100));
+    j.close();
+
+    // 破坏第二条记录的内容
+    int len = 2 + "logs".length() + 100;
+    File seg = Dir.listFiles((d, name) -> name.endsWith(Journal.SUFFIX))[0];
+    try (RandomAccessFile raf = new RandomAccessFile(seg, "rw")) {
+        long pos = 8 + len + 8 + 2 + "logs".length();
+        raf.seek(pos);
+        int b = raf.read();
+        raf.seek(pos);
+        raf.write(b ^ 0xFF);
+    }
+
+    j = new Journal(Dir.getPath(), SEGMENT, 0);
+    assertEquals(1, j.pending());           // 校验失败的记录及之后的记录无效
+    List<Journal.Entry> list = new ArrayList<>();
+    assertEquals(1, j.read(list, 100));
+    assertArrayEquals(record(0, 100), list.get(0).bson);
+    j.commit();
+    j.append("logs", record(3, 100));       // 跳过无效的段，继续回放新写入的记录
+    list.clear();
+    assertEquals(1, j.read(list, 100));
+    assertArrayEquals(record(3, 100), list.get(0).bson);
+    j.close();
+}
+
+@Test
+public void testCapacity() throws Exception {
+    Journal j = new Journal(Dir.getPath(), SEGMENT, 1000);
+    int n = 0;
+    while ( j.append("logs", record(n, 100)) )
+        n ++;
+    assertEquals(8, n);                     // 每条记录8 + 2 + 4 + 100字节
+    assertTrue(j.pendingBytes() <= 1000);
+    assertFalse(j.append("logs", new byte[SEGMENT]));   // 超过段大小的记录
+    List<Journal.Entry> list = new ArrayList<>();
+    j.read(list, 3);
+    j.commit();
+    assertTrue(j.append("logs", record(n, 100)));       // 回放后腾出空间
+    j.close();
+}
+
+}
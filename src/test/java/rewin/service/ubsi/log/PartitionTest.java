@@ -0,0 +1,56 @@
+package rewin.service.ubsi.log;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PartitionTest {
+
+final static List<String> HOURS = Arrays.asList("logs_2026101800", "logs_2026101801", "logs_2026101802");
+
+// 模拟分区查询：每个分区有3条记录，记录查询过的分区
+static List fetch(List<String> queried, String cname, int max) {
+    queried.add(cname);
+    List res = new ArrayList();
+    for ( int i = 0; i < 3 && (max == 0 || i < max); i ++ )
+        res.add(cname + "#" + i);
+    return res;
+}
+
+@Test
+public void testDisjoint() throws Exception {
+    assertTrue(Partition.isDisjoint("logs", HOURS));
+    assertFalse(Partition.isDisjoint("logs", Arrays.asList("logs", "logs_2026101800")));            // 包含未分区的基础表
+    assertFalse(Partition.isDisjoint("logs", Arrays.asList("logs_20261018", "logs_2026101900")));   // 按天及按小时的分区混合
+    assertEquals(HOURS, Partition.select("logs", Arrays.asList("logs_2026101802", "logs_2026101800", "logs_2026101801", "other"),
+            Long.MIN_VALUE, Long.MAX_VALUE));
+}
+
+@Test
+public void testSequentialStops() throws Exception {
+    List<String> queried = new ArrayList<>();
+    List res = Partition.sequential(HOURS, true, 0, 2, (cname, max) -> fetch(queried, cname, max));
+    assertEquals(Arrays.asList("logs_2026101802"), queried);    // 第一个分区已满足数量
+    assertEquals(Arrays.asList("logs_2026101802#0", "logs_2026101802#1"), res);
+
+    queried.clear();
+    res = Partition.sequential(HOURS, false, 2, 2, (cname, max) -> fetch(queried, cname, max));
+    assertEquals(Arrays.asList("logs_2026101800", "logs_2026101801"), queried);
+    assertEquals(Arrays.asList("logs_2026101800#2", "logs_2026101801#0"), res);
+}
+
+@Test
+public void testSequentialAll() throws Exception {
+    List<String> queried = new ArrayList<>();
+    List res = Partition.sequential(HOURS, false, 1, 0, (cname, max) -> fetch(queried, cname, max));
+    assertEquals(HOURS, queried);
+    assertEquals(8, res.size());
+    assertEquals("logs_2026101800#1", res.get(0));
+    assertTrue(Partition.sequential(HOURS, false, 20, 5, (cname, max) -> fetch(queried, cname, max)).isEmpty());
+}
+
+}
@@ -0,0 +1,170 @@
+package rewin.service.ubsi.log;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RingBufferTest {
+
+// 无字节数限制、丢弃新记录的队列
+RingBuffer<Integer> buffer(int count) {
+    return new RingBuffer<>(count, 0, RingBuffer.Overflow.DROP_NEWEST, 0);
+}
+
+@Test
+public void testCapacity() throws Exception {
+    assertEquals(8, buffer(5).capacity());
+    assertEquals(8, buffer(8).capacity());
+    assertEquals(131072, buffer(100000).capacity());
+}
+
+@Test
+public void testWrapAround() throws Exception {
+    RingBuffer<Integer> rb = buffer(4);
+    int next = 0;
+    for ( int i = 0; i < 100; i ++ ) {
+        assertTrue(rb.offer(i, 1));
+        if ( i % 3 == 2 ) {
+            // 保持队列中有多条记录，使读写位置多次绕回
+            assertEquals(Integer.valueOf(next ++), rb.poll());
+            assertEquals(Integer.valueOf(next ++), rb.poll());
+        }
+        if ( rb.size() == rb.capacity() )
+            assertEquals(Integer.valueOf(next ++), rb.poll());
+    }
+    while ( !rb.isEmpty() )
+        assertEquals(Integer.valueOf(next ++), rb.poll());
+    assertEquals(100, next);
+    assertNull(rb.poll());
+    assertEquals(0, rb.bytes());
+    assertEquals(0, rb.shed());
+}
+
+@Test
+public void testDropNewest() throws Exception {
+    RingBuffer<Integer> rb = buffer(4);
+    for ( int i = 0; i < 4; i ++ )
+        assertTrue(rb.offer(i, 1));
+    assertFalse(rb.offer(4, 1));
+    assertEquals(1, rb.Dropped.sum());
+    assertEquals(4, rb.size());
+    assertEquals(4, rb.bytes());
+    assertEquals(Integer.valueOf(0), rb.poll());
+}
+
+@Test
+public void testDropOldest() throws Exception {
+    RingBuffer<Integer> rb = new RingBuffer<>(4, 0, RingBuffer.Overflow.DROP_OLDEST, 0);
+    for ( int i = 0; i < 6; i ++ )
+        assertTrue(rb.offer(i, 1));
+    assertEquals(2, rb.Evicted.sum());
+    List<Integer> list = new ArrayList<>();
+    rb.drain(list, 10);
+    assertEquals(Arrays.asList(2, 3, 4, 5), list);
+}
+
+@Test
+public void testBlock() throws Exception {
+    RingBuffer<Integer> rb = new RingBuffer<>(2, 0, RingBuffer.Overflow.BLOCK, 50);
+    assertTrue(rb.offer(0, 1));
+    assertTrue(rb.offer(1, 1));
+    long start = System.nanoTime();
+    assertFalse(rb.offer(2, 1));    // 没有消费者，超时后丢弃
+    assertTrue(System.nanoTime() - start >= 40 * 1000000L);
+    assertEquals(1, rb.TimedOut.sum());
+
+    Thread consumer = new Thread(() -> {
+        try { Thread.sleep(10); } catch (InterruptedException e) {}
+        rb.poll();
+    });
+    consumer.start();
+    assertTrue(rb.offer(3, 1));     // 等待期间消费者腾出空间
+    consumer.join();
+    assertEquals(1, rb.TimedOut.sum());
+    assertEquals(Integer.valueOf(1), rb.poll());
+    assertEquals(Integer.valueOf(3), rb.poll());
+}
+
+@Test
+public void testSpill() throws Exception {
+    RingBuffer<Integer> rb = new RingBuffer<>(2, 0, RingBuffer.Overflow.SPILL, 0);
+    assertTrue(rb.offer(0, 1));
+    assertTrue(rb.offer(1, 1));
+    assertFalse(rb.offer(2, 1));    // 由调用者溢出及计数
+    assertEquals(0, rb.shed());
+    assertEquals(2, rb.size());
+}
+
+@Test
+public void testBytes() throws Exception {
+    RingBuffer<Integer> rb = new RingBuffer<>(16, 100, RingBuffer.Overflow.DROP_NEWEST, 0);
+    assertTrue(rb.offer(0, 60));
+    assertFalse(rb.offer(1, 60));   // 超过字节数
+    assertEquals(60, rb.bytes());
+    assertTrue(rb.offer(2, 40));
+    assertEquals(1.0, rb.load(), 0.0001);
+    rb.poll();
+    rb.poll();
+    assertEquals(0, rb.bytes());
+    assertTrue(rb.offer(3, 500));   // 队列为空时单条超限的记录仍然可以写入
+    assertFalse(rb.offer(4, 1));
+    assertEquals(2, rb.Dropped.sum());
+}
+
+@Test
+public void testDrainBytes() throws Exception {
+    RingBuffer<Integer> rb = buffer(16);
+    for ( int i = 0; i < 10; i ++ )
+        rb.offer(i, 10);
+    List<Integer> list = new ArrayList<>();
+    assertEquals(3, rb.drain(list, 100, 25));   // 累计字节数达到25时停止
+    assertEquals(Arrays.asList(0, 1, 2), list);
+    assertEquals(70, rb.bytes());
+    assertEquals(7, rb.size());
+}
+
+@Test
+public void testConcurrent() throws Exception {
+    RingBuffer<Integer> rb = buffer(64);
+    int producers = 4, consumers = 3, count = 20000;
+    Set<Integer> received = ConcurrentHashMap.newKeySet();
+    AtomicInteger done = new AtomicInteger(0);
+    AtomicInteger duplicates = new AtomicInteger(0);
+    List<Thread> threads = new ArrayList<>();
+    for ( int p = 0; p < producers; p ++ ) {
+        int base = p * count;
+        threads.add(new Thread(() -> {
+            for ( int i = 0; i < count; i ++ )
+                while ( !rb.offer(base + i, 1) )
+                    Thread.yield();
+            done.incrementAndGet();
+        }));
+    }
+    for ( int c = 0; c < consumers; c ++ )
+        threads.add(new Thread(() -> {
+            while ( done.get() < producers || !rb.isEmpty() ) {
+                Integer v = rb.poll();
+                if ( v == null )
+                    Thread.yield();
+                else if ( !received.add(v) )
+                    duplicates.incrementAndGet();
+            }
+        }));
+    for ( Thread t : threads )
+        t.start();
+    for ( Thread t : threads )
+        t.join();
+    assertEquals(0, duplicates.get());
+    assertEquals(producers * count, received.size());
+    assertEquals(0, rb.size());
+    assertEquals(0, rb.bytes());
+}
+
+}
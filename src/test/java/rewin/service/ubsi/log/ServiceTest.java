@@ -13,6 +13,7 @@ import rewin.ubsi.container.Bootstrap;
 import rewin.ubsi.container.Info;
 
 import java.util.Arrays;
+import java.util.Map;
 
 public class ServiceTest {
 
@@ -85,6 +86,23 @@ public void testLog() throws Exception {
     Request.printJson(res);
 }
 
+@Test
+public void testLogBatch() throws Exception {
+    Object[] log = new Object[] {
+            System.currentTimeMillis(),
+            LogUtil.ACCESS,
+            "localhost",
+            "rewin.ubsi.service",
+            Context.LOG_APPID,
+            null,
+            "test log",
+            new LogBody.Request("reqId", "seqId", "service", "entry", (byte)0)
+    };
+    Context context = Context.request(ServiceName, "logBatch", Arrays.asList(log, log, new Object[] { "invalid" }));
+    Object res = context.direct("localhost", 7112);
+    Request.printJson(res);
+}
+
 @Test
 public void testCount() throws Exception {
     Context context = Context.request(ServiceName, "count", Service.FilterUbsiAccess._id, null);
@@ -100,6 +118,51 @@ public void testFind() throws Exception {
     Request.printJson(res);
 }
 
+@Test
+public void testFindRange() throws Exception {
+    long now = System.currentTimeMillis();
+    Context context = Context.request(ServiceName, "find", Service.FilterUbsiAccess._id, Util.toMap(new Object[] {
+            "time", Util.toMap(new Object[] { "$gte", now - 24 * 3600 * 1000L, "$lt", now })
+    }), null, 0, 10, null);
+    Object res = context.direct("localhost", 7112);
+    Request.printJson(res);
+}
+
+@Test
+public void testGetTrace() throws Exception {
+    Context context = Context.request(ServiceName, "getTrace", "reqId");
+    Object res = context.direct("localhost", 7112);
+    Request.printJson(res);
+}
+
+@Test
+public void testSearch() throws Exception {
+    Context context = Context.request(ServiceName, "search", null, "login failed", 0L, 0L, 10, true);
+    Object res = context.direct("localhost", 7112);
+    Request.printJson(res);
+}
+
+@Test
+public void testTail() throws Exception {
+    Context context = Context.request(ServiceName, "tail", null, Util.toMap(new Object[] { "type", LogUtil.ACCESS }), null);
+    String subId = (String)context.direct("localhost", 7112);
+    context = Context.request(ServiceName, "tailPoll", subId, 100);
+    Request.printJson(context.direct("localhost", 7112));
+    context = Context.request(ServiceName, "untail", subId);
+    Request.printJson(context.direct("localhost", 7112));
+}
+
+@Test
+public void testFindCursor() throws Exception {
+    Context context = Context.request(ServiceName, "findCursor", Service.FilterUbsiAccess._id, null, -1, null, 10);
+    Map res = (Map)context.direct("localhost", 7112);
+    Request.printJson(res);
+    if ( res.get("next") != null ) {
+        context = Context.request(ServiceName, "findNext", res.get("next"), 10);
+        Request.printJson(context.direct("localhost", 7112));
+    }
+}
+
 @Test
 public void testAggregate() throws Exception {
     Context context = Context.request(ServiceName, "aggregate", null, Arrays.asList(
@@ -113,6 +176,54 @@ public void testAggregate() throws Exception {
     Request.printJson(res);
 }
 
+@Test
+public void testMapReduce() throws Exception {
+    Context context = Context.request(ServiceName, "mapReduce", null,
+            "function() { emit(this.app, 1); }",
+            "function(key, values) { return Array.sum(values); }");
+    Object res = context.direct("localhost", 7112);
+    Request.printJson(res);
+}
+
+@Test
+public void testClear() throws Exception {
+    Context context = Context.request(ServiceName, "clear", "test", null);
+    Object res = context.direct("localhost", 7112);
+    Request.printJson(res);
+}
+
+@Test
+public void testExport() throws Exception {
+    Context context = Context.request(ServiceName, "export", Service.FilterUbsiAccess._id, null, "ndjson");
+    Object res = context.direct("localhost", 7112);
+    Request.printJson(res);
+}
+
+@Test
+public void testGetJob() throws Exception {
+    Context context = Context.request(ServiceName, "getJob", (Object)null);
+    Object res = context.direct("localhost", 7112);
+    Request.printJson(res);
+}
+
+@Test
+public void testStats() throws Exception {
+    Context context = Context.request(ServiceName, "stats", null, Arrays.asList("type", "app"), 5);
+    Object res = context.direct("localhost", 7112);
+    Request.printJson(res);
+}
+
+@Test
+public void testSketches() throws Exception {
+    long now = System.currentTimeMillis();
+    Context context = Context.request(ServiceName, "distinct", Service.FilterUbsiAccess._id, "body.reqId", now - 3600 * 1000, now);
+    Object res = context.direct("localhost", 7112);
+    Request.printJson(res);
+    context = Context.request(ServiceName, "topApps", null, LogUtil.ACCESS, now - 3600 * 1000, now, 5);
+    res = context.direct("localhost", 7112);
+    Request.printJson(res);
+}
+
 @Test
 public void testGetFiltere() throws Exception {
     Context context = Context.request(ServiceName, "getFilter");
@@ -133,6 +244,20 @@ public void testAddFilter() throws Exception {
     Request.printJson(res);
 }
 
+@Test
+public void testAddPartitionFilter() throws Exception {
+    Database.Filter filter = new Database.Filter();
+    filter._id = "test_day";
+    filter.type = Arrays.asList(LogUtil.ACCESS);
+    filter.index = Arrays.asList(
+            Arrays.asList(new Database.Index("time", 1))
+    );
+    filter.partition = "day";
+    Context context = Context.request(ServiceName, "addFilter", filter);
+    Object res = context.direct("localhost", 7112);
+    Request.printJson(res);
+}
+
 @Test
 public void testSetFilter() throws Exception {
     Database.Filter filter = new Database.Filter();